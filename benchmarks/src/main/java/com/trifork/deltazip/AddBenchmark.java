@@ -0,0 +1,60 @@
+package com.trifork.deltazip;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.trifork.deltazip.BenchmarkCorpus.ByteCounters;
+import com.trifork.deltazip.BenchmarkCorpus.Shape;
+import com.trifork.deltazip.DZUtil.ByteArrayAccess;
+import com.trifork.deltazip.DeltaZip.AppendSpecification;
+
+/** Cost of appending one version to an archive whose latest version is
+ *  the previous one in the series: decode the latest snapshot, pack it
+ *  as a delta and pack the new snapshot.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx4g"})
+public class AddBenchmark {
+    @Param({"random", "very_related", "somewhat_related"})
+    public Shape shape;
+
+    @Param({"1000", "100000", "1000000", "10000000", "50000000"})
+    public int size;
+
+    private byte[] archive;
+    private Version new_version;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        byte[][] versions = BenchmarkCorpus.generate(shape, size, 2);
+        archive = BenchmarkCorpus.buildArchive(new byte[][] {versions[0]});
+        new_version = new Version(versions[1]);
+    }
+
+    @Benchmark
+    public AppendSpecification add(ByteCounters counters) throws IOException {
+        DeltaZip dz = new DeltaZip(new ByteArrayAccess(archive));
+        AppendSpecification spec = dz.add(Collections.singletonList(new_version).iterator());
+        counters.rawBytes  += 2L * size; // Old version re-packed as delta, new as snapshot.
+        counters.compBytes += spec.new_tail.remaining();
+        return spec;
+    }
+}
@@ -0,0 +1,99 @@
+package com.trifork.deltazip;
+
+import java.util.Iterator;
+import java.util.Random;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import com.trifork.deltazip.DZUtil.ByteArrayAccess;
+
+/** Version series used by the benchmarks.
+ *  The shapes mirror those of the unit tests (see DeltaZipTest), but are
+ *  generated from a fixed seed so that runs are comparable.
+ */
+public abstract class BenchmarkCorpus {
+    public static final long SEED = 0xDE17A21FL;
+
+    public enum Shape {
+        /** No relation between consecutive versions. */
+        random,
+        /** Each version differs from the previous one by a few single-byte mutations. */
+        very_related,
+        /** Mutations plus overwritten runs of random data. */
+        somewhat_related
+    }
+
+    public static byte[][] generate(Shape shape, int size, int count) {
+        Random rnd = new Random(SEED ^ ((long)size << 8) ^ shape.ordinal());
+        byte[][] versions = new byte[count][];
+        versions[0] = randomBlob(size, rnd);
+        for (int i=1; i<count; i++) {
+            switch (shape) {
+            case random:           versions[i] = randomBlob(size, rnd); break;
+            case very_related:     versions[i] = mutate(versions[i-1], rnd); break;
+            case somewhat_related: versions[i] = overwriteRuns(mutate(versions[i-1], rnd), rnd); break;
+            }
+        }
+        return versions;
+    }
+
+    /** Build an archive holding the given versions, oldest first. */
+    public static byte[] buildArchive(final byte[][] versions) throws java.io.IOException {
+        ByteArrayAccess access = new ByteArrayAccess(new byte[0]);
+        DeltaZip dz = new DeltaZip(access);
+        return access.applyAppendSpec(dz.add(new Iterator<Version>() {
+            int pos = 0;
+            public boolean hasNext() {return pos < versions.length;}
+            public Version next() {return new Version(versions[pos++]);}
+            public void remove() {throw new UnsupportedOperationException();}
+        }));
+    }
+
+    private static byte[] randomBlob(int size, Random rnd) {
+        byte[] buf = new byte[size];
+        rnd.nextBytes(buf);
+        return buf;
+    }
+
+    private static byte[] mutate(byte[] prev, Random rnd) {
+        byte[] tmp = prev.clone();
+        int nMutations = rnd.nextInt(20);
+        for (int k=0; k<nMutations; k++)
+            tmp[rnd.nextInt(tmp.length)] = (byte) rnd.nextInt(256);
+        return tmp;
+    }
+
+    private static byte[] overwriteRuns(byte[] tmp, Random rnd) {
+        int nRuns = rnd.nextInt(10);
+        for (int j=0; j<nRuns; j++) {
+            int start = 0, end = tmp.length;
+            int iters = rnd.nextInt(10);
+            for (int k=0; k<iters && start<end; k++) { // Select part.
+                int mid = start + rnd.nextInt(end - start);
+                if (rnd.nextBoolean()) start=mid; else end=mid;
+            }
+            for (int k=start; k<end; k++) tmp[k] = (byte)rnd.nextInt(256);
+        }
+        return tmp;
+    }
+
+    //==================== Counters ====================
+
+    /** Reported by JMH as rates; compBytes/rawBytes is the compression ratio. */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class ByteCounters {
+        public long rawBytes;
+        public long compBytes;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            rawBytes = 0;
+            compBytes = 0;
+        }
+    }
+}
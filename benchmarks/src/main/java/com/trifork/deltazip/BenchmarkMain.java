@@ -0,0 +1,21 @@
+package com.trifork.deltazip;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/** Entry point of benchmarks.jar.
+ *  Accepts the usual JMH command line, and always attaches the GC profiler
+ *  so that allocation per operation (gc.alloc.rate.norm) is reported.
+ *  Example: java -jar target/benchmarks.jar Add -p shape=very_related -p size=1000000
+ */
+public class BenchmarkMain {
+    public static void main(String[] args) throws Exception {
+        CommandLineOptions cmd_options = new CommandLineOptions(args);
+        new Runner(new OptionsBuilder()
+                   .parent(cmd_options)
+                   .addProfiler(GCProfiler.class)
+                   .build()).run();
+    }
+}
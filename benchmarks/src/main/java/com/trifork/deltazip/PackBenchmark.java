@@ -0,0 +1,75 @@
+package com.trifork.deltazip;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.trifork.deltazip.BenchmarkCorpus.ByteCounters;
+import com.trifork.deltazip.BenchmarkCorpus.Shape;
+import com.trifork.deltazip.DZUtil.ByteArrayAccess;
+
+/** Cost of the two envelope encoders in isolation.
+ *  The "exhaustive" profile is "max" without the estimate-then-refine
+ *  selection of chunk options, i.e. with every option deflated fully. */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx4g"})
+public class PackBenchmark {
+    @Param({"random", "very_related", "somewhat_related"})
+    public Shape shape;
+
+    @Param({"1000", "100000", "1000000", "10000000", "50000000"})
+    public int size;
+
+    @Param({"fast", "balanced", "max", "exhaustive"})
+    public String profile;
+
+    private DeltaZip dz;
+    private ByteBuffer ref_version;
+    private Version version;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        byte[][] versions = BenchmarkCorpus.generate(shape, size, 2);
+        dz = new DeltaZip(new ByteArrayAccess(new byte[0]));
+        dz.setNewArchiveFormat(FormatVersion.VERSION_13); // Allows all methods the profiles name.
+        dz.setEncodingProfile(EncodingProfile.named(profile));
+        dz.start_new_archive(new ExtByteArrayOutputStream()); // Takes on the format, as Repacker's encoders do.
+        version = new Version(versions[0]);
+        ref_version = ByteBuffer.wrap(versions[1]);
+    }
+
+    @Benchmark
+    public ExtByteArrayOutputStream pack_snapshot(ByteCounters counters) {
+        ExtByteArrayOutputStream dst = new ExtByteArrayOutputStream();
+        dz.pack_snapshot(version, dst);
+        counters.rawBytes  += size;
+        counters.compBytes += dst.size();
+        return dst;
+    }
+
+    @Benchmark
+    public ExtByteArrayOutputStream pack_delta(ByteCounters counters) {
+        ExtByteArrayOutputStream dst = new ExtByteArrayOutputStream();
+        dz.pack_delta(version, ref_version, dst);
+        counters.rawBytes  += size;
+        counters.compBytes += dst.size();
+        return dst;
+    }
+}
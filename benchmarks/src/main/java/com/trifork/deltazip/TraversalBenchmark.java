@@ -0,0 +1,61 @@
+package com.trifork.deltazip;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.trifork.deltazip.BenchmarkCorpus.ByteCounters;
+import com.trifork.deltazip.BenchmarkCorpus.Shape;
+import com.trifork.deltazip.DZUtil.ByteArrayAccess;
+
+/** Cost of decoding the complete history of an archive. */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx4g"})
+public class TraversalBenchmark {
+    @Param({"random", "very_related", "somewhat_related"})
+    public Shape shape;
+
+    @Param({"1000", "100000", "1000000", "10000000", "50000000"})
+    public int size;
+
+    @Param({"10"})
+    public int versions;
+
+    private byte[] archive;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        archive = BenchmarkCorpus.buildArchive(BenchmarkCorpus.generate(shape, size, versions));
+    }
+
+    @Benchmark
+    public int backwardsIterator(ByteCounters counters, Blackhole bh) throws IOException {
+        DeltaZip dz = new DeltaZip(new ByteArrayAccess(archive));
+        DeltaZip.VersionIterator iter = dz.backwardsIterator();
+        int count = 0;
+        while (iter.hasNext()) {
+            bh.consume(iter.next());
+            count++;
+        }
+        counters.rawBytes  += (long)count * size;
+        counters.compBytes += archive.length;
+        return count;
+    }
+}
@@ -0,0 +1,225 @@
+package com.trifork.deltazip;
+
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+
+/** Non-blocking facade for a DeltaZip handle.
+ *  Operations return at once; the encoding and decoding, and the
+ *  (blocking) file access they involve, run on an executor, so callers'
+ *  threads (e.g. the I/O threads of a request pipeline) are not held up
+ *  by large deltas or slow disks.
+ *  By default, that is a bounded pool of daemon threads shared by all
+ *  facades, rather than the common ForkJoinPool, which is not meant for
+ *  blocking work. Its size is given by -Ddeltazip-async-threads, and
+ *  defaults to the number of processors.
+ *
+ *  Adds through the facade are applied in the order they were made.
+ */
+public class AsyncDeltaZip {
+
+    //==================== Fields ==========================================
+
+    private final DeltaZip dz;
+    private final Executor executor;
+    /** Completes when the latest add has been applied. Guarded by 'this'. */
+    private CompletableFuture<?> last_add = CompletableFuture.completedFuture(null);
+
+    //==================== API ==========================================
+
+    public static final int DEFAULT_THREADS =
+        Integer.getInteger("deltazip-async-threads", Runtime.getRuntime().availableProcessors());
+
+    /** Uses the shared default executor. */
+    public AsyncDeltaZip(DeltaZip dz) {
+        this(dz, DefaultExecutor.INSTANCE);
+    }
+
+    public AsyncDeltaZip(DeltaZip dz, Executor executor) {
+        if (dz == null || executor == null) throw new NullPointerException();
+        this.dz = dz;
+        this.executor = executor;
+    }
+
+    public DeltaZip getDeltaZip() {return dz;}
+
+    /** Add a version, once earlier adds through this facade are done.
+     *  The archive's Access must be a WritableAccess.
+     *  @return a future of the new envelopes, oldest first.
+     */
+    public CompletableFuture<List<EnvelopeInfo>> add(final Version version) {
+        final CompletableFuture<List<EnvelopeInfo>> result = new CompletableFuture<List<EnvelopeInfo>>();
+        CompletableFuture<?> previous;
+        synchronized (this) {
+            previous = last_add;
+            last_add = result;
+        }
+        previous.whenComplete(new BiConsumer<Object,Throwable>() {
+            public void accept(Object ignored, Throwable ignored_failure) {
+                run_async(result, new Callable<List<EnvelopeInfo>>() {
+                    public List<EnvelopeInfo> call() throws Exception {
+                        DeltaZip.AppendSpecification spec = dz.add(version);
+                        dz.applyAppendSpec(spec);
+                        return spec.getNewEnvelopes();
+                    }
+                });
+            }
+        });
+        return result;
+    }
+
+    /** The latest version, or null if the archive is empty. */
+    public CompletableFuture<Version> latest() {
+        return call_async(new Callable<Version>() {
+            public Version call() {
+                return dz.latestVersion();
+            }
+        });
+    }
+
+    /** See DeltaZip.getVersion(int). */
+    public CompletableFuture<Version> getVersion(final int index_from_newest) {
+        return call_async(new Callable<Version>() {
+            public Version call() throws Exception {
+                return dz.getVersion(index_from_newest);
+            }
+        });
+    }
+
+    /** The versions, newest first, as the archive is when the first item
+     *  is requested. Each version is decoded only when there is demand for it.
+     *  Each subscriber gets its own traversal.
+     */
+    public Flow.Publisher<Version> history() {
+        return new Flow.Publisher<Version>() {
+            public void subscribe(Flow.Subscriber<? super Version> subscriber) {
+                if (subscriber == null) throw new NullPointerException();
+                HistorySubscription subscription = new HistorySubscription(subscriber);
+                subscriber.onSubscribe(subscription);
+            }
+        };
+    }
+
+    //==================== Internals =======================================
+
+    /** Created on first use. */
+    private static class DefaultExecutor {
+        static final ExecutorService INSTANCE =
+            Executors.newFixedThreadPool(Math.max(1, DEFAULT_THREADS), new ThreadFactory() {
+                private final AtomicInteger count = new AtomicInteger();
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "deltazip-async-"+count.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+    }
+
+    private <T> CompletableFuture<T> call_async(Callable<T> task) {
+        CompletableFuture<T> result = new CompletableFuture<T>();
+        run_async(result, task);
+        return result;
+    }
+
+    private <T> void run_async(final CompletableFuture<T> result, final Callable<T> task) {
+        try {
+            executor.execute(new Runnable() {
+                public void run() {
+                    try {
+                        result.complete(task.call());
+                    } catch (Throwable t) {
+                        result.completeExceptionally(t);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException ree) {
+            result.completeExceptionally(ree);
+        }
+    }
+
+    /** Emits versions on the executor, one drain at a time. */
+    private class HistorySubscription implements Flow.Subscription, Runnable {
+        private final Flow.Subscriber<? super Version> subscriber;
+        private final AtomicLong demand = new AtomicLong();
+        /** Number of requests for a drain; the drain runs while it is non-zero. */
+        private final AtomicInteger pending_drains = new AtomicInteger();
+        private volatile boolean done;
+        private volatile Throwable bad_request;
+        /** Only touched by the drain. */
+        private DeltaZip.VersionIterator iter;
+
+        HistorySubscription(Flow.Subscriber<? super Version> subscriber) {
+            this.subscriber = subscriber;
+        }
+
+        public void request(long n) {
+            if (n <= 0) {
+                bad_request = new IllegalArgumentException("Non-positive request: "+n);
+            } else {
+                long current, updated;
+                do {
+                    current = demand.get();
+                    updated = current + n;
+                    if (updated < 0) updated = Long.MAX_VALUE; // Unbounded.
+                } while (!demand.compareAndSet(current, updated));
+            }
+            schedule_drain();
+        }
+
+        public void cancel() {
+            done = true;
+        }
+
+        private void schedule_drain() {
+            if (pending_drains.getAndIncrement() != 0) return; // The running drain will see it.
+            try {
+                executor.execute(this);
+            } catch (RejectedExecutionException ree) {
+                done = true;
+                subscriber.onError(ree);
+            }
+        }
+
+        public void run() {
+            int missed = 1;
+            do {
+                drain();
+                missed = pending_drains.addAndGet(-missed);
+            } while (missed != 0);
+        }
+
+        private void drain() {
+            if (done) return;
+            try {
+                if (bad_request != null) {
+                    done = true;
+                    subscriber.onError(bad_request);
+                    return;
+                }
+                if (iter == null) iter = dz.backwardsIterator();
+                while (!done && demand.get() > 0 && iter.hasNext()) {
+                    Version version = iter.next();
+                    demand.decrementAndGet();
+                    subscriber.onNext(version);
+                }
+                if (!done && !iter.hasNext()) {
+                    done = true;
+                    subscriber.onComplete();
+                }
+            } catch (Throwable t) {
+                if (!done) {
+                    done = true;
+                    subscriber.onError(t);
+                }
+            }
+        }
+    }
+}
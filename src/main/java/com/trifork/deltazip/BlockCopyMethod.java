@@ -0,0 +1,230 @@
+package com.trifork.deltazip;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+import java.nio.ByteBuffer;
+
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/** Delta method which describes a version as copies of ranges of the
+ *  reference version, anywhere in it, and inserts of new data (in the
+ *  manner of rsync and xdelta).
+ *  Unlike the chunked methods, which see the reference only through a
+ *  sliding 32 KB deflate window, it finds moved and reordered blocks at any
+ *  distance, and decodes with plain array copies.
+ *
+ *  The reference is indexed by a rolling hash of each BLOCK_SIZE-aligned
+ *  block; the version is scanned with the same hash at every position, and
+ *  each hit is extended in both directions. After a copy, the bytes at the
+ *  same distance into the reference are tried first, so that a changed byte
+ *  only costs a short insert.
+ *
+ *  Format: the inserted data, concatenated and deflated (raw length and
+ *  compressed length, as varlen integers, then the deflated data); then
+ *  one varlen-encoded operation header per operation, up to the end:
+ *  (length << 1) for an insert of the next 'length' inserted bytes, or
+ *  (length << 1 | 1) for a copy, followed by the signed (zigzag-encoded)
+ *  distance of the copy's start from the end of the previous copy.
+ */
+class BlockCopyMethod extends DeltaZip.CompressionMethod {
+	//==================== Constants =======================================
+
+	/** The granularity of the reference index, and the shortest copy. */
+	public static final int BLOCK_SIZE = 16;
+	private static final int MAX_OP_LENGTH = Integer.MAX_VALUE >>> 1;
+	/** Copy distances must have a zigzag encoding which fits in a varlen integer. */
+	private static final int MAX_DISTANCE = Integer.MAX_VALUE >>> 1;
+	private static final int HASH_MULTIPLIER = 0x01000193;
+	private static final int HASH_POWER; // HASH_MULTIPLIER^(BLOCK_SIZE-1)
+	static {
+		int p = 1;
+		for (int i=1; i<BLOCK_SIZE; i++) p *= HASH_MULTIPLIER;
+		HASH_POWER = p;
+	}
+
+	//==================== API fulfillment ==============================
+	public int methodNumber() {return DeltaZip.METHOD_BLOCK_COPY;}
+
+	//==================== Uncompression: ========================================
+	public void uncompress(ByteBuffer org, ByteBuffer ref_data, Inflater inflater, OutputStream dst) throws ArchiveIntegrityException, IOException {
+		int literals_length = DZUtil.varlen_decode(org);
+		int literals_comp_size = DZUtil.varlen_decode(org);
+		if (literals_comp_size > org.remaining()) throw new ArchiveIntegrityException("Invalid insert data size: "+literals_comp_size);
+		ExtByteArrayOutputStream literals = new ExtByteArrayOutputStream(literals_length);
+		DZUtil.inflate(inflater, org, literals_comp_size, literals, null);
+		if (literals.size() != literals_length) throw new ArchiveIntegrityException("Insert data has wrong length: "+literals.size()+" vs. "+literals_length);
+		ByteBuffer literal_data = literals.toByteBuffer();
+
+		int literal_pos = 0;
+		long ref_pos = 0;
+		while (org.hasRemaining()) {
+			int header = DZUtil.varlen_decode(org);
+			int length = header >>> 1;
+			if ((header & 1) == 0) { // Insert
+				if (length > literals_length - literal_pos) throw new ArchiveIntegrityException("Insert out of range: "+length);
+				DZUtil.writeSlice(literal_data, literal_pos, length, dst);
+				literal_pos += length;
+			} else { // Copy
+				int zigzag = DZUtil.varlen_decode(org);
+				ref_pos += (zigzag >>> 1) ^ -(zigzag & 1);
+				if (ref_pos < 0 || ref_pos + length > ref_data.limit()) throw new ArchiveIntegrityException("Copy out of range: "+ref_pos+"+"+length);
+				DZUtil.writeSlice(ref_data, (int)ref_pos, length, dst);
+				ref_pos += length;
+			}
+		}
+		if (literal_pos != literals_length) throw new ArchiveIntegrityException("Unused insert data");
+	}
+
+	//==================== Compression: ========================================
+	public void compress(ByteBuffer org, ByteBuffer ref_data, OutputStream dst) throws IOException {
+		compress(org, ref_data, EncodingProfile.MAX, dst);
+	}
+
+	@Override
+	public void compress(ByteBuffer org, ByteBuffer ref_data, EncodingProfile profile, OutputStream dst) throws IOException {
+		Encoder encoder = new Encoder(org, ref_data);
+		encoder.run();
+
+		Deflater deflater = profile.borrowDeflater();
+		ExtByteArrayOutputStream comp_literals = new ExtByteArrayOutputStream();
+		try {
+			ByteBuffer literals = encoder.literals.toByteBuffer();
+			DZUtil.deflate(deflater, literals, literals.remaining(), comp_literals, null);
+		} finally {
+			CodecPool.shared().release(deflater);
+		}
+		DZUtil.varlen_encode(encoder.literals.size(), dst);
+		DZUtil.varlen_encode(comp_literals.size(), dst);
+		comp_literals.writeTo(dst);
+		encoder.ops.writeTo(dst);
+	}
+
+	/** The state of one compress() call. */
+	private static class Encoder {
+		final ByteBuffer org, ref;
+		final int org_start, org_length, ref_length;
+		final ExtByteArrayOutputStream literals = new ExtByteArrayOutputStream();
+		final ExtByteArrayOutputStream ops = new ExtByteArrayOutputStream();
+		/** Reference block number + 1 for each hash bucket; 0 is empty. */
+		int[] table;
+		int hash_shift;
+		/** Where the previous copy ended, in the version and in the reference. */
+		int last_org_end = -1, last_ref_end = 0;
+
+		Encoder(ByteBuffer org, ByteBuffer ref) {
+			this.org = org;
+			this.ref = ref;
+			this.org_start = org.position();
+			this.org_length = org.remaining();
+			this.ref_length = ref.limit();
+		}
+
+		void run() throws IOException {
+			index_reference();
+
+			int literal_start = 0;
+			int pos = 0;
+			int hash = (org_length >= BLOCK_SIZE) ? hash(org, org_start, BLOCK_SIZE) : 0;
+			while (pos + BLOCK_SIZE <= org_length) {
+				int match = find_match(pos, hash);
+				int back = 0;
+				if (match >= 0) { // Extend the match backwards:
+					while (pos - back > literal_start && match - back > 0 &&
+						   org.get(org_start + pos - back - 1) == ref.get(match - back - 1)) {
+						back++;
+					}
+					if (Math.abs((long)(match - back) - last_ref_end) > MAX_DISTANCE) match = -1;
+				}
+				if (match < 0) {
+					if (pos + BLOCK_SIZE < org_length) {
+						hash = (hash - org.get(org_start + pos) * HASH_POWER) * HASH_MULTIPLIER
+							+ org.get(org_start + pos + BLOCK_SIZE);
+					}
+					pos++;
+					continue;
+				}
+
+				// Extend it forwards:
+				int forward = BLOCK_SIZE;
+				while (pos + forward < org_length && match + forward < ref_length &&
+					   org.get(org_start + pos + forward) == ref.get(match + forward)) {
+					forward++;
+				}
+
+				insert(literal_start, pos - back);
+				copy(match - back, back + forward);
+				pos += forward;
+				literal_start = pos;
+				last_org_end = pos;
+				last_ref_end = match + forward;
+				if (pos + BLOCK_SIZE <= org_length) hash = hash(org, org_start + pos, BLOCK_SIZE);
+			}
+			insert(literal_start, org_length);
+		}
+
+		private void index_reference() {
+			int blocks = ref_length / BLOCK_SIZE;
+			int bits = 4;
+			while ((1 << bits) < 2L * blocks && bits < 30) bits++;
+			table = new int[1 << bits];
+			hash_shift = 32 - bits;
+			for (int block = 0; block < blocks; block++) {
+				int bucket = bucket(hash(ref, block * BLOCK_SIZE, BLOCK_SIZE));
+				if (table[bucket] == 0) table[bucket] = block + 1; // Keep the first.
+			}
+		}
+
+		/** @return the reference position matching BLOCK_SIZE bytes at 'pos', or -1. */
+		private int find_match(int pos, int hash) {
+			// Continue along the previous copy, if possible:
+			if (last_org_end >= 0) {
+				long diagonal = last_ref_end + (long)(pos - last_org_end);
+				if (diagonal + BLOCK_SIZE <= ref_length && matches(pos, (int)diagonal)) return (int)diagonal;
+			}
+			int entry = table[bucket(hash)];
+			if (entry == 0) return -1;
+			int candidate = (entry - 1) * BLOCK_SIZE;
+			return matches(pos, candidate) ? candidate : -1;
+		}
+
+		private boolean matches(int pos, int ref_pos) {
+			for (int i=0; i<BLOCK_SIZE; i++) {
+				if (org.get(org_start + pos + i) != ref.get(ref_pos + i)) return false;
+			}
+			return true;
+		}
+
+		private int bucket(int hash) {
+			return (hash * 0x9E3779B1) >>> hash_shift;
+		}
+
+		private void insert(int start, int end) throws IOException {
+			for (int pos = start; pos < end; ) {
+				int length = Math.min(end - pos, MAX_OP_LENGTH);
+				DZUtil.writeSlice(org, org_start + pos, length, literals);
+				DZUtil.varlen_encode(length << 1, ops);
+				pos += length;
+			}
+		}
+
+		private void copy(int ref_pos, int length) throws IOException {
+			while (length > 0) {
+				int part = Math.min(length, MAX_OP_LENGTH);
+				int distance = ref_pos - last_ref_end;
+				DZUtil.varlen_encode((part << 1) | 1, ops);
+				DZUtil.varlen_encode((distance << 1) ^ (distance >> 31), ops);
+				ref_pos += part;
+				last_ref_end = ref_pos;
+				length -= part;
+			}
+		}
+	}
+
+	private static int hash(ByteBuffer data, int start, int length) {
+		int hash = 0;
+		for (int i=0; i<length; i++) hash = hash * HASH_MULTIPLIER + data.get(start + i);
+		return hash;
+	}
+}
@@ -1,6 +1,9 @@
 package com.trifork.deltazip;
 
 import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinPool;
 
 import java.util.zip.Deflater;
 import java.util.zip.Inflater;
@@ -33,6 +36,12 @@ class ChunkedMethod extends DeltaZip.CompressionMethod {
 	 */
 	private static final int LIMIT_SO_DEFLATED_FITS_IN_64KB = 65000;
 
+	/** Chunk method byte and compressed size. */
+	private static final int CHUNK_HEADER_SIZE = 3;
+
+	/** The deflate level at which deflate options are first estimated. */
+	private static final int ESTIMATE_LEVEL = Deflater.BEST_SPEED;
+
 	private static final int CHUNK_METHOD_DEFLATE = 0;
 	private static final int CHUNK_METHOD_PREFIX_COPY = 1;
 	private static final int CHUNK_METHOD_OFFSET_COPY = 2;
@@ -41,9 +50,8 @@ class ChunkedMethod extends DeltaZip.CompressionMethod {
 	public int methodNumber() {return DeltaZip.METHOD_CHUNKED;}
 
 	//==================== Uncompression: ========================================
-	public byte[] uncompress(ByteBuffer org, byte[] ref_data, Inflater inflater) throws ArchiveIntegrityException {
-		ByteArrayOutputStream baos = new ByteArrayOutputStream();
-
+	public void uncompress(ByteBuffer org, ByteBuffer ref_data, Inflater inflater, OutputStream dst) throws ArchiveIntegrityException, IOException {
+		int ref_length = ref_data.limit();
 		int ref_data_offset = 0;
 		while (org.hasRemaining()) {
 // 			System.err.println("DB| uncompress: remaining="+org.remaining());
@@ -59,15 +67,12 @@ class ChunkedMethod extends DeltaZip.CompressionMethod {
 
 				// Determine dictionary:
 				int rskip = spec_to_rskip(rskip_spec);
-				ref_data_offset = Math.min(ref_data_offset+rskip, ref_data.length);
-				int dict_size = Math.min(WINDOW_SIZE, ref_data.length-ref_data_offset);
-				Dictionary dict = new Dictionary(ref_data, ref_data_offset, dict_size);
+				ref_data_offset = Math.min(ref_data_offset+rskip, ref_length);
+				int dict_size = Math.min(WINDOW_SIZE, ref_length-ref_data_offset);
+				Dictionary dict = Dictionary.of(ref_data, ref_data_offset, dict_size);
 
 				// Inflate:
-				int before = baos.size();
-				DZUtil.inflate(inflater, org, comp_data_size, baos, dict);
-				int after = baos.size();
-// 				System.err.println("DB| inflated "+comp_data_size+" to "+(after-before));
+				DZUtil.inflate(inflater, org, comp_data_size, dst, dict);
 			} break;
 			case CHUNK_METHOD_PREFIX_COPY: {
 				if ((meth & 7) != 0) throw new ArchiveIntegrityException("Invalid chunk encoding: "+meth);
@@ -75,7 +80,7 @@ class ChunkedMethod extends DeltaZip.CompressionMethod {
 				if (comp_data_size != 2) throw new ArchiveIntegrityException("Invalid chunk length: "+comp_data_size);
 
 				int copy_length = 1 + org.getChar(); // unsigned short
-				baos.write(ref_data, ref_data_offset, copy_length);
+				DZUtil.writeSlice(ref_data, ref_data_offset, copy_length, dst);
 				ref_data_offset += copy_length;
 			} break;
 			case CHUNK_METHOD_OFFSET_COPY: {
@@ -86,22 +91,43 @@ class ChunkedMethod extends DeltaZip.CompressionMethod {
 				int offset      = 1 + org.getChar(); // unsigned short
 				int copy_length = 1 + org.getChar(); // unsigned short
 				ref_data_offset += offset;
-				baos.write(ref_data, ref_data_offset, copy_length);
+				DZUtil.writeSlice(ref_data, ref_data_offset, copy_length, dst);
 				ref_data_offset += copy_length;
 			} break;
 			default:
 				throw new ArchiveIntegrityException("Invalid chunk encoding: "+meth);
 			}//switch
 		}
-		return baos.toByteArray();
 	}
 
 	//==================== Compression: ========================================
-	public void compress(ByteBuffer org, byte[] ref_data, OutputStream dst) {
+	public void compress(ByteBuffer org, ByteBuffer ref_data, OutputStream dst) {
+		compress(org, ref_data, EncodingProfile.MAX, dst);
+	}
+
+	/** Tries the whole rest of the data and the profile's chunk sizes,
+	 *  each against the profile's reference skips.
+	 *  Unless the profile says otherwise, the deflate options are selected in
+	 *  two stages: all are deflated at ESTIMATE_LEVEL and ranked, and only the
+	 *  best few are deflated again at the profile's level and compared with
+	 *  the copy options by their actual size. */
+	@Override
+	public void compress(ByteBuffer org, ByteBuffer ref_data, EncodingProfile profile, OutputStream dst) {
 		try {
+			ForkJoinPool pool = DeltaZip.getEncoderPool();
 			ArrayList<ChunkOption> chunk_options = new ArrayList<ChunkOption>();
 			DataOutputStream dos = new DataOutputStream(dst);
-			Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION, true);
+
+			// The trials, and their output buffers, are reused from chunk to chunk:
+			ArrayList<DeflateTrial> deflate_trials = new ArrayList<DeflateTrial>();
+			int level = profile.getDeflateLevel();
+			boolean estimate = (level < 0 || level > ESTIMATE_LEVEL) && profile.chunkFinalists() > 0;
+			int[] dsize_specs = profile.dsizeSpecs();
+			for (int i=-1; i<dsize_specs.length; i++)
+				for (int rskip_spec : profile.rskipSpecs()) {
+					int dsize_spec = (i < 0) ? -1 : dsize_specs[i];
+					deflate_trials.add(new DeflateTrial(ref_data, rskip_spec, dsize_spec, profile));
+				}
 
 			int ref_data_offset = 0;
 			while (org.hasRemaining()) {
@@ -113,13 +139,18 @@ class ChunkedMethod extends DeltaZip.CompressionMethod {
 				org.position(save_pos);
 				addIfApplicable(chunk_options, SuffixChunkOption.create(org, ref_data, ref_data_offset));
 				org.position(save_pos);
-				for (int dsize_spec=-1; dsize_spec<3; dsize_spec++)
-					for (int rskip_spec=0; rskip_spec<4; rskip_spec++) {
-						addIfApplicable(chunk_options,
-										DeflateChunkOption.create(org, ref_data, ref_data_offset,
-																  rskip_spec, dsize_spec, deflater));
-						org.position(save_pos);
-					}
+				// The deflate options are independent; evaluate them concurrently.
+				// Results come back in trial order, so the choice is deterministic.
+				for (DeflateTrial trial : deflate_trials) trial.prepare(org.duplicate(), ref_data_offset, estimate ? ESTIMATE_LEVEL : level);
+				List<ChunkOption> deflate_options = DZUtil.invokeAll(pool, deflate_trials);
+				if (estimate) {
+					List<DeflateTrial> finalists = finalists(deflate_trials, deflate_options, profile.chunkFinalists());
+					for (DeflateTrial trial : finalists) trial.prepare(org.duplicate(), ref_data_offset, level);
+					deflate_options = DZUtil.invokeAll(pool, finalists);
+				}
+				for (ChunkOption option : deflate_options) {
+					addIfApplicable(chunk_options, option);
+				}
 
 				// Evaluate chunk options:
 				ChunkOption chunk_option = findBestCandidate(chunk_options);
@@ -131,6 +162,63 @@ class ChunkedMethod extends DeltaZip.CompressionMethod {
 		} catch (IOException ioe) {throw new RuntimeException(ioe);}
 	}
 
+	/** The trials with the 'count' best estimated options, in trial order. */
+	static List<DeflateTrial> finalists(List<DeflateTrial> trials, List<ChunkOption> estimates, int count) {
+		boolean[] chosen = new boolean[trials.size()];
+		for (int n=0; n<count; n++) {
+			int best = -1;
+			for (int i=0; i<chosen.length; i++) {
+				ChunkOption option = estimates.get(i);
+				if (chosen[i] || option == null) continue;
+				if (best < 0 || option.ratio() < estimates.get(best).ratio()) best = i;
+			}
+			if (best < 0) break;
+			chosen[best] = true;
+		}
+		List<DeflateTrial> finalists = new ArrayList<DeflateTrial>(count);
+		for (int i=0; i<chosen.length; i++) {
+			if (chosen[i]) finalists.add(trials.get(i));
+		}
+		return finalists;
+	}
+
+	/** A DeflateChunkOption.create() call, packaged for running on any thread.
+	 *  The compressed data is kept in the trial's own buffer, which is
+	 *  reused for the next chunk once the option has been written.
+	 */
+	static class DeflateTrial implements Callable<ChunkOption> {
+		private final ByteBuffer ref_data;
+		private final int rskip_spec, dsize_spec;
+		private final EncodingProfile profile;
+		private final ExtByteArrayOutputStream comp_buf = new ExtByteArrayOutputStream(CHUNK_SIZE);
+		private ByteBuffer data;
+		private int ref_data_offset, level;
+
+		public DeflateTrial(ByteBuffer ref_data, int rskip_spec, int dsize_spec, EncodingProfile profile) {
+			this.ref_data = ref_data;
+			this.rskip_spec = rskip_spec;
+			this.dsize_spec = dsize_spec;
+			this.profile = profile;
+		}
+
+		public void prepare(ByteBuffer data, int ref_data_offset, int level) {
+			this.data = data;
+			this.ref_data_offset = ref_data_offset;
+			this.level = level;
+		}
+
+		public ChunkOption call() {
+			Deflater deflater = CodecPool.shared().borrowDeflater(level, profile.getDeflateStrategy());
+			try {
+				comp_buf.reset();
+				return DeflateChunkOption.create(data, ref_data, ref_data_offset,
+												 rskip_spec, dsize_spec, deflater, comp_buf);
+			} finally {
+				CodecPool.shared().release(deflater);
+			}
+		}
+	}
+
 	protected static void addIfApplicable(ArrayList<ChunkOption> list, ChunkOption option) {
 		if (option != null) list.add(option);
 	}
@@ -159,9 +247,11 @@ class ChunkedMethod extends DeltaZip.CompressionMethod {
 			this.rskip = rskip;
 		}
 
+		/** The cost per byte covered: the bytes written for the chunk,
+		 *  plus a penalty for each chunk, which favours longer chunks. */
 		public double ratio() {
 			final int OVERHEAD_PENALTY_BYTES = 30;
-			return (comp_size + OVERHEAD_PENALTY_BYTES) / uncomp_size;
+			return (double)(CHUNK_HEADER_SIZE + comp_size + OVERHEAD_PENALTY_BYTES) / uncomp_size;
 		}
 
 		public final void write(DataOutputStream dos) throws IOException {
@@ -182,13 +272,13 @@ class ChunkedMethod extends DeltaZip.CompressionMethod {
 	static class PrefixChunkOption extends ChunkOption {
 		static final int SIZE_LIMIT = (1<<16);
 
-		public static PrefixChunkOption create(ByteBuffer data, byte[] ref_data, int ref_data_offset) {
+		public static PrefixChunkOption create(ByteBuffer data, ByteBuffer ref_data, int ref_data_offset) {
 			int start_pos = data.position();
 			int limit = Math.min(SIZE_LIMIT,
-								 Math.min(data.remaining(), ref_data.length - ref_data_offset));
+								 Math.min(data.remaining(), ref_data.limit() - ref_data_offset));
 			int i = 0;
 			while (i < limit &&
-				   data.get(start_pos + i) == ref_data[ref_data_offset + i]) {
+				   data.get(start_pos + i) == ref_data.get(ref_data_offset + i)) {
 				i++;
 			}
 			int prefix_length = i;
@@ -216,10 +306,11 @@ class ChunkedMethod extends DeltaZip.CompressionMethod {
 	static class SuffixChunkOption extends ChunkOption {
 		static final int SIZE_LIMIT = (1<<16);
 
-		public static SuffixChunkOption create(ByteBuffer data, byte[] ref_data, int ref_data_offset) {
+		public static SuffixChunkOption create(ByteBuffer data, ByteBuffer ref_data, int ref_data_offset) {
 			int end_pos = data.limit();
+			int ref_length = ref_data.limit();
 			int remaining_data = data.remaining();
-			int remaining_ref = ref_data.length - ref_data_offset;
+			int remaining_ref = ref_length - ref_data_offset;
 			int offset = remaining_ref - remaining_data;
 
 			if (offset <= 0 || offset > SIZE_LIMIT) return null;
@@ -227,7 +318,7 @@ class ChunkedMethod extends DeltaZip.CompressionMethod {
 			int limit = Math.min(remaining_data, remaining_ref);
 			int i = 0;
 			while (i < limit &&
-				   data.get(end_pos - 1 - i) == ref_data[ref_data.length - 1 - i]) {
+				   data.get(end_pos - 1 - i) == ref_data.get(ref_length - 1 - i)) {
 				i++;
 			}
 			int suffix_length = i;
@@ -261,11 +352,13 @@ class ChunkedMethod extends DeltaZip.CompressionMethod {
 
 	//========== DeflateChunkOption ====================
 	static class DeflateChunkOption extends ChunkOption {
-		public static DeflateChunkOption create(ByteBuffer data, byte[] ref_data, int ref_data_offset,
-												int rskip_spec, int dsize_spec, Deflater deflater)
+		public static DeflateChunkOption create(ByteBuffer data, ByteBuffer ref_data, int ref_data_offset,
+												int rskip_spec, int dsize_spec, Deflater deflater,
+												ExtByteArrayOutputStream comp_data)
 		{
 			int remaining_data = data.remaining();
-			int remaining_ref = ref_data.length - ref_data_offset;
+			int ref_length = ref_data.limit();
+			int remaining_ref = ref_length - ref_data_offset;
 			boolean all_is_visible =
 				remaining_data <= WINDOW_SIZE &&
 				remaining_ref  <= WINDOW_SIZE;
@@ -279,20 +372,22 @@ class ChunkedMethod extends DeltaZip.CompressionMethod {
 			// Determine dictionary:
 			int rskip = Math.min(spec_to_rskip(rskip_spec), remaining_ref);
 			ref_data_offset += rskip;
-			int dict_size = Math.min(WINDOW_SIZE, ref_data.length-ref_data_offset);
-			Dictionary dict = new Dictionary(ref_data, ref_data_offset, dict_size);
+			int dict_size = Math.min(WINDOW_SIZE, ref_length-ref_data_offset);
+			Dictionary dict = Dictionary.of(ref_data, ref_data_offset, dict_size);
 
 			// Deflate:
-			byte[] comp_data = DZUtil.deflate(deflater, data, uncomp_size, dict);
+			try {
+				DZUtil.deflate(deflater, data, uncomp_size, comp_data, dict);
+			} catch (IOException ioe) {throw new RuntimeException(ioe);} // Can't happen; it's a ByteArrayOutputStream.
 
 			return new DeflateChunkOption(rskip_spec, comp_data, uncomp_size);
 		}
 
 		//----------
 		final int rskip_spec;
-		byte[] comp_data;
-		public DeflateChunkOption(int rskip_spec, byte[] comp_data, int uncomp_size) {
-			super(comp_data.length, uncomp_size, spec_to_rskip(rskip_spec));
+		final ExtByteArrayOutputStream comp_data;
+		public DeflateChunkOption(int rskip_spec, ExtByteArrayOutputStream comp_data, int uncomp_size) {
+			super(comp_data.size(), uncomp_size, spec_to_rskip(rskip_spec));
 			this.rskip_spec = rskip_spec;
 			this.comp_data = comp_data;
 		}
@@ -300,7 +395,7 @@ class ChunkedMethod extends DeltaZip.CompressionMethod {
 		public int chunkMethod() {return (CHUNK_METHOD_DEFLATE << 3) | rskip_spec;}
 
 		public void writeCompData(DataOutputStream dos) throws IOException {
-			dos.write(comp_data);
+			comp_data.writeTo(dos);
 		}
 
 	}
@@ -7,11 +7,12 @@ class ChunkedMiddle2Method extends ChunkedMiddleMethodBase {
 
     public int methodNumber() {return DeltaZip.METHOD_CHUNKED_MIDDLE2;}
 
-    protected byte[] calcRefMiddle(byte[] ref_data, int prefix_len, int suffix_len) {
-        int cut_len = Math.max(0, prefix_len - ChunkedMethod.CHUNK_SIZE);
-        return (cut_len==0)
-                ? ref_data
-                : Arrays.copyOfRange(ref_data, cut_len, ref_data.length);
+    protected int refMiddleStart(int ref_length, int prefix_len, int suffix_len) {
+        return Math.max(0, prefix_len - ChunkedMethod.CHUNK_SIZE); // Cut length
+    }
+
+    protected int refMiddleEnd(int ref_length, int prefix_len, int suffix_len) {
+        return ref_length;
     }
 }
 
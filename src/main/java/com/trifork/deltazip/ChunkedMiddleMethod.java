@@ -16,10 +16,12 @@ class ChunkedMiddleMethod extends ChunkedMiddleMethodBase {
 
     public int methodNumber() {return DeltaZip.METHOD_CHUNKED_MIDDLE;}
 
-    protected byte[] calcRefMiddle(byte[] ref_data, int prefix_len, int suffix_len) {
-        return (prefix_len==0 && suffix_len==0)
-                ? ref_data
-                : Arrays.copyOfRange(ref_data, prefix_len, ref_data.length - suffix_len);
+    protected int refMiddleStart(int ref_length, int prefix_len, int suffix_len) {
+        return prefix_len;
+    }
+
+    protected int refMiddleEnd(int ref_length, int prefix_len, int suffix_len) {
+        return ref_length - suffix_len;
     }
 }
 
@@ -1,6 +1,5 @@
 package com.trifork.deltazip;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.nio.ByteBuffer;
@@ -9,33 +8,42 @@ import java.util.zip.Inflater;
 abstract class ChunkedMiddleMethodBase extends DeltaZip.CompressionMethod {
 	private ChunkedMethod chunked_method = new ChunkedMethod();
 
-	public byte[] uncompress(ByteBuffer org, byte[] ref_data, Inflater inflater) throws ArchiveIntegrityException {
-		ByteArrayOutputStream baos = new ByteArrayOutputStream();
-        try { // For IOException; shouldn't happen
-            int prefix_len = DZUtil.varlen_decode(org);
-            int suffix_len = DZUtil.varlen_decode(org);
+	public void uncompress(ByteBuffer org, ByteBuffer ref_data, Inflater inflater, OutputStream dst) throws ArchiveIntegrityException, IOException {
+		int prefix_len = DZUtil.varlen_decode(org);
+		int suffix_len = DZUtil.varlen_decode(org);
+		int ref_length = ref_data.limit();
+		if (prefix_len + (long)suffix_len > ref_length) throw new ArchiveIntegrityException("Invalid prefix/suffix lengths: "+prefix_len+"/"+suffix_len);
 
-            // Add prefix:
-            baos.write(ref_data, 0, prefix_len);
+		// Add prefix:
+		DZUtil.writeSlice(ref_data, 0, prefix_len, dst);
 
-            // Add middle:
-            byte[] ref_middle = calcRefMiddle(ref_data, prefix_len, suffix_len);
-            byte[] middle = chunked_method.uncompress(org, ref_middle, inflater);
-            baos.write(middle);
+		// Add middle:
+		ByteBuffer ref_middle = calcRefMiddle(ref_data, prefix_len, suffix_len);
+		chunked_method.uncompress(org, ref_middle, inflater, dst);
 
-            // Add suffix:
-            baos.write(ref_data, ref_data.length - suffix_len, suffix_len);
+		// Add suffix:
+		DZUtil.writeSlice(ref_data, ref_length - suffix_len, suffix_len, dst);
+	}
 
-            baos.close();
-            return baos.toByteArray();
-        } catch (IOException ioe) {
-            throw new RuntimeException(ioe);
-        }
+	/** The part of 'ref_data' which the middle is encoded against, as a view; nothing is copied. */
+	protected ByteBuffer calcRefMiddle(ByteBuffer ref_data, int prefix_len, int suffix_len) {
+		int ref_length = ref_data.limit();
+		ByteBuffer middle = ref_data.duplicate();
+		middle.limit(refMiddleEnd(ref_length, prefix_len, suffix_len));
+		middle.position(refMiddleStart(ref_length, prefix_len, suffix_len));
+		return middle.slice();
 	}
 
-    protected abstract byte[] calcRefMiddle(byte[] ref_data, int prefix_len, int suffix_len);
+    /** The part of a reference version of length 'ref_length' which the middle is encoded against: */
+    protected abstract int refMiddleStart(int ref_length, int prefix_len, int suffix_len);
+    protected abstract int refMiddleEnd(int ref_length, int prefix_len, int suffix_len);
+
+    public void compress(ByteBuffer org, ByteBuffer ref_data, OutputStream dst) throws IOException {
+		compress(org, ref_data, EncodingProfile.MAX, dst);
+	}
 
-    public void compress(ByteBuffer org, byte[] ref_data, OutputStream dst) throws IOException {
+	@Override
+    public void compress(ByteBuffer org, ByteBuffer ref_data, EncodingProfile profile, OutputStream dst) throws IOException {
 		int org_pos = org.position();
 		int prefix_len = longest_common_prefix(org, ref_data);
 		org.position(org_pos + prefix_len);
@@ -45,23 +53,23 @@ abstract class ChunkedMiddleMethodBase extends DeltaZip.CompressionMethod {
 
 		DZUtil.varlen_encode(prefix_len, dst);
 		DZUtil.varlen_encode(suffix_len, dst);
-		byte[] ref_middle = calcRefMiddle(ref_data, prefix_len, suffix_len);
+		ByteBuffer ref_middle = calcRefMiddle(ref_data, prefix_len, suffix_len);
 
-		chunked_method.compress(org.slice(), ref_middle, dst);
+		chunked_method.compress(org.slice(), ref_middle, profile, dst);
 	}
 
-    protected static int longest_common_prefix(ByteBuffer a, byte[] b) {
-		int limit = Math.min(a.remaining(), b.length);
+    protected static int longest_common_prefix(ByteBuffer a, ByteBuffer b) {
+		int limit = Math.min(a.remaining(), b.limit());
 		int a_start = a.position();
 		int len = 0;
-		for (; len < limit && a.get(a_start + len) == b[len]; len++) {}
+		for (; len < limit && a.get(a_start + len) == b.get(len); len++) {}
 		return len;
 	}
-	protected static int longest_common_suffix(ByteBuffer a, byte[] b, int b_start) {
-		int limit = Math.min(a.remaining(), b.length - b_start);
-		int a_end = a.limit(), b_end = b.length;
+	protected static int longest_common_suffix(ByteBuffer a, ByteBuffer b, int b_start) {
+		int limit = Math.min(a.remaining(), b.limit() - b_start);
+		int a_end = a.limit(), b_end = b.limit();
 		int len = 0;
-		for (; len < limit && a.get(a_end-1-len) == b[b_end-1-len]; len++) {}
+		for (; len < limit && a.get(a_end-1-len) == b.get(b_end-1-len); len++) {}
 		return len;
 	}
 
@@ -0,0 +1,94 @@
+package com.trifork.deltazip;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import com.jcraft.jzlib.ZStream;
+
+/** Bounded pool of codec contexts (native Deflater/Inflater, jzlib ZStream).
+ *  Users borrow a context, use it, and release it again in a finally block.
+ *  Released contexts are reset and kept for reuse; those which do not fit
+ *  in the pool are ended at once, so native memory is freed deterministically
+ *  rather than by finalization.
+ *  All Deflaters and Inflaters handed out are raw (nowrap) codecs.
+ */
+public class CodecPool {
+    public static final int DEFAULT_CAPACITY =
+        Integer.getInteger("deltazip-codec-pool-size", 2 * Runtime.getRuntime().availableProcessors());
+
+    private static final CodecPool SHARED = new CodecPool(DEFAULT_CAPACITY);
+
+    /** The pool used by the compression methods. */
+    public static CodecPool shared() {return SHARED;}
+
+    //==================== Fields ==========================================
+
+    private final BlockingQueue<Deflater> deflaters;
+    private final BlockingQueue<Inflater> inflaters;
+    private final BlockingQueue<ZStream>  zstreams;
+
+    //==================== API ==========================================
+
+    public CodecPool(int capacity) {
+        if (capacity < 1) throw new IllegalArgumentException("Bad capacity: "+capacity);
+        this.deflaters = new ArrayBlockingQueue<Deflater>(capacity);
+        this.inflaters = new ArrayBlockingQueue<Inflater>(capacity);
+        this.zstreams  = new ArrayBlockingQueue<ZStream>(capacity);
+    }
+
+    /** Borrow a raw deflater set to the given level. */
+    public Deflater borrowDeflater(int level) {
+        return borrowDeflater(level, Deflater.DEFAULT_STRATEGY);
+    }
+
+    /** Borrow a raw deflater set to the given level and strategy. */
+    public Deflater borrowDeflater(int level, int strategy) {
+        Deflater deflater = deflaters.poll();
+        if (deflater == null) deflater = new Deflater(level, true);
+        else deflater.setLevel(level);
+        deflater.setStrategy(strategy);
+        return deflater;
+    }
+
+    public void release(Deflater deflater) {
+        deflater.reset();
+        if (!deflaters.offer(deflater)) deflater.end();
+    }
+
+    /** Borrow a raw inflater. */
+    public Inflater borrowInflater() {
+        Inflater inflater = inflaters.poll();
+        return (inflater != null) ? inflater : new Inflater(true);
+    }
+
+    public void release(Inflater inflater) {
+        inflater.reset();
+        if (!inflaters.offer(inflater)) inflater.end();
+    }
+
+    /** Borrow an uninitialized jzlib stream.
+     *  The borrower is responsible for calling deflateEnd()/inflateEnd()
+     *  before releasing it.
+     */
+    public ZStream borrowZStream() {
+        ZStream z = zstreams.poll();
+        return (z != null) ? z : new ZStream();
+    }
+
+    public void release(ZStream z) {
+        z.next_in = null;
+        z.next_out = null;
+        zstreams.offer(z); // Plain heap object; if the pool is full, just drop it.
+    }
+
+    /** End all pooled native codecs. The pool can still be used afterwards. */
+    public void clear() {
+        Deflater deflater;
+        while ((deflater = deflaters.poll()) != null) deflater.end();
+        Inflater inflater;
+        while ((inflater = inflaters.poll()) != null) inflater.end();
+        zstreams.clear();
+    }
+}
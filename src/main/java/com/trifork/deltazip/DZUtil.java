@@ -2,7 +2,6 @@ package com.trifork.deltazip;
 
 import java.io.IOException;
 import java.io.ByteArrayOutputStream;
-import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.RandomAccessFile;
 import java.io.OutputStream;
@@ -11,18 +10,22 @@ import java.io.InputStream;
 import java.nio.ByteBuffer;
 import java.nio.channels.Channels;
 import java.nio.channels.WritableByteChannel;
+import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
 
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
 
+import java.util.zip.DataFormatException;
 import java.util.zip.Deflater;
-import java.util.zip.DeflaterOutputStream;
 import java.util.zip.Inflater;
-import java.util.zip.InflaterOutputStream;
 import com.jcraft.jzlib.JZlib;
 import com.jcraft.jzlib.ZStream;
-import com.jcraft.jzlib.ZInputStream;
-import com.jcraft.jzlib.ZOutputStream;
 import java.util.zip.Adler32;
 
 public abstract class DZUtil {
@@ -61,7 +64,7 @@ public abstract class DZUtil {
 	}
 
 
-	public static class FileAccess implements DeltaZip.Access {
+	public static class FileAccess implements DeltaZip.WritableAccess {
 		private final FileChannel file;
 
 		public FileAccess(File f) throws IOException {
@@ -83,29 +86,132 @@ public abstract class DZUtil {
 
 		public ByteBuffer pread(long pos, int len) throws IOException {
 // 			System.err.println("DB| pread("+pos+","+len+") of "+file);
-			ByteBuffer res = ByteBuffer.allocate(len);
-			while (res.hasRemaining()) {
-				int r  = file.read(res, pos);
-				if (r<0) throw new IOException("End of file reached");
-				pos += r;
-			}
-			
-			return res;
+			return readFromChannel(file, pos, len);
 		}
 		
 		public void applyAppendSpec(DeltaZip.AppendSpecification spec) throws IOException {
-			long pos = spec.prefix_size;
-			ByteBuffer tail = spec.new_tail;
+			ByteBuffer tail = spec.new_tail.duplicate();
 			long total_length = spec.prefix_size + tail.remaining();
+			pwrite(spec.prefix_size, tail);
+			file.truncate(total_length);
+		}
+
+		public void pwrite(long pos, ByteBuffer data) throws IOException {
+			while (data.hasRemaining()) {
+				pos += file.write(data, pos);
+			}
+		}
+
+		public void truncate(long size) throws IOException {
+			file.truncate(size);
+		}
+
+		public void force() throws IOException {
+			file.force(true); // Including the file size.
+		}
+
+	}
+
+	/** Read-only access through memory mappings of the file.
+	 *  pread() returns read-only slices of the mappings; nothing is copied.
+	 *  The file may grow (e.g. by appends through another Access): when
+	 *  the unmapped tail has grown large enough, it is mapped as a new
+	 *  segment, and reads in a smaller tail, across segments, or beyond
+	 *  what a mapping can cover are read conventionally.
+	 *  The file may also shrink (a streaming add rolls back by truncating):
+	 *  pread() checks the current size, and drops mappings past it. But
+	 *  slices returned before a truncation must not be read after it - the
+	 *  JVM may fail with an InternalError - so use this class only where
+	 *  the file is appended to, or truncated while no reads are in progress.
+	 */
+	public static class MappedFileAccess implements DeltaZip.Access {
+		/** A new segment covers at least this much, and at least 1/2^SEGMENT_GROWTH_SHIFT
+		 *  of the mapped part, so that few mappings cover a file which grows in small steps. */
+		private static final int MIN_SEGMENT_SIZE = 1 << 20;
+		private static final int SEGMENT_GROWTH_SHIFT = 3;
+
+		private final FileChannel file;
+		/** Mappings of consecutive parts of the file, from position 0. Replaced as a whole. */
+		private volatile Segment[] segments = new Segment[0];
+
+		private static class Segment {
+			final long start, end;
+			final MappedByteBuffer map;
+
+			Segment(long start, MappedByteBuffer map) {
+				this.start = start;
+				this.end = start + map.capacity();
+				this.map = map;
+			}
+		}
+
+		public MappedFileAccess(File f) throws IOException {
+			this.file = new RandomAccessFile(f, "r").getChannel();
+			remap(file.size());
+		}
+
+		public void close() throws IOException {
+			segments = new Segment[0]; // The mappings themselves are released when collected.
+			file.close();
+		}
 
-			while (tail.hasRemaining()) {
-				int w = file.write(tail, pos);
-				pos += w;
+		public long getSize() throws IOException {
+			return file.size();
+		}
+
+		public ByteBuffer pread(long pos, int len) throws IOException {
+			if (pos < 0 || len < 0) throw new IOException("Bad position");
+			long size = file.size();
+			if (pos + len > size) throw new IOException("End of file reached");
+			Segment[] cur = segments;
+			long mapped = mapped_end(cur);
+			if (mapped > size || size - mapped >= growth_threshold(mapped)) cur = remap(size);
+
+			for (int i = cur.length-1; i >= 0; i--) {
+				Segment seg = cur[i];
+				if (pos < seg.start) continue;
+				if (pos + len > seg.end) break; // Across segments, or in the unmapped tail.
+				ByteBuffer res = seg.map.duplicate();
+				res.limit((int)(pos - seg.start) + len).position((int)(pos - seg.start));
+				return res.slice().asReadOnlyBuffer();
 			}
-			if (pos != total_length) throw new IOException("Internal error");
-			file.truncate(pos);
+			return readFromChannel(file, pos, len);
 		}
 
+		/** Drop the mappings past 'size', and map the tail up to it if it is large enough. */
+		private synchronized Segment[] remap(long size) throws IOException {
+			List<Segment> kept = new ArrayList<Segment>();
+			for (Segment seg : segments) {
+				if (seg.end <= size) kept.add(seg);
+			}
+			long mapped = kept.isEmpty() ? 0 : kept.get(kept.size()-1).end;
+			while (size - mapped > 0 && size - mapped >= growth_threshold(mapped)) {
+				long length = Math.min(size - mapped, Integer.MAX_VALUE);
+				kept.add(new Segment(mapped, file.map(FileChannel.MapMode.READ_ONLY, mapped, length)));
+				mapped += length;
+			}
+			Segment[] res = kept.toArray(new Segment[kept.size()]);
+			segments = res;
+			return res;
+		}
+
+		private static long mapped_end(Segment[] segments) {
+			return segments.length == 0 ? 0 : segments[segments.length-1].end;
+		}
+
+		private static long growth_threshold(long mapped) {
+			return (mapped == 0) ? 1 : Math.max(MIN_SEGMENT_SIZE, mapped >>> SEGMENT_GROWTH_SHIFT);
+		}
+	}
+
+	static ByteBuffer readFromChannel(FileChannel file, long pos, int len) throws IOException {
+		ByteBuffer res = ByteBuffer.allocate(len);
+		while (res.hasRemaining()) {
+			int r  = file.read(res, pos);
+			if (r<0) throw new IOException("End of file reached");
+			pos += r;
+		}
+		return res;
 	}
 
 	//==================== ByteBuffer utilities ====================
@@ -137,8 +243,22 @@ public abstract class DZUtil {
 		return buf;
 	}
 
+	/** Checksum of all of 'data' (from position 0 to the limit). */
 	public static int computeAdler32(ByteBuffer data) {
-		return computeAdler32(allToByteArray(data)); // Oh, the copying.
+		Adler32 acc = new Adler32();
+		if (data.hasArray()) {
+			acc.update(data.array(), data.arrayOffset(), data.limit());
+		} else { // Read-only or direct; go through a scratch window.
+			ByteBuffer src = data.duplicate();
+			src.position(0);
+			byte[] scratch = IN_SCRATCH.get();
+			while (src.hasRemaining()) {
+				int n = Math.min(scratch.length, src.remaining());
+				src.get(scratch, 0, n);
+				acc.update(scratch, 0, n);
+			}
+		}
+		return (int)acc.getValue();
 	}
 	public static int computeAdler32(byte[] data) {
 		Adler32 acc = new Adler32();
@@ -184,6 +304,30 @@ public abstract class DZUtil {
         return (int) acc;
     }
 
+    //==================== Task utilities ====================
+
+	/** Run a number of independent tasks, in parallel if a pool is given.
+	 *  The results are returned in task order.
+	 */
+	public static <T> List<T> invokeAll(ForkJoinPool pool, List<? extends Callable<T>> tasks) {
+		final List<ForkJoinTask<T>> fj_tasks = new ArrayList<ForkJoinTask<T>>(tasks.size());
+		for (Callable<T> task : tasks) fj_tasks.add(ForkJoinTask.adapt(task));
+
+		if (pool == null || fj_tasks.size() <= 1) {
+			for (ForkJoinTask<T> task : fj_tasks) task.invoke();
+		} else if (ForkJoinTask.getPool() == pool) { // Nested; fork within the pool.
+			ForkJoinTask.invokeAll(fj_tasks);
+		} else { // From outside the pool, which may be from within another one.
+			pool.invoke(new RecursiveAction() {
+				protected void compute() {ForkJoinTask.invokeAll(fj_tasks);}
+			});
+		}
+
+		List<T> results = new ArrayList<T>(fj_tasks.size());
+		for (ForkJoinTask<T> task : fj_tasks) results.add(task.join());
+		return results;
+	}
+
     //==================== Deflate / Inflate ====================
 
 	public static class Dictionary {
@@ -200,34 +344,47 @@ public abstract class DZUtil {
 		public byte[] withZeroOffset() {
 			return off==0? data : Arrays.copyOfRange(data, off, off+len);
 		}
-	}
-	
-	static class MyZOutputStream extends ZOutputStream {
-		public MyZOutputStream(OutputStream out, int level, boolean nowrap) {
-			super(out, level, nowrap);
-		}
-		public void setDeflateDict(Dictionary dict) {
-			checkOK(z,z.deflateSetDictionary(dict.withZeroOffset(), dict.len));
-		}
-		public String stats() {
-			return "Stats: {in="+z.total_in+", out="+z.total_out+"}";
+
+		/** A dictionary of bytes off..off+len of 'src' (counting from index 0).
+		 *  Array-backed buffers are used in place; others (e.g. mapped
+		 *  regions) are copied into a per-thread scratch array, which is
+		 *  valid until the next call on the same thread.
+		 */
+		public static Dictionary of(ByteBuffer src, int off, int len) {
+			if (off<0 || len < 0 || off+len > src.limit()) throw new IllegalArgumentException("Bad dictionary slice: off="+off+" len="+len+" bytes="+src.limit());
+			if (src.hasArray()) return new Dictionary(src.array(), src.arrayOffset() + off, len);
+
+			byte[] scratch = DICT_SCRATCH.get();
+			if (scratch.length < len) DICT_SCRATCH.set(scratch = new byte[len]);
+			ByteBuffer window = src.duplicate();
+			window.position(off);
+			window.get(scratch, 0, len);
+			return new Dictionary(scratch, 0, len);
 		}
 	}
 
-	static class MyZInputStream extends ZInputStream {
-		public MyZInputStream(InputStream in, boolean nowrap) {
-			super(in, nowrap);
-		}
-		public void setInflateDict(Dictionary dict) {
-// 			DeltaZip.dump("MyZInputStream.setInflateDict(): len="+dict.len, dict.withZeroOffset());
-// 			z.istate.mode = com.jcraft.jzlib.Inflate.DICT0;
-			checkOK(z,z.inflateSetDictionary(dict.withZeroOffset(), dict.len));
-		}
-		public String stats() {
-			return "Stats: {in="+z.total_in+", out="+z.total_out+"}";
+	private static final ThreadLocal<byte[]> DICT_SCRATCH = new ThreadLocal<byte[]>() {
+		protected byte[] initialValue() {return new byte[ChunkedMethod.WINDOW_SIZE];}
+	};
+
+	/** Write bytes off..off+len of 'src' (counting from index 0) to 'dst'. */
+	public static void writeSlice(ByteBuffer src, int off, int len, OutputStream dst) throws IOException {
+		if (off<0 || len < 0 || off+len > src.limit()) throw new ArchiveIntegrityException("Reference out of range: off="+off+" len="+len+" bytes="+src.limit());
+		if (src.hasArray()) {
+			dst.write(src.array(), src.arrayOffset() + off, len);
+		} else {
+			byte[] buf = OUT_SCRATCH.get();
+			ByteBuffer window = src.duplicate();
+			window.position(off);
+			while (len > 0) {
+				int n = Math.min(len, buf.length);
+				window.get(buf, 0, n);
+				dst.write(buf, 0, n);
+				len -= n;
+			}
 		}
 	}
-
+	
 	static void checkOK(ZStream z, int errcode) {
 		if (errcode != JZlib.Z_OK) {
 			throw new RuntimeException("JZlib operation failed: "+z.msg+" (errcode="+errcode+")");
@@ -241,32 +398,33 @@ public abstract class DZUtil {
             baos.close();
             return baos.toByteArray();
         } catch (IOException ioe) {
-            throw new ArchiveIntegrityException(ioe);
+            throw new RuntimeException("Can't happen: "+ioe);
         }
 	}
 
-	public static void inflate(Inflater inflater, ByteBuffer src, int comp_length, ByteArrayOutputStream dst, Dictionary dict) throws ArchiveIntegrityException {
-        try {
-            if (dict == null && ! DeltaZip.USE_JZLIB_ALWAYS) {
-                // In this case, we can use the fast native inflater (not jzlib)
-                inflater.reset();
-                InflaterOutputStream zos = new InflaterOutputStream(dst, inflater);
-
-                if (dict != null) inflater.setDictionary(dict.data, dict.off, dict.len);
-
-                writeBufferTo(takeStart(src, comp_length), zos);
-                zos.finish();
-            } else {
-                // Use jzlib for inflation.
-
-                // Apparently this goes against the grain... so we need to copy.
-                ByteArrayInputStream src_str = new ByteArrayInputStream(remainingToByteArray(takeStart(src, comp_length)));
-                MyZInputStream zis = new MyZInputStream(src_str, true);
-                if (dict != null) zis.setInflateDict(dict);
-                transfer(zis, dst);
+	/** Which zlib implementation inflate() and deflate() use. Initialized from
+	 *  DeltaZip.USE_JZLIB_ALWAYS and DeltaZip.JZLIB_CROSSCHECK; tests switch them. */
+	static volatile boolean use_jzlib_always = DeltaZip.USE_JZLIB_ALWAYS;
+	static volatile boolean jzlib_crosscheck = DeltaZip.JZLIB_CROSSCHECK;
+
+	/** Inflate 'comp_length' bytes of 'src' into 'dst'.
+	 *  Corrupt input gives an ArchiveIntegrityException; IOExceptions come from 'dst'.
+	 */
+	public static void inflate(Inflater inflater, ByteBuffer src, int comp_length, OutputStream dst, Dictionary dict) throws ArchiveIntegrityException, IOException {
+        ByteBuffer comp_data = takeStart(src, comp_length);
+        if (use_jzlib_always) {
+            jzlibInflate(comp_data, dst, dict);
+        } else if (jzlib_crosscheck) {
+            ByteArrayOutputStream native_out = new ByteArrayOutputStream();
+            ByteArrayOutputStream jzlib_out = new ByteArrayOutputStream();
+            nativeInflate(inflater, comp_data.duplicate(), native_out, dict);
+            jzlibInflate(comp_data, jzlib_out, dict);
+            if (!Arrays.equals(native_out.toByteArray(), jzlib_out.toByteArray())) {
+                throw new ArchiveIntegrityException("Cross-check failed: native and jzlib inflation disagree");
             }
-        } catch (IOException ioe) {
-            throw new ArchiveIntegrityException(ioe);
+            native_out.writeTo(dst);
+        } else {
+            nativeInflate(inflater, comp_data, dst, dict);
         }
 	}
 
@@ -280,20 +438,189 @@ public abstract class DZUtil {
 	}
 
 	public static void deflate(Deflater deflater, ByteBuffer src, int uncomp_length, OutputStream dst, Dictionary dict) throws IOException {
-        if (dict == null && ! DeltaZip.USE_JZLIB_ALWAYS) {
-            // In this case, we can use the fast native inflater (not jzlib)
-            deflater.reset();
-            DeflaterOutputStream zos = new DeflaterOutputStream(dst, deflater);
-            writeBufferTo(takeStart(src, uncomp_length), zos);
-            zos.finish();
+        ByteBuffer data = takeStart(src, uncomp_length);
+        if (use_jzlib_always) {
+            jzlibDeflate(data, dst, dict);
+        } else if (jzlib_crosscheck) {
+            // The compressed bytes may legitimately differ between zlib versions;
+            // what must hold is that jzlib can read what the native deflater wrote.
+            ByteArrayOutputStream native_out = new ByteArrayOutputStream();
+            nativeDeflate(deflater, data.duplicate(), native_out, dict);
+            ByteArrayOutputStream roundtrip = new ByteArrayOutputStream();
+            jzlibInflate(ByteBuffer.wrap(native_out.toByteArray()), roundtrip, dict);
+            if (!ByteBuffer.wrap(roundtrip.toByteArray()).equals(data)) {
+                throw new RuntimeException("Cross-check failed: jzlib does not inflate native deflate output to the original");
+            }
+            native_out.writeTo(dst);
         } else {
-            MyZOutputStream zos = new MyZOutputStream(dst, JZlib.Z_BEST_COMPRESSION, true);
-            if (dict != null) zos.setDeflateDict(dict);
-            writeBufferTo(takeStart(src, uncomp_length), zos);
-            zos.finish();
+            nativeDeflate(deflater, data, dst, dict);
         }
     }
 
+	//==========  Native zlib ====================
+
+	private static final int NATIVE_BUFFER_SIZE = 8192;
+
+	/** Per-thread scratch arrays for moving data in and out of codecs.
+	 *  Each use completes before the thread can start another. */
+	private static final ThreadLocal<byte[]> IN_SCRATCH = new ThreadLocal<byte[]>() {
+		protected byte[] initialValue() {return new byte[NATIVE_BUFFER_SIZE];}
+	};
+	private static final ThreadLocal<byte[]> OUT_SCRATCH = new ThreadLocal<byte[]>() {
+		protected byte[] initialValue() {return new byte[NATIVE_BUFFER_SIZE];}
+	};
+
+	/** Inflate all of 'src' with the JDK inflater.
+	 *  The dictionary is given to zlib as a slice; raw streams accept it before any input.
+	 */
+	private static void nativeInflate(Inflater inflater, ByteBuffer src, OutputStream dst, Dictionary dict) throws IOException {
+		inflater.reset();
+		if (dict != null) inflater.setDictionary(dict.data, dict.off, dict.len);
+
+		InputFeeder feeder = new InputFeeder(src);
+		byte[] buf = OUT_SCRATCH.get();
+		try {
+			while (!inflater.finished()) {
+				if (inflater.needsInput()) {
+					if (!feeder.feed(inflater)) throw new ArchiveIntegrityException("Compressed data is truncated");
+				}
+				int n = inflater.inflate(buf);
+				dst.write(buf, 0, n);
+			}
+		} catch (DataFormatException dfe) {
+			throw new ArchiveIntegrityException(dfe);
+		}
+	}
+
+	/** Deflate all of 'src' with the JDK deflater, at whatever level it is set to. */
+	private static void nativeDeflate(Deflater deflater, ByteBuffer src, OutputStream dst, Dictionary dict) throws IOException {
+		deflater.reset();
+		if (dict != null) deflater.setDictionary(dict.data, dict.off, dict.len);
+
+		InputFeeder feeder = new InputFeeder(src);
+		ExtByteArrayOutputStream direct_dst =
+			(dst instanceof ExtByteArrayOutputStream) ? (ExtByteArrayOutputStream)dst : null;
+		byte[] buf = OUT_SCRATCH.get();
+		while (!deflater.finished()) {
+			if (deflater.needsInput() && !feeder.feed(deflater)) deflater.finish();
+			if (direct_dst != null) { // Deflate right into the destination.
+				int pos = direct_dst.size();
+				byte[] dst_buf = direct_dst.reserve(NATIVE_BUFFER_SIZE);
+				direct_dst.advance(deflater.deflate(dst_buf, pos, dst_buf.length - pos));
+			} else {
+				int n = deflater.deflate(buf);
+				dst.write(buf, 0, n);
+			}
+		}
+	}
+
+	/** Hands the contents of a ByteBuffer to a zlib codec.
+	 *  Array-backed buffers are handed over in one piece without copying;
+	 *  others (read-only and direct buffers) are passed through a small scratch array.
+	 */
+	private static class InputFeeder {
+		private final ByteBuffer src;
+		private byte[] scratch;
+
+		public InputFeeder(ByteBuffer src) {this.src = src;}
+
+		private int next(int max) {
+			if (scratch == null) scratch = IN_SCRATCH.get();
+			int n = Math.min(Math.min(max, scratch.length), src.remaining());
+			src.get(scratch, 0, n);
+			return n;
+		}
+
+		/** @return false if there is no more input. */
+		public boolean feed(Deflater deflater) {
+			if (!src.hasRemaining()) return false;
+			if (src.hasArray()) {
+				deflater.setInput(src.array(), src.arrayOffset() + src.position(), src.remaining());
+				src.position(src.limit());
+			} else {
+				int n = next(NATIVE_BUFFER_SIZE);
+				deflater.setInput(scratch, 0, n);
+			}
+			return true;
+		}
+
+		/** @return false if there is no more input. */
+		public boolean feed(Inflater inflater) {
+			if (!src.hasRemaining()) return false;
+			if (src.hasArray()) {
+				inflater.setInput(src.array(), src.arrayOffset() + src.position(), src.remaining());
+				src.position(src.limit());
+			} else {
+				int n = next(NATIVE_BUFFER_SIZE);
+				inflater.setInput(scratch, 0, n);
+			}
+			return true;
+		}
+	}
+
+	//==========  jzlib ====================
+	// Used when deltazip-use-jzlib-always is set, and for cross-checking.
+
+	private static void jzlibInflate(ByteBuffer src, OutputStream dst, Dictionary dict) throws IOException {
+		ZStream z = CodecPool.shared().borrowZStream();
+		try {
+			checkOK(z, z.inflateInit(true));
+			if (dict != null) checkOK(z, z.inflateSetDictionary(dict.withZeroOffset(), dict.len));
+			setInput(z, src);
+
+			byte[] buf = new byte[JZLIB_BUFFER_SIZE];
+			int err;
+			do {
+				z.next_out = buf; z.next_out_index = 0; z.avail_out = buf.length;
+				err = z.inflate(JZlib.Z_NO_FLUSH);
+				// Raw streams may not signal their end before all input is consumed (cf. ZInputStream):
+				if (err == JZlib.Z_BUF_ERROR && z.avail_in == 0) err = JZlib.Z_STREAM_END;
+				if (err != JZlib.Z_OK && err != JZlib.Z_STREAM_END) {
+					throw new ArchiveIntegrityException("Inflation failed: "+z.msg+" (errcode="+err+")");
+				}
+				dst.write(buf, 0, buf.length - z.avail_out);
+			} while (err != JZlib.Z_STREAM_END);
+		} finally {
+			z.inflateEnd();
+			CodecPool.shared().release(z);
+		}
+	}
+
+	private static void jzlibDeflate(ByteBuffer src, OutputStream dst, Dictionary dict) throws IOException {
+		ZStream z = CodecPool.shared().borrowZStream();
+		try {
+			checkOK(z, z.deflateInit(JZlib.Z_BEST_COMPRESSION, true));
+			if (dict != null) checkOK(z, z.deflateSetDictionary(dict.withZeroOffset(), dict.len));
+			setInput(z, src);
+
+			byte[] buf = new byte[JZLIB_BUFFER_SIZE];
+			int err;
+			do {
+				z.next_out = buf; z.next_out_index = 0; z.avail_out = buf.length;
+				err = z.deflate(JZlib.Z_FINISH);
+				if (err != JZlib.Z_OK && err != JZlib.Z_STREAM_END) checkOK(z, err);
+				dst.write(buf, 0, buf.length - z.avail_out);
+			} while (err != JZlib.Z_STREAM_END);
+		} finally {
+			z.deflateEnd();
+			CodecPool.shared().release(z);
+		}
+	}
+
+	private static final int JZLIB_BUFFER_SIZE = 4096;
+
+	/** Point the input of a jzlib stream at the remaining contents of 'data'. */
+	private static void setInput(ZStream z, ByteBuffer data) {
+		if (data.hasArray()) {
+			z.next_in = data.array();
+			z.next_in_index = data.arrayOffset() + data.position();
+		} else { // jzlib wants an array.
+			z.next_in = remainingToByteArray(data.duplicate());
+			z.next_in_index = 0;
+		}
+		z.avail_in = data.remaining();
+	}
+
 	/** Create a ByteBuffer which contains the 'length' first bytes of 'org'. Advance 'org' with 'length' bytes. */
 	public static ByteBuffer takeStart(ByteBuffer org, int length) {
 		ByteBuffer res = org.duplicate();
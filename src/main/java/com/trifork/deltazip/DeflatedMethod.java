@@ -12,13 +12,22 @@ class DeflatedMethod extends DeltaZip.CompressionMethod {
 	//==================== API fulfillment ==============================
 	public int methodNumber() {return DeltaZip.METHOD_DEFLATED;}
 
-	public byte[] uncompress(ByteBuffer org, byte[] _ref_data, Inflater inflater) throws ArchiveIntegrityException {
-		return DZUtil.inflate(inflater, org, org.remaining(), null);
+	public void uncompress(ByteBuffer org, ByteBuffer _ref_data, Inflater inflater, OutputStream dst) throws ArchiveIntegrityException, IOException {
+		DZUtil.inflate(inflater, org, org.remaining(), dst, null);
 	}
 
-	public void compress(ByteBuffer org, byte[] _ref_data, OutputStream dst) throws IOException {
-		Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION, true);
-		DZUtil.deflate(deflater, org, org.remaining(), dst, null);
+	public void compress(ByteBuffer org, ByteBuffer ref_data, OutputStream dst) throws IOException {
+		compress(org, ref_data, EncodingProfile.MAX, dst);
+	}
+
+	@Override
+	public void compress(ByteBuffer org, ByteBuffer _ref_data, EncodingProfile profile, OutputStream dst) throws IOException {
+		Deflater deflater = profile.borrowDeflater();
+		try {
+			DZUtil.deflate(deflater, org, org.remaining(), dst, null);
+		} finally {
+			CodecPool.shared().release(deflater);
+		}
 	}
 }
 
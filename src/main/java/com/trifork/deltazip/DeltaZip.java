@@ -1,69 +1,228 @@
 package com.trifork.deltazip;
 
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.ConcurrentModificationException;
 import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.Adler32;
+import java.util.zip.CheckedOutputStream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
 import java.util.zip.Inflater;
 
+import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.io.ByteArrayOutputStream;
 import java.io.OutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 
 import static com.trifork.deltazip.ExtByteArrayOutputStream.Gap;
 
+/** A handle on a DeltaZip archive.
+ *  A handle may be shared between threads: any number of them may read
+ *  (iterate, get or write versions) while one adds versions, as long as
+ *  all writes go through the handle, i.e. through add(ReadableByteChannel, List)
+ *  or applyAppendSpec(). Each iterator sees the archive as it was when the
+ *  iterator was created.
+ *  Iterators themselves are for use by one thread.
+ */
 public class DeltaZip {
 
 	//==================== Constants =======================================
 
     public static final boolean USE_JZLIB_ALWAYS = System.getProperty("deltazip-use-jzlib-always") != null;
+    /** Run jzlib alongside the native zlib and fail on any disagreement. For testing. */
+    public static final boolean JZLIB_CROSSCHECK = System.getProperty("deltazip-jzlib-crosscheck") != null;
+    /** Number of threads used for independent encoding trials. 1 means encode on the calling thread only. */
+    public static final int DEFAULT_PARALLELISM =
+        Integer.getInteger("deltazip-parallelism", Runtime.getRuntime().availableProcessors());
 
 	public static final int DELTAZIP_MAGIC_HEADER = 0xCEB47A00;
 	public static final int MACIC_MASK = 0xFFFFFF00;
 	public static final int VERSION_MASK = 0xFF;
 	public static final int VERSION_10 = 0x10;
 	public static final int VERSION_11 = 0x11;
+	public static final int VERSION_12 = 0x12;
+	public static final int VERSION_13 = 0x13;
+	/** The format of archives created by add() on an empty file.
+	 *  Version 11 by default, for compatibility with older readers;
+	 *  version 12 is needed for envelopes of 128 MB or more, and
+	 *  version 13 for the FastLZ snapshot method and the block-copy and
+	 *  long-range LZ delta methods, which are not used in archives of
+	 *  earlier formats. */
+	public static final int DEFAULT_NEW_ARCHIVE_FORMAT = Integer.getInteger("deltazip-new-archive-format", VERSION_11);
 	public static final int FILE_HEADER_LENGTH = 4;
 
 	// Snapshot methods (0-3):
 	public static final int METHOD_UNCOMPRESSED   = 0;
 	public static final int METHOD_DEFLATED       = 1;
+	public static final int METHOD_FAST_LZ        = 2;
 	// Delta methods (4-15):
 	public static final int METHOD_CHUNKED        = 4;
     public static final int METHOD_CHUNKED_MIDDLE = 5;
     public static final int METHOD_CHUNKED_MIDDLE2= 7;
+    public static final int METHOD_BLOCK_COPY     = 8;
+    public static final int METHOD_LONG_RANGE_LZ  = 9;
+	/** The method used for snapshots by add(), unless set with setSnapshotMethod(). */
+	public static final int DEFAULT_SNAPSHOT_METHOD = Integer.getInteger("deltazip-snapshot-method", METHOD_DEFLATED);
 
 
     private static int METHOD_BIT_POSITION = 28;
     private static int METADATA_FLAG_BIT_POSITION = 27;
+	/** The compression methods are stateless singletons. Codec state is
+	 *  borrowed from CodecPool.shared() for the duration of each call, so
+	 *  the instances are safe for concurrent encoding and decoding. */
 	protected static final CompressionMethod[] COMPRESSION_METHODS;
 	protected static final CompressionMethod UNCOMPRESSED_INSTANCE = new UncompressedMethod();
 	protected static final CompressionMethod DEFLATED_INSTANCE = new DeflatedMethod();
+	protected static final CompressionMethod FAST_LZ_INSTANCE = new FastLZMethod();
 	protected static final CompressionMethod CHUNKED_INSTANCE = new ChunkedMethod();
 	protected static final CompressionMethod CHUNKED_MIDDLE_INSTANCE = new ChunkedMiddleMethod();
 	protected static final CompressionMethod CHUNKED_MIDDLE2_INSTANCE = new ChunkedMiddle2Method();
+	protected static final CompressionMethod BLOCK_COPY_INSTANCE = new BlockCopyMethod();
+	protected static final CompressionMethod LONG_RANGE_LZ_INSTANCE = new LongRangeLZMethod();
 	static {
 		COMPRESSION_METHODS = new CompressionMethod[16];
 		insertCM(COMPRESSION_METHODS, UNCOMPRESSED_INSTANCE);
 		insertCM(COMPRESSION_METHODS, DEFLATED_INSTANCE);
+		insertCM(COMPRESSION_METHODS, FAST_LZ_INSTANCE);
 		insertCM(COMPRESSION_METHODS, CHUNKED_INSTANCE);
         insertCM(COMPRESSION_METHODS, CHUNKED_MIDDLE_INSTANCE);
         insertCM(COMPRESSION_METHODS, CHUNKED_MIDDLE2_INSTANCE);
+        insertCM(COMPRESSION_METHODS, BLOCK_COPY_INSTANCE);
+        insertCM(COMPRESSION_METHODS, LONG_RANGE_LZ_INSTANCE);
     }
 	private static void insertCM(CompressionMethod[] table, CompressionMethod cm) {
 		table[cm.methodNumber()] = cm;
 	}
 	
 
+	private static volatile ForkJoinPool encoder_pool =
+		DEFAULT_PARALLELISM > 1 ? new ForkJoinPool(DEFAULT_PARALLELISM) : null;
+
+	/** Sets the pool on which independent encoding trials (the competing
+	 *  delta methods, and the chunk options within each) are evaluated.
+	 *  null means that everything is done on the calling thread.
+	 *  The choice does not affect the encoded output.
+	 */
+	public static void setEncoderPool(ForkJoinPool pool) {
+		encoder_pool = pool;
+	}
+
+	public static ForkJoinPool getEncoderPool() {
+		return encoder_pool;
+	}
+
 	//==================== Fields ==========================================
 
 	private final Access access;
-    private FormatVersion format_version;
+    private volatile FormatVersion format_version;
+    private volatile KeyframePolicy keyframe_policy = KeyframePolicy.NONE;
+    private volatile int spill_threshold = SpillBuffer.DEFAULT_THRESHOLD;
+    private volatile FormatVersion new_archive_format = FormatVersion.fromNumber(DEFAULT_NEW_ARCHIVE_FORMAT);
+    private volatile VersionCache version_cache;
+    private volatile Object archive_id;
+    private volatile int snapshot_method = check_snapshot_method(DEFAULT_SNAPSHOT_METHOD);
+    private volatile EncodingProfile encoding_profile = EncodingProfile.DEFAULT;
+
+    /** Held for writing while the tail of the archive is replaced,
+     *  and for reading while the latest envelope is read. */
+    private final ReadWriteLock tail_lock = new ReentrantReadWriteLock();
+    /** Number of tail replacements made through this handle. Guarded by tail_lock. */
+    private long tail_generation;
+    /** Serializes writers. */
+    private final Object writer_lock = new Object();
 
 	//==================== API ==========================================
 	
 	public DeltaZip(Access access) throws IOException {
 		this.access = access;
 		this.format_version = check_magic_header();
+		if (new_archive_format == null) throw new IllegalArgumentException("Unknown format version: "+DEFAULT_NEW_ARCHIVE_FORMAT);
+	}
+
+	/** Sets the format version to use if the archive is empty, i.e. is created by the next add(). */
+	public void setNewArchiveFormat(FormatVersion format) {
+		if (format == null) throw new NullPointerException();
+		this.new_archive_format = format;
+	}
+
+	public FormatVersion getFormatVersion() {
+		return format_version;
+	}
+
+	/** Sets the policy for keeping older versions as snapshots when adding. */
+	public void setKeyframePolicy(KeyframePolicy keyframe_policy) {
+		if (keyframe_policy == null) throw new NullPointerException();
+		this.keyframe_policy = keyframe_policy;
+	}
+
+	/** Sets the method for the snapshots written by add() and writeVersion():
+	 *  METHOD_DEFLATED (the default) for the smallest archive, or
+	 *  METHOD_FAST_LZ for faster reading of the latest version at some cost
+	 *  in size. Existing envelopes are not affected; archives may mix methods.
+	 *  METHOD_FAST_LZ needs format version 13; in archives of earlier
+	 *  formats, snapshots are deflated.
+	 */
+	public void setSnapshotMethod(int method) {
+		this.snapshot_method = check_snapshot_method(method);
+	}
+
+	static int check_snapshot_method(int method) {
+		CompressionMethod cm = (method >= 0 && method < COMPRESSION_METHODS.length) ? COMPRESSION_METHODS[method] : null;
+		if (cm == null || !is_snapshot_method(method)) throw new IllegalArgumentException("Not a snapshot method: "+method);
+		return method;
+	}
+
+	/** The snapshot method, if the archive format allows it; otherwise METHOD_DEFLATED. */
+	private CompressionMethod snapshot_method() {
+		int method = snapshot_method;
+		return COMPRESSION_METHODS[format_version.supportsMethod(method) ? method : METHOD_DEFLATED];
+	}
+
+	/** Sets the effort spent on encoding versions added from now on. */
+	public void setEncodingProfile(EncodingProfile profile) {
+		if (profile == null) throw new NullPointerException();
+		this.encoding_profile = profile;
+	}
+
+	public EncodingProfile getEncodingProfile() {
+		return encoding_profile;
+	}
+
+	/** Sets the size above which writeVersion() keeps intermediate versions
+	 *  in temporary files rather than on the heap. */
+	public void setSpillThreshold(int spill_threshold) {
+		if (spill_threshold < 0) throw new IllegalArgumentException("Negative threshold: "+spill_threshold);
+		this.spill_threshold = spill_threshold;
+	}
+
+	/** Sets a cache of decoded versions to consult and fill when reading,
+	 *  or null for none. The archive is identified in the cache by its Access.
+	 */
+	public void setVersionCache(VersionCache cache) {
+		setVersionCache(cache, access);
+	}
+
+	/** Sets a cache of decoded versions, identifying the archive in it by
+	 *  'archive_id' (e.g. its canonical path), so that handles on the same
+	 *  archive can share entries.
+	 *  Only delta versions are cached; snapshots are cheap to decode.
+	 */
+	public void setVersionCache(VersionCache cache, Object archive_id) {
+		if (archive_id == null) throw new NullPointerException();
+		this.archive_id = archive_id;
+		this.version_cache = cache;
 	}
 
 	/** Computes an AppendSpecification for adding a version.
@@ -100,30 +259,185 @@ public class DeltaZip {
 	public AppendSpecification add(Iterator<Version> versions_to_add) throws IOException {
 		ExtByteArrayOutputStream baos = new ExtByteArrayOutputStream();
 
-        VersionIterator iter = backwardsIterator();
+        BackwardsIterator iter = new BackwardsIterator();
+        long base_size = iter.view.size;
         Version prev_version = iter.hasNext() ? iter.next() : null;
         long current_pos = iter.getCurrentPosition();
 
         // If the file is empty, add a header:
-        if (current_pos ==0) baos.writeBigEndianInteger(DELTAZIP_MAGIC_HEADER | VERSION_11, 4);
+        if (current_pos ==0) start_new_archive(baos);
 
         if (!versions_to_add.hasNext()) { // Handle degenerate case.
-            return new AppendSpecification(access.getSize(), baos.toByteArray());
+            return new AppendSpecification(base_size, base_size, baos.toByteBuffer(),
+                                           Collections.<EnvelopeInfo>emptyList());
         }
 
+        long prefix_size = current_pos;
+        List<EnvelopeInfo> new_envelopes = new ArrayList<EnvelopeInfo>();
+        boolean prev_is_stored = (prev_version != null); // As the archive's latest snapshot.
+        int deltas_below = prev_is_stored
+            ? count_deltas_before(current_pos, keyframe_policy.scanLimit(prev_version.getContents().limit()))
+            : 0;
+
 		while (versions_to_add.hasNext()) {
 			Version cur = versions_to_add.next();
 			if (prev_version != null) {
-				pack_delta(prev_version, DZUtil.allToByteArray(cur.getContents()), baos);
+				if (keyframe_policy.isKeyframe(deltas_below, prev_version.getContents().limit())) {
+					if (prev_is_stored) prefix_size = base_size; // Keep its envelope as it is.
+					else new_envelopes.add(pack_snapshot(prev_version, baos));
+					deltas_below = 0;
+				} else {
+					new_envelopes.add(pack_delta(prev_version, ByteBuffer.wrap(cur.contentsAsArray()), baos));
+					deltas_below++;
+				}
 			}
+			prev_is_stored = false;
 			prev_version = cur;
 		}
 
-		pack_snapshot(prev_version, baos);
+		new_envelopes.add(pack_snapshot(prev_version, baos));
 
-		return new AppendSpecification(current_pos, baos.toByteArray());
+		// Envelope positions so far are relative to the start of the tail:
+		for (int i=0; i<new_envelopes.size(); i++) {
+			new_envelopes.set(i, new_envelopes.get(i).relocate(prefix_size));
+		}
+		return new AppendSpecification(base_size, prefix_size, baos.toByteBuffer(), new_envelopes);
 	}
 
+    /** Apply an AppendSpecification computed by add() to the archive, whose
+     *  Access must be a WritableAccess. Unlike applying it through the
+     *  Access directly, this is safe while other threads read through
+     *  this handle.
+     *  @throws ConcurrentModificationException if the archive has changed
+     *          since the specification was computed.
+     */
+    public void applyAppendSpec(AppendSpecification spec) throws IOException {
+        WritableAccess dst = writable_access();
+        synchronized (writer_lock) {
+            if (spec.base_size >= 0 && access.getSize() != spec.base_size) {
+                throw new ConcurrentModificationException("Archive has changed since the append specification was computed");
+            }
+            ByteBuffer tail = spec.new_tail.duplicate();
+            long total_length = spec.prefix_size + tail.remaining();
+            tail_lock.writeLock().lock();
+            try {
+                dst.pwrite(spec.prefix_size, tail);
+                dst.truncate(total_length);
+                tail_generation++;
+            } finally {
+                tail_lock.writeLock().unlock();
+            }
+        }
+    }
+
+    /** Make everything written to the archive so far durable.
+     *  The Access must be a WritableAccess. */
+    public void force() throws IOException {
+        writable_access().force();
+    }
+
+    /** Add a version read from 'new_version', writing the new tail straight
+     *  into the archive, whose Access must be a WritableAccess.
+     *  The new data is read in windows; its checksum is computed and its
+     *  snapshot deflated as it arrives. Both it and the previous latest
+     *  version (which is turned into a delta against it) are kept in
+     *  SpillBuffers, so large versions are not held on the heap - except
+     *  with METHOD_FAST_LZ snapshots (see setSnapshotMethod()), which are
+     *  encoded from a copy on the heap once all of the version is read.
+     *  @return the envelopes written, oldest first. The first one starts
+     *          where the old tail was cut off.
+     */
+    public List<EnvelopeInfo> add(ReadableByteChannel new_version, List<Metadata.Item> metadata) throws IOException {
+        WritableAccess dst = writable_access();
+        synchronized (writer_lock) {
+            return add_streaming(dst, new_version, metadata);
+        }
+    }
+
+    /** Like add(ReadableByteChannel, List), for a stream. */
+    public List<EnvelopeInfo> add(InputStream new_version, List<Metadata.Item> metadata) throws IOException {
+        return add(Channels.newChannel(new_version), metadata);
+    }
+
+    private List<EnvelopeInfo> add_streaming(WritableAccess dst, ReadableByteChannel new_version, List<Metadata.Item> metadata) throws IOException {
+        long size = access.getSize();
+        if (size == 0) format_version = new_archive_format;
+        if (!metadata.isEmpty() && !format_version.supportsMetadata()) throw new IllegalArgumentException("Archive format version does not support metadata.");
+
+        SpillBuffer prev_buf = null, new_buf = null, comp_buf = null;
+        try {
+            // Decode the current latest version, if any:
+            RawEnvelope latest = null;
+            if (size > FILE_HEADER_LENGTH) {
+                latest = read_envelope(size);
+                prev_buf = new SpillBuffer(spill_threshold);
+                decode_into(latest, null, prev_buf);
+            }
+
+            // Take in the new version:
+            CompressionMethod snapshot_cm = snapshot_method();
+            boolean deflated = snapshot_cm.methodNumber() == METHOD_DEFLATED;
+            new_buf = new SpillBuffer(spill_threshold);
+            comp_buf = new SpillBuffer(spill_threshold);
+            int adler32 = read_and_deflate(new_version, new_buf, deflated ? comp_buf : null, encoding_profile);
+            if (new_buf.size() > Integer.MAX_VALUE) throw new IllegalArgumentException("Version is too big to store");
+            if (!deflated) snapshot_cm.compress(new_buf.contents(), null, encoding_profile, comp_buf);
+
+            // Re-encode the old latest version, unless it is to be kept as a keyframe:
+            ExtByteArrayOutputStream baos = new ExtByteArrayOutputStream();
+            List<EnvelopeInfo> new_envelopes = new ArrayList<EnvelopeInfo>();
+            long prefix_size = size;
+            if (size == 0) {
+                start_new_archive(baos);
+            } else if (latest != null) {
+                ByteBuffer prev_data = prev_buf.contents();
+                int deltas_below = count_deltas_before(latest.start_pos, keyframe_policy.scanLimit(prev_data.limit()));
+                if (!keyframe_policy.isKeyframe(deltas_below, prev_data.limit())) {
+                    prefix_size = latest.start_pos;
+                    new_envelopes.add(pack_delta(new Version(prev_data, latest.metadata), new_buf.contents(), baos));
+                }
+            }
+
+            // Envelope start of the new snapshot:
+            ExtByteArrayOutputStream meta_out = new ExtByteArrayOutputStream();
+            if (!metadata.isEmpty()) Metadata.pack(metadata, meta_out);
+            long length = meta_out.size() + comp_buf.size();
+            boolean extended = needs_extended_size(length);
+            int tag = make_tag(snapshot_cm.methodNumber(), !metadata.isEmpty(), length);
+            new_envelopes.add(new EnvelopeInfo(baos.size(), snapshot_cm.methodNumber(), length, extended,
+                                               new_buf.size(), adler32, metadata));
+            baos.writeBigEndianInteger(tag, 4);
+            if (extended) baos.writeBigEndianLong(length);
+            baos.writeBigEndianInteger(adler32, 4);
+            meta_out.writeTo(baos);
+
+            // Write the tail:
+            ExtByteArrayOutputStream trailer = new ExtByteArrayOutputStream(12);
+            if (extended) trailer.writeBigEndianLong(length);
+            trailer.writeBigEndianInteger(tag, 4);
+            tail_lock.writeLock().lock();
+            try {
+                long pos = prefix_size;
+                pos = write_fully(dst, pos, baos.toByteBuffer());
+                pos = write_fully(dst, pos, comp_buf.contents());
+                pos = write_fully(dst, pos, trailer.toByteBuffer());
+                dst.truncate(pos);
+                tail_generation++;
+            } finally {
+                tail_lock.writeLock().unlock();
+            }
+
+            for (int i=0; i<new_envelopes.size(); i++) {
+                new_envelopes.set(i, new_envelopes.get(i).relocate(prefix_size));
+            }
+            return new_envelopes;
+        } finally {
+            if (prev_buf != null) prev_buf.dispose();
+            if (new_buf  != null) new_buf.dispose();
+            if (comp_buf != null) comp_buf.dispose();
+        }
+    }
+
     /** Return the most recent version, or null if the archive is empty. */
     public Version latestVersion() {
         VersionIterator iter = backwardsIterator();
@@ -143,6 +457,185 @@ public class DeltaZip {
         return new BackwardsIterator();
     }
 
+    /** Iterate over the envelopes, newest first, reading only their tags
+     *  and metadata. Versions are not decompressed, so raw sizes are
+     *  reported as -1, and the stored checksums are not verified.
+     */
+    public Iterator<EnvelopeInfo> envelopeIterator() {
+        return new EnvelopeIterator();
+    }
+
+    public Iterable<EnvelopeInfo> envelopeIterable() {
+        return new Iterable<EnvelopeInfo>() {
+            @Override
+            public Iterator<EnvelopeInfo> iterator() {
+                return envelopeIterator();
+            }
+        };
+    }
+
+    /** Return the version 'index_from_newest' steps back (0 is the latest),
+     *  or null if the archive does not contain that many versions.
+     *  Decoding starts from the nearest snapshot at or after the version,
+     *  so with keyframes the cost is bounded by the keyframe interval.
+     */
+    public Version getVersion(int index_from_newest) throws IOException {
+        DecodeStart start = find_decode_start(index_from_newest);
+        return (start == null) ? null : decode_from(start);
+    }
+
+    /** Like getVersion(int), but locates the starting snapshot through an index
+     *  instead of reading envelope tags. The index must be up to date. */
+    public Version getVersion(int index_from_newest, DeltaZipIndex index) throws IOException {
+        DecodeStart start = find_decode_start(index_from_newest, index);
+        return (start == null) ? null : decode_from(start);
+    }
+
+    /** Write the version 'index_from_newest' steps back (0 is the latest) to 'dst'.
+     *  Unlike getVersion(), the version is not held on the heap: it is
+     *  decoded straight into 'dst', and the intermediate versions which
+     *  serve as delta references are kept in SpillBuffers, which move
+     *  large versions to memory-mapped temporary files.
+     *  The checksum is verified as the data passes; if it does not match,
+     *  an ArchiveIntegrityException is thrown after the data has been written.
+     *  @return false if the archive does not contain that many versions.
+     */
+    public boolean writeVersion(int index_from_newest, OutputStream dst) throws IOException {
+        DecodeStart start = find_decode_start(index_from_newest);
+        if (start == null) return false;
+        stream_from(start, dst);
+        return true;
+    }
+
+    public boolean writeVersion(int index_from_newest, WritableByteChannel dst) throws IOException {
+        return writeVersion(index_from_newest, Channels.newOutputStream(dst));
+    }
+
+    /** Like writeVersion(int, OutputStream), but locates the starting snapshot
+     *  through an index. The index must be up to date. */
+    public boolean writeVersion(int index_from_newest, DeltaZipIndex index, OutputStream dst) throws IOException {
+        DecodeStart start = find_decode_start(index_from_newest, index);
+        if (start == null) return false;
+        stream_from(start, dst);
+        return true;
+    }
+
+    /** Where to start decoding to get a given version: the end of an
+     *  envelope, the next newer version to decode it against (null if it
+     *  is a snapshot), and the number of steps back from there.
+     *  If the version sought is 'ref' itself, 'steps' is -1. */
+    private static class DecodeStart {
+        final View view;
+        final long end_pos;
+        final int steps;
+        final VersionCache.CachedVersion ref;
+        DecodeStart(View view, long end_pos, int steps) {this(view, end_pos, steps, null);}
+        DecodeStart(View view, long end_pos, int steps, VersionCache.CachedVersion ref) {
+            this.view = view; this.end_pos = end_pos; this.steps = steps; this.ref = ref;
+        }
+    }
+
+    /** Locate the envelope of the version, noting the last snapshot
+     *  or cached version on the way. */
+    private DecodeStart find_decode_start(int index_from_newest) throws IOException {
+        if (index_from_newest < 0) throw new IllegalArgumentException("Negative index: "+index_from_newest);
+        return find_decode_start(pin_view(), index_from_newest);
+    }
+
+    private DecodeStart find_decode_start(View view, int index_from_newest) throws IOException {
+        VersionCache cache = version_cache;
+        long pos = view.size;
+        DecodeStart start = null;
+        for (int i=0; i<=index_from_newest; i++) {
+            if (pos <= FILE_HEADER_LENGTH) return null;
+            int tag = view.tagBefore(pos);
+            long envelope_start = view.envelopeStart(pos, tag);
+            if (is_snapshot_method(tag_method(tag))) {
+                start = new DecodeStart(view, pos, index_from_newest - i);
+            } else if (cache != null && !view.isTail(pos)) {
+                int adler32 = access.pread(envelope_start + envelope_header_size(tag) - 4, 4).getInt(0);
+                VersionCache.CachedVersion cached = cache.get(archive_id, envelope_start, adler32);
+                if (cached != null) start = new DecodeStart(view, envelope_start, index_from_newest - i - 1, cached);
+            }
+            pos = envelope_start;
+        }
+        return start;
+    }
+
+    /** Locate the version whose envelope starts at 'envelope_start'. */
+    private DecodeStart find_decode_start(View view, long envelope_start) throws IOException {
+        long pos = view.size;
+        long start_pos = pos;
+        int steps_from_start = 0;
+        while (pos > envelope_start) {
+            int tag = view.tagBefore(pos);
+            if (is_snapshot_method(tag_method(tag))) {
+                start_pos = pos;
+                steps_from_start = 0;
+            } else {
+                steps_from_start++;
+            }
+            pos = view.envelopeStart(pos, tag);
+        }
+        if (pos != envelope_start) throw new ConcurrentModificationException("Archive has changed other than by adding versions");
+        return new DecodeStart(view, start_pos, steps_from_start);
+    }
+
+    private DecodeStart find_decode_start(int index_from_newest, DeltaZipIndex index) throws IOException {
+        if (index_from_newest < 0) throw new IllegalArgumentException("Negative index: "+index_from_newest);
+        View view = pin_view();
+        synchronized (index) {
+            // An index which lags behind the archive may point into the replaced tail:
+            if (!index.endsAt(view.size)) return find_decode_start(view, index_from_newest);
+            if (index_from_newest >= index.size()) return null;
+
+            VersionCache cache = version_cache;
+            for (int start = index_from_newest; ; start--) {
+                EnvelopeInfo envelope = index.get(start);
+                if (envelope.isSnapshot()) return new DecodeStart(view, envelope.getEndPosition(), index_from_newest - start);
+                if (cache == null) continue;
+                VersionCache.CachedVersion cached = cache.get(archive_id, envelope.getPosition(), envelope.getChecksum());
+                if (cached != null) return new DecodeStart(view, envelope.getPosition(), index_from_newest - start - 1, cached);
+            }
+        }
+    }
+
+    /** Decode backwards from 'start', and return the version 'start.steps' further back. */
+    private Version decode_from(DecodeStart start) {
+        if (start.steps < 0) return new Version(start.ref.contents, start.ref.metadata);
+        BackwardsIterator iter = new BackwardsIterator(start.view, start.end_pos, start.ref);
+        Version version = null;
+        for (int i=0; i<=start.steps; i++) version = iter.next();
+        return version;
+    }
+
+    /** Like decode_from(), but writes the version to 'dst' and keeps the intermediate ones off the heap.
+     *  @return the envelope of the version; null if it came from the cache. */
+    private RawEnvelope stream_from(DecodeStart start, OutputStream dst) throws IOException {
+        if (start.steps < 0) {
+            dst.write(start.ref.contents);
+            return null;
+        }
+        long pos = start.end_pos;
+        ByteBuffer first_ref = (start.ref == null) ? null : ByteBuffer.wrap(start.ref.contents);
+        SpillBuffer ref_buf = null;
+        try {
+            RawEnvelope envelope = null;
+            for (int i=0; i<=start.steps; i++) {
+                boolean last = (i == start.steps);
+                SpillBuffer out_buf = last ? null : new SpillBuffer(spill_threshold);
+                envelope = decode_envelope(start.view, pos, (ref_buf==null) ? first_ref : ref_buf.contents(), last ? dst : out_buf);
+
+                if (ref_buf != null) ref_buf.dispose();
+                ref_buf = out_buf;
+                pos = envelope.start_pos;
+            }
+            return envelope;
+        } finally {
+            if (ref_buf != null) ref_buf.dispose();
+        }
+    }
+
     //==================== Internals =======================================
 
     /** @returns the archive format version number. */
@@ -154,8 +647,8 @@ public class DeltaZip {
 			(magic_header & MACIC_MASK) != DELTAZIP_MAGIC_HEADER)
 			throw new IOException("Not a deltazip file (invalid header)");
         int version = magic_header & VERSION_MASK;
-        if (version == VERSION_10) return FormatVersion.VERSION_10;
-        if (version == VERSION_11) return FormatVersion.VERSION_11;
+        FormatVersion format = FormatVersion.fromNumber(version);
+        if (format != null) return format;
         throw new IOException("Not a readable deltazip file (unrecognized format version number)");
 	}
 
@@ -165,6 +658,303 @@ public class DeltaZip {
 		return magic;
 	}
 
+    private WritableAccess writable_access() {
+        if (!(access instanceof WritableAccess)) throw new UnsupportedOperationException("Archive access is not writable");
+        return (WritableAccess) access;
+    }
+
+    //==================== Consistent views ====================
+
+    /** The archive as it was at some moment.
+     *  Adding versions only ever rewrites the archive from the start of
+     *  the latest envelope on, so everything before 'tail_start' stays as
+     *  it is; only the latest envelope itself needs protection.
+     */
+    private class View {
+        final long size, tail_start, generation;
+        /** End tag of the latest envelope. */
+        final int tail_tag;
+
+        View(long size, long tail_start, int tail_tag, long generation) {
+            this.size = size;
+            this.tail_start = tail_start;
+            this.tail_tag = tail_tag;
+            this.generation = generation;
+        }
+
+        /** Is the envelope ending at 'end_pos' the latest one? */
+        boolean isTail(long end_pos) {
+            return end_pos == size && size > FILE_HEADER_LENGTH;
+        }
+
+        int tagBefore(long end_pos) throws IOException {
+            return isTail(end_pos) ? tail_tag : read_tag_before(end_pos);
+        }
+
+        long envelopeStart(long end_pos, int tag) throws IOException {
+            return isTail(end_pos) ? tail_start : envelope_start(end_pos, tag);
+        }
+
+        long tailSize() {
+            return size - tail_start - envelope_overhead(tail_tag);
+        }
+    }
+
+    private View pin_view() throws IOException {
+        tail_lock.readLock().lock();
+        try {
+            long size = access.getSize();
+            if (size <= FILE_HEADER_LENGTH) return new View(size, size, 0, tail_generation);
+            int tag = read_tag_before(size);
+            return new View(size, envelope_start(size, tag), tag, tail_generation);
+        } finally {
+            tail_lock.readLock().unlock();
+        }
+    }
+
+    /** Decode the envelope of 'view' which ends at 'end_pos' into 'dst'. */
+    private RawEnvelope decode_envelope(View view, long end_pos, ByteBuffer ref_data, OutputStream dst) throws IOException {
+        if (view.isTail(end_pos)) return decode_tail(view, dst);
+        RawEnvelope envelope = read_envelope(end_pos);
+        decode_into(envelope, ref_data, dst);
+        return envelope;
+    }
+
+    /** Decode the latest envelope of 'view' into 'dst'.
+     *  If it has been replaced since the view was taken, its version is
+     *  decoded from the envelope which now starts at the same position:
+     *  when a version is added, the previous latest version is re-encoded
+     *  in place (or kept as it is).
+     *  The returned envelope is as it was in the view, except for its data.
+     *  Only reading the envelope is done under the lock; decoding is not.
+     */
+    private RawEnvelope decode_tail(View view, OutputStream dst) throws IOException {
+        RawEnvelope current = null;
+        tail_lock.readLock().lock();
+        try {
+            if (view.generation == tail_generation) current = detached(read_envelope(view.size));
+        } finally {
+            tail_lock.readLock().unlock();
+        }
+        if (current != null) {
+            decode_into(current, null, dst);
+            return current;
+        }
+
+        View now = pin_view();
+        DecodeStart start = find_decode_start(now, view.tail_start);
+        RawEnvelope envelope = stream_from(start, dst);
+        return new RawEnvelope(view.tail_start, tag_method(view.tail_tag), view.tailSize(), is_extended(view.tail_tag),
+                               envelope.adler32, envelope.metadata, null);
+    }
+
+    /** The envelope, with its data in a buffer which a later tail replacement
+     *  cannot change. Buffers which expose a writable array are taken to be
+     *  the caller's own copy (as FileAccess gives); others (slices of mappings
+     *  or of shared arrays) are copied. */
+    private static RawEnvelope detached(RawEnvelope envelope) {
+        if (envelope.data.hasArray()) return envelope;
+        ByteBuffer copy = ByteBuffer.allocate(envelope.data.remaining());
+        copy.put(envelope.data.duplicate());
+        copy.flip();
+        return new RawEnvelope(envelope.start_pos, envelope.method, envelope.size, envelope.extended,
+                               envelope.adler32, envelope.metadata, copy);
+    }
+
+    /** Describe the latest envelope of 'view', as decode_tail() would. */
+    private EnvelopeInfo tail_envelope_info(View view) throws IOException {
+        tail_lock.readLock().lock();
+        try {
+            if (view.generation == tail_generation) return read_envelope_info(view.size);
+            View now = pin_view();
+            long end_pos = now.size;
+            while (end_pos > view.tail_start) {
+                int tag = now.tagBefore(end_pos);
+                long start_pos = now.envelopeStart(end_pos, tag);
+                if (start_pos <= view.tail_start) break;
+                end_pos = start_pos;
+            }
+            EnvelopeInfo current = read_envelope_info(end_pos);
+            if (current.getPosition() != view.tail_start) throw new ConcurrentModificationException("Archive has changed other than by adding versions");
+            return new EnvelopeInfo(view.tail_start, tag_method(view.tail_tag), view.tailSize(), is_extended(view.tail_tag),
+                                    -1, current.getChecksum(), current.getMetadata());
+        } finally {
+            tail_lock.readLock().unlock();
+        }
+    }
+
+    //==================== Envelope navigation ====================
+
+    private static final int ENVELOPE_HEADER  = 4 + 4; // Start-tag + checksum
+    private static final int ENVELOPE_TRAILER = 4; // End.tag
+    private static final int ENVELOPE_OVERHEAD = ENVELOPE_HEADER + ENVELOPE_TRAILER;
+    /** In extended envelopes, a 64-bit size follows the start tag and precedes the end tag. */
+    private static final int EXTENDED_SIZE_LENGTH = 8;
+
+    /** Read the end tag of the envelope which ends at 'end_pos'. */
+    protected int read_tag_before(long end_pos) throws IOException {
+        return access.pread(end_pos-ENVELOPE_TRAILER, ENVELOPE_TRAILER).getInt(0);
+    }
+
+    /** The size field of a tag. */
+    protected int tag_size(int tag) {
+        return tag &~ (-1 << format_version.versionSizeBits());
+    }
+
+    protected static int tag_method(int tag) {
+        return (tag >> METHOD_BIT_POSITION) & 15;
+    }
+
+    protected static boolean is_snapshot_method(int method) {
+        return method < METHOD_CHUNKED;
+    }
+
+    protected boolean is_extended(int tag) {
+        return format_version.supportsExtendedSizes() &&
+            tag_size(tag) == format_version.extendedSizeMarker();
+    }
+
+    /** Size of the start of an envelope with the given tag, up to the metadata. */
+    protected int envelope_header_size(int tag) {
+        return ENVELOPE_HEADER + (is_extended(tag) ? EXTENDED_SIZE_LENGTH : 0);
+    }
+
+    protected int envelope_overhead(int tag) {
+        return ENVELOPE_OVERHEAD + (is_extended(tag) ? 2*EXTENDED_SIZE_LENGTH : 0);
+    }
+
+    /** Size of the contents of the envelope which ends at 'end_pos' and has the given tag. */
+    protected long envelope_size(long end_pos, int tag) throws IOException {
+        if (!is_extended(tag)) return tag_size(tag);
+        long size = access.pread(end_pos - ENVELOPE_TRAILER - EXTENDED_SIZE_LENGTH, EXTENDED_SIZE_LENGTH).getLong(0);
+        if (size < 0 || size > end_pos) throw new IOException("Data error - bad envelope size @ "+end_pos);
+        return size;
+    }
+
+    /** Start position of the envelope which ends at 'end_pos' and has the given tag. */
+    protected long envelope_start(long end_pos, int tag) throws IOException {
+        return end_pos - envelope_size(end_pos, tag) - envelope_overhead(tag);
+    }
+
+    /** Can envelope contents of the given length be stored, and in which way? */
+    protected boolean needs_extended_size(long length) {
+        if (format_version.supportsExtendedSizes()) {
+            return length >= format_version.extendedSizeMarker();
+        } else if (length >= format_version.versionSizeLimit()) {
+            throw new IllegalArgumentException("Version is too big to store in archive format "+
+                                               Integer.toHexString(format_version.versionNumber())+
+                                               "; use format "+Integer.toHexString(VERSION_12)+" for larger versions");
+        }
+        return false;
+    }
+
+    protected int make_tag(int method, boolean has_metadata, long length) {
+        int size_field = needs_extended_size(length) ? format_version.extendedSizeMarker() : (int)length;
+        int tag = (method << METHOD_BIT_POSITION) | size_field;
+        if (has_metadata) tag |= (1 << METADATA_FLAG_BIT_POSITION);
+        return tag;
+    }
+
+    /** Write the file header of a new archive, which gets the format set by setNewArchiveFormat(). */
+    void start_new_archive(ExtByteArrayOutputStream dst) {
+        format_version = new_archive_format;
+        dst.writeBigEndianInteger(DELTAZIP_MAGIC_HEADER | format_version.versionNumber(), 4);
+    }
+
+    /** Count the delta envelopes immediately preceding position 'pos', up to 'limit'. */
+    protected int count_deltas_before(long pos, int limit) throws IOException {
+        int count = 0;
+        while (count < limit && pos > FILE_HEADER_LENGTH) {
+            int tag = read_tag_before(pos);
+            if (is_snapshot_method(tag_method(tag))) break;
+            count++;
+            pos = envelope_start(pos, tag);
+        }
+        return count;
+    }
+
+    /** An envelope as read from the archive, with its contents not yet decoded. */
+    protected static class RawEnvelope {
+        final long start_pos;
+        final int method, adler32;
+        final long size;
+        final boolean extended;
+        final List<Metadata.Item> metadata;
+        /** The compressed data; positioned after the metadata. */
+        final ByteBuffer data;
+
+        RawEnvelope(long start_pos, int method, long size, boolean extended, int adler32, List<Metadata.Item> metadata, ByteBuffer data) {
+            this.start_pos = start_pos;
+            this.method = method;
+            this.size = size;
+            this.extended = extended;
+            this.adler32 = adler32;
+            this.metadata = metadata;
+            this.data = data;
+        }
+    }
+
+    /** Read the envelope which ends at 'end_pos'. */
+    protected RawEnvelope read_envelope(long end_pos) throws IOException {
+        int tag = read_tag_before(end_pos);
+        long size = envelope_size(end_pos, tag);
+        int method = tag_method(tag);
+        boolean has_metadata = format_version.supportsMetadata() &&
+                (tag & (1 << METADATA_FLAG_BIT_POSITION)) != 0;
+// 		System.err.println("DB| tag="+tag+" -> "+method+":"+size);
+
+        // Read envelope header:
+        long start_pos = end_pos - size - envelope_overhead(tag);
+        if (start_pos < FILE_HEADER_LENGTH) throw new IOException("Data error - bad envelope size @ "+end_pos);
+        int header_size = envelope_header_size(tag);
+        if (header_size + size > Integer.MAX_VALUE) {
+            throw new IOException("Envelope @ "+start_pos+" is too large to be read as one buffer: "+size+" bytes");
+        }
+        ByteBuffer data_buf = access.pread(start_pos, header_size + (int)size);
+        data_buf.rewind();
+        int start_tag = data_buf.getInt();
+        if (start_tag != tag) throw new IOException("Data error - tag mismatch @ "+start_pos+";"+end_pos);
+        if (is_extended(tag) && data_buf.getLong() != size) throw new IOException("Data error - size mismatch @ "+start_pos+";"+end_pos);
+        int adler32 = data_buf.getInt();
+        List<Metadata.Item> metadata =
+                has_metadata ? Metadata.unpack(data_buf) : Collections.<Metadata.Item>emptyList();
+        return new RawEnvelope(start_pos, method, size, is_extended(tag), adler32, metadata, data_buf);
+    }
+
+    /** Decode the contents of an envelope into 'dst', given the next newer version. */
+    protected void uncompress(RawEnvelope envelope, ByteBuffer ref_data, OutputStream dst) throws IOException {
+        CompressionMethod cm = COMPRESSION_METHODS[envelope.method];
+        if (cm==null) throw new IOException("Invalid compression method: "+envelope.method+" @ "+envelope.start_pos);
+        if (ref_data==null && !is_snapshot_method(envelope.method)) {
+            throw new ArchiveIntegrityException("Delta without a newer version @ "+envelope.start_pos);
+        }
+
+        if (!cm.usesInflater()) {
+            cm.uncompress(envelope.data, ref_data, null, dst);
+            return;
+        }
+        Inflater inflater = CodecPool.shared().borrowInflater();
+        try {
+            cm.uncompress(envelope.data, ref_data, inflater, dst);
+        } finally {
+            CodecPool.shared().release(inflater);
+        }
+    }
+
+    /** Decode an envelope into 'dst', verifying the checksum on the way. */
+    protected void decode_into(RawEnvelope envelope, ByteBuffer ref_data, OutputStream dst) throws IOException {
+        CheckedOutputStream out = new CheckedOutputStream(dst, new Adler32());
+        uncompress(envelope, ref_data, out);
+        out.flush();
+        verify_checksum(envelope, (int)out.getChecksum().getValue());
+    }
+
+    protected static void verify_checksum(RawEnvelope envelope, int actual_adler32) throws IOException {
+        if (actual_adler32 != envelope.adler32) {
+            throw new IOException("Data error - checksum mismatch @ "+envelope.start_pos+": stored is "+envelope.adler32+" but computed is "+actual_adler32);
+        }
+    }
+
 	private static void dump(String s, byte[] buf) {
 		System.err.print(s);
 		System.err.print("<<");
@@ -177,22 +967,72 @@ public class DeltaZip {
 
 	//====================
 
-    private final CompressionMethod[] SNAPSHOT_METHODS = {DEFLATED_INSTANCE};
-	protected void pack_snapshot(Version version, ExtByteArrayOutputStream dst) {
-		pack_entry(version, null, SNAPSHOT_METHODS, dst);
+	protected EnvelopeInfo pack_snapshot(Version version, ExtByteArrayOutputStream dst) {
+		return pack_entry(version, null, new CompressionMethod[] {snapshot_method()}, dst);
+	}
+
+    protected EnvelopeInfo pack_delta(Version version, ByteBuffer ref_version, ExtByteArrayOutputStream dst) {
+        CompressionMethod[] cms = usable_methods(encoding_profile.deltaMethods(), version.getContents().remaining(), ref_version.limit());
+        return pack_entry(version, ref_version, cms, dst);
+	}
+
+	/** Those of the methods which the archive format allows and which accept
+	 *  the sizes; if none are, METHOD_CHUNKED_MIDDLE, which all formats allow. */
+	private CompressionMethod[] usable_methods(CompressionMethod[] cms, int org_length, int ref_length) {
+		FormatVersion format = format_version;
+		List<CompressionMethod> supported = new ArrayList<CompressionMethod>(cms.length);
+		for (CompressionMethod cm : cms) {
+			if (format.supportsMethod(cm.methodNumber()) && cm.accepts(org_length, ref_length)) supported.add(cm);
+		}
+		if (supported.size() == cms.length) return cms;
+		if (supported.isEmpty()) supported.add(COMPRESSION_METHODS[METHOD_CHUNKED_MIDDLE]);
+		return supported.toArray(new CompressionMethod[supported.size()]);
+	}
+
+	private static final int STREAM_WINDOW_SIZE = 64 << 10;
+
+	/** Copy all of 'src' to 'data_out', deflating it into 'comp_out' (if not
+	 *  null) on the way. The output is a METHOD_DEFLATED envelope body. This
+	 *  always uses the native deflater; jzlib is only needed for reading.
+	 *  @return the Adler32 checksum of the data.
+	 */
+	private static int read_and_deflate(ReadableByteChannel src, OutputStream data_out, OutputStream comp_out, EncodingProfile profile) throws IOException {
+		Adler32 adler = new Adler32();
+		Deflater deflater = (comp_out == null) ? null : profile.borrowDeflater();
+		try {
+			DeflaterOutputStream deflate_out = (comp_out == null) ? null : new DeflaterOutputStream(comp_out, deflater, STREAM_WINDOW_SIZE);
+			ByteBuffer window = ByteBuffer.allocate(STREAM_WINDOW_SIZE);
+			while (src.read(window) >= 0) {
+				if (window.position() == 0) continue;
+				adler.update(window.array(), 0, window.position());
+				data_out.write(window.array(), 0, window.position());
+				if (deflate_out != null) deflate_out.write(window.array(), 0, window.position());
+				window.clear();
+			}
+			if (deflate_out != null) deflate_out.finish();
+		} finally {
+			if (deflater != null) CodecPool.shared().release(deflater);
+		}
+		return (int)adler.getValue();
 	}
 
-    private final CompressionMethod[] DELTA_METHODS = {CHUNKED_MIDDLE_INSTANCE, CHUNKED_MIDDLE2_INSTANCE};
-    protected void pack_delta(Version version, byte[] ref_version, ExtByteArrayOutputStream dst) {
-        pack_entry(version, ref_version, DELTA_METHODS, dst);
+	private static long write_fully(WritableAccess dst, long pos, ByteBuffer data) throws IOException {
+		int len = data.remaining();
+		dst.pwrite(pos, data);
+		return pos + len;
 	}
 
 	//====================
 
-	protected void pack_entry(Version version, byte[] ref_version, CompressionMethod[] cms, ExtByteArrayOutputStream dst) {
+	/** Writes an envelope containing 'version' to 'dst', using the most compact of the given methods,
+	 *  with the current encoding profile.
+	 *  @return a description of the envelope; its position is relative to the start of 'dst'.
+	 */
+	protected EnvelopeInfo pack_entry(Version version, ByteBuffer ref_version, CompressionMethod[] cms, ExtByteArrayOutputStream dst) {
         // Write start of envelope:
         ByteBuffer version_data = version.getContents();
         int adler32 = DZUtil.computeAdler32(version_data);
+        long envelope_pos = dst.size();
         Gap tag_gap = dst.insertGap(4);
 		dst.writeBigEndianInteger(adler32, 4);
         int size_before = dst.size();
@@ -206,42 +1046,56 @@ public class DeltaZip {
                 Metadata.pack(metadata, dst);
             }
 
+            EncodingProfile profile = encoding_profile;
             CompressionMethod selected_method = null;
             if (cms.length==1) { // Optimization: write directly.
                 selected_method = cms[0];
-                selected_method.compress(version_data.duplicate(), ref_version, dst);
-            } else { // Try each method and select the most compact result.
-                ExtByteArrayOutputStream best_out = new ExtByteArrayOutputStream();
-                ExtByteArrayOutputStream candidate_out = new ExtByteArrayOutputStream();
-                int best_size = Integer.MAX_VALUE;
+                selected_method.compress(version_data.duplicate(), ref_version, profile, dst);
+            } else { // Try each method (concurrently) and select the most compact result.
+                // A trial may give up once its output is larger than the version or another trial's.
+                AtomicInteger size_limit = new AtomicInteger(version_data.remaining());
+                List<MethodTrial> trials = new ArrayList<MethodTrial>(cms.length);
                 for (CompressionMethod cm : cms) {
-                    candidate_out.reset();
-                    cm.compress(version_data.duplicate(), ref_version, candidate_out);
-                    int cand_size = candidate_out.size();
-                    if (cand_size < best_size) { // Candidate is hitherto best.
-                        // Swap 'best_out' and 'candidate_out':
-                        ExtByteArrayOutputStream tmp=best_out; best_out=candidate_out; candidate_out=tmp;
-
-                        best_size = cand_size;
-                        selected_method = cm;
+                    trials.add(new MethodTrial(cm, version_data.duplicate(), ref_version, profile, size_limit));
+                }
+                List<ExtByteArrayOutputStream> outputs = DZUtil.invokeAll(encoder_pool, trials);
+
+                // Results are in method order; on ties the earlier method wins.
+                ExtByteArrayOutputStream best_out = null;
+                for (int i=0; i<cms.length; i++) {
+                    ExtByteArrayOutputStream candidate_out = outputs.get(i);
+                    if (candidate_out == null) continue; // Abandoned.
+                    if (best_out == null || candidate_out.size() < best_out.size()) { // Candidate is hitherto best.
+                        best_out = candidate_out;
+                        selected_method = cms[i];
                     }
                 }
 
                 // Write the most compact result out.
-                best_out.writeTo(dst);
+                if (best_out != null) {
+                    best_out.writeTo(dst);
+                } else { // All gave up; use the first method regardless.
+                    selected_method = cms[0];
+                    selected_method.compress(version_data.duplicate(), ref_version, profile, dst);
+                }
             }
 
             // Compute length of envelope contents:
             int size_after = dst.size();
             int length = size_after - size_before;
-            if (length >= format_version.versionSizeLimit()) throw new IllegalArgumentException("Version is too big to store");
+            boolean extended = needs_extended_size(length);
 
-            // Write tag at both ends of the envelope:
-            int tag = (selected_method.methodNumber() << METHOD_BIT_POSITION) | length;
-            if (has_metadata) tag |= (1 << METADATA_FLAG_BIT_POSITION);
+            // Write tag (and size, if it doesn't fit in the tag) at both ends of the envelope:
+            int tag = make_tag(selected_method.methodNumber(), has_metadata, length);
             tag_gap.fillWithBigEndianInteger(tag, 4);
+            if (extended) { // Rare; make room after the start tag.
+                dst.insertGapAt((int)envelope_pos + 4, EXTENDED_SIZE_LENGTH).fillWithBigEndianLong(length);
+                dst.writeBigEndianLong(length);
+            }
             dst.writeBigEndianInteger(tag, 4);
 
+            return new EnvelopeInfo(envelope_pos, selected_method.methodNumber(), length, extended,
+                                    version_data.limit(), adler32, metadata);
         } catch (IOException ioe) {
 			// Shouldn't happen; it's a ByteArrayOutputStream.
 			throw new RuntimeException(ioe);
@@ -249,24 +1103,74 @@ public class DeltaZip {
 
 	}
 
+    /** One compression method applied to a version, with its own output buffer. */
+    private static class MethodTrial implements Callable<ExtByteArrayOutputStream> {
+        private final CompressionMethod cm;
+        private final ByteBuffer version_data;
+        private final ByteBuffer ref_version;
+        private final EncodingProfile profile;
+        private final AtomicInteger size_limit;
+
+        public MethodTrial(CompressionMethod cm, ByteBuffer version_data, ByteBuffer ref_version, EncodingProfile profile, AtomicInteger size_limit) {
+            this.cm = cm;
+            this.version_data = version_data;
+            this.ref_version = ref_version;
+            this.profile = profile;
+            this.size_limit = size_limit;
+        }
+
+        /** @return the output, or null if the trial gave up. */
+        public ExtByteArrayOutputStream call() throws IOException {
+            ExtByteArrayOutputStream out = new ExtByteArrayOutputStream();
+            try {
+                cm.compress(version_data, ref_version, profile, size_limit, out);
+            } catch (TrialAbandonedException tae) {
+                return null;
+            }
+            int limit;
+            while ((limit = size_limit.get()) > out.size() && !size_limit.compareAndSet(limit, out.size())) {}
+            return out;
+        }
+    }
+
+    /** Thrown by a compression method which gives up a trial because its
+     *  output would not be the most compact. */
+    static class TrialAbandonedException extends IOException {
+        public TrialAbandonedException() {super("Trial abandoned");}
+    }
+
     //==================== Iteration implementation ==============================
 
     private class BackwardsIterator implements VersionIterator {
-        private final Inflater inflater = new Inflater(true);
+        private final View view;
         private long       current_pos;
-        private int        current_size;
+        private long       current_size;
+        private boolean    current_extended;
         private int        current_method;
         private byte[]     current_version;
+        /** Number of envelopes decoded to reach the current version, from the nearest snapshot. */
+        private int        current_depth;
         private int        current_checksum;
-        private ByteBuffer exposed_current_version;
         private List<Metadata.Item> current_metadata;
 
         public BackwardsIterator() {
             try {
-                this.current_pos = access.getSize();
+                this.view = pin_view();
             } catch (IOException ioe) {
                 throw new RuntimeException(ioe);
             }
+            this.current_pos = view.size;
+        }
+
+        /** Start iterating at the envelope of 'view' ending at 'end_pos', which
+         *  must be a snapshot unless the next newer version 'ref' is given. */
+        public BackwardsIterator(View view, long end_pos, VersionCache.CachedVersion ref) {
+            this.view = view;
+            this.current_pos = end_pos;
+            if (ref != null) {
+                this.current_version = ref.contents;
+                this.current_depth = ref.depth;
+            }
         }
 
         @Override
@@ -284,8 +1188,14 @@ public class DeltaZip {
         public long getCurrentPosition() {return current_pos;}
         public int getCurrentChecksum() {return current_checksum;}
         public int getCurrentMethod()   {return current_method;}
-        public int getCurrentCompSize() {return current_size;}
-        public int getCurrentRawSize()  {return current_version==null? -1 : current_version.length;}
+        public long getCurrentCompSize() {return current_size;}
+        public long getCurrentRawSize()  {return current_version==null? -1 : current_version.length;}
+
+        public EnvelopeInfo getCurrentEnvelope() {
+            if (current_version == null) throw new IllegalStateException();
+            return new EnvelopeInfo(current_pos, current_method, current_size, current_extended,
+                                    current_version.length, current_checksum, getMetadata());
+        }
 
         @Override
         /** Retreat the cursor.
@@ -303,13 +1213,7 @@ public class DeltaZip {
 
         /** Get the revision pointed to by the cursor. */
         private Version currentVersion() {
-            return new Version(getData(), getMetadata());
-        }
-
-        /** Get the revision pointed to by the cursor. */
-        private ByteBuffer getData() {
-            return (exposed_current_version==null) ? null
-                    : exposed_current_version.duplicate();
+            return new Version(current_version, getMetadata());
         }
 
         /** Get the metadata associated with revision pointed to by the cursor. */
@@ -317,62 +1221,186 @@ public class DeltaZip {
             return current_metadata==null ? null : Collections.unmodifiableList(current_metadata);
         }
 
-        private static final int ENVELOPE_HEADER  = 4 + 4; // Start-tag + checksum
-        private static final int ENVELOPE_TRAILER = 4; // End.tag
-        private static final int ENVELOPE_OVERHEAD = ENVELOPE_HEADER + ENVELOPE_TRAILER;
         private void goto_previous_position_and_compute_current_version() throws ArchiveIntegrityException, IOException {
-            ByteBuffer tag_buf = access.pread(current_pos-ENVELOPE_TRAILER, ENVELOPE_TRAILER);
-            int tag = tag_buf.getInt(0);
-            int size = tag &~ (-1 << format_version.versionSizeBits());
-            int method = (tag >> METHOD_BIT_POSITION) & 15;
-            boolean has_metadata = format_version.supportsMetadata() &&
-                    (tag & (1 << METADATA_FLAG_BIT_POSITION)) != 0;
-// 		System.err.println("DB| tag="+tag+" -> "+method+":"+size);
-
-            // Read envelope header:
-            long start_pos = current_pos - size - ENVELOPE_OVERHEAD;
-            ByteBuffer data_buf = access.pread(start_pos, size + ENVELOPE_HEADER);
-            data_buf.rewind();
-            int start_tag = data_buf.getInt();
-            if (start_tag != tag) throw new IOException("Data error - tag mismatch @ "+start_pos+";"+current_pos);
-            int adler32 = data_buf.getInt();
-            List<Metadata.Item> metadata =
-                    has_metadata ? Metadata.unpack(data_buf) : Collections.EMPTY_LIST;
-
-            // Unpack:
-            byte[] version = compute_current_version(method, data_buf, start_pos);
-
-            // Verify checksum:
-            int actual_adler32 = DZUtil.computeAdler32(version);
-            if (actual_adler32 != adler32) {
-                dump("checksumming failed: "+actual_adler32+" rather than "+adler32, version);
-                throw new IOException("Data error - checksum mismatch @ "+start_pos+": stored is "+adler32+" but computed is "+actual_adler32);
+            VersionCache cache = version_cache;
+            if (cache != null && current_version != null && !view.isTail(current_pos) &&
+                goto_previous_cached_version(cache)) return;
+
+            RawEnvelope envelope;
+            byte[] version;
+            if (view.isTail(current_pos)) { // Read consistently with the view (see decode_tail()); checksum is verified on the way.
+                ByteArrayOutputStream baos = new ByteArrayOutputStream();
+                envelope = decode_tail(view, baos);
+                version = baos.toByteArray();
+            } else {
+                envelope = read_envelope(current_pos);
+
+                // Unpack:
+                version = compute_current_version(envelope);
+
+                // Verify checksum:
+                int actual_adler32 = DZUtil.computeAdler32(version);
+                if (actual_adler32 != envelope.adler32) {
+                    dump("checksumming failed: "+actual_adler32+" rather than "+envelope.adler32, version);
+                    verify_checksum(envelope, actual_adler32);
+                }
             }
 
             // Commit:
-            this.current_pos     = start_pos;
+            int depth = is_snapshot_method(envelope.method) ? 1 : current_depth + 1;
+            commit(envelope.start_pos, envelope.method, envelope.size, envelope.extended,
+                   version, depth, envelope.adler32, envelope.metadata);
+            if (cache != null && depth > 1) {
+                cache.put(archive_id, envelope.start_pos, envelope.adler32, version, envelope.metadata, depth);
+            }
+        }
+
+        /** Take the previous version from the cache, if it is there. */
+        private boolean goto_previous_cached_version(VersionCache cache) throws IOException {
+            EnvelopeInfo envelope = read_envelope_info(current_pos);
+            if (envelope.isSnapshot()) return false;
+            VersionCache.CachedVersion cached = cache.get(archive_id, envelope.getPosition(), envelope.getChecksum());
+            if (cached == null) return false;
+            commit(envelope.getPosition(), envelope.getMethod(), envelope.getCompSize(), envelope.hasExtendedSize(),
+                   cached.contents, cached.depth, envelope.getChecksum(), envelope.getMetadata());
+            return true;
+        }
+
+        private void commit(long pos, int method, long size, boolean extended, byte[] version, int depth,
+                            int checksum, List<Metadata.Item> metadata) {
+            this.current_pos     = pos;
             this.current_method  = method;
             this.current_size    = size;
+            this.current_extended = extended;
             this.current_version = version;
-            this.exposed_current_version = ByteBuffer.wrap(current_version).asReadOnlyBuffer();
-            this.current_checksum = actual_adler32;
+            this.current_depth   = depth;
+            this.current_checksum = checksum;
             this.current_metadata = metadata;
         }
 
-        protected byte[] compute_current_version(int method, ByteBuffer data_buf, long pos) throws IOException {
-            CompressionMethod cm = COMPRESSION_METHODS[method];
-            if (cm==null) throw new IOException("Invalid compression method: "+method+" @ "+pos);
+        protected byte[] compute_current_version(RawEnvelope envelope) throws IOException {
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            uncompress(envelope, (current_version==null) ? null : ByteBuffer.wrap(current_version), baos);
+            return baos.toByteArray();
+        }
+
+    }
 
-            return cm.uncompress(data_buf, current_version, inflater);
+    private class EnvelopeIterator implements Iterator<EnvelopeInfo> {
+        private final View view;
+        private long current_pos;
+
+        public EnvelopeIterator() {
+            try {
+                this.view = pin_view();
+            } catch (IOException ioe) {
+                throw new RuntimeException(ioe);
+            }
+            this.current_pos = view.size;
         }
 
+        @Override
+        public boolean hasNext() {
+            return current_pos > FILE_HEADER_LENGTH;
+        }
+
+        @Override
+        public EnvelopeInfo next() {
+            if (!hasNext()) throw new IllegalStateException();
+            try {
+                EnvelopeInfo envelope = view.isTail(current_pos)
+                    ? tail_envelope_info(view)
+                    : read_envelope_info(current_pos);
+                this.current_pos = envelope.getPosition();
+                return envelope;
+            } catch (IOException ioe) {
+                throw new RuntimeException(ioe);
+            }
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    /** How much of the envelope contents to read at first, in the hope that it covers the metadata. */
+    private static final int METADATA_READ_AHEAD = 256;
+
+    /** Describe the envelope which ends at 'end_pos', reading only its header and metadata. */
+    protected EnvelopeInfo read_envelope_info(long end_pos) throws IOException {
+        int tag = read_tag_before(end_pos);
+        long size = envelope_size(end_pos, tag);
+        int method = tag_method(tag);
+        boolean has_metadata = format_version.supportsMetadata() &&
+                (tag & (1 << METADATA_FLAG_BIT_POSITION)) != 0;
+
+        long start_pos = end_pos - size - envelope_overhead(tag);
+        if (start_pos < FILE_HEADER_LENGTH) throw new IOException("Data error - bad envelope size @ "+end_pos);
+        int header_size = envelope_header_size(tag);
+        int read_size = has_metadata ? (int)Math.min(size, METADATA_READ_AHEAD) : 0;
+        ByteBuffer data_buf = access.pread(start_pos, header_size + read_size);
+        int start_tag = data_buf.getInt(0);
+        if (start_tag != tag) throw new IOException("Data error - tag mismatch @ "+start_pos+";"+end_pos);
+        int adler32 = data_buf.getInt(header_size - 4);
+
+        List<Metadata.Item> metadata = Collections.emptyList();
+        if (has_metadata) {
+            data_buf.position(header_size);
+            try {
+                metadata = Metadata.unpack(data_buf);
+            } catch (BufferUnderflowException bue) { // Metadata is larger than the read-ahead.
+                int max_metadata_size = (int)Math.min(size, Integer.MAX_VALUE - header_size);
+                data_buf = access.pread(start_pos, header_size + max_metadata_size);
+                data_buf.position(header_size);
+                metadata = Metadata.unpack(data_buf);
+            }
+        }
+        return new EnvelopeInfo(start_pos, method, size, is_extended(tag), -1, adler32, metadata);
     }
 
     //==================== Compression methods =============================
+	/** Implementations must not keep per-call state in fields;
+	 *  one instance is shared by all threads. */
 	protected static abstract class CompressionMethod {
 		public abstract int methodNumber();
-		public abstract void compress(ByteBuffer org, byte[] ref_data, OutputStream dst) throws IOException;
-		public abstract byte[] uncompress(ByteBuffer org, byte[] ref_data, Inflater inflater) throws ArchiveIntegrityException;
+		/** Encode 'org'. The reference version (for deltas) is read from
+		 *  index 0 to the limit of 'ref_data', which may be a mapped region. */
+		public abstract void compress(ByteBuffer org, ByteBuffer ref_data, OutputStream dst) throws IOException;
+
+		/** Encode 'org' with the effort given by 'profile'. The plain
+		 *  compress() encodes as EncodingProfile.MAX would. */
+		public void compress(ByteBuffer org, ByteBuffer ref_data, EncodingProfile profile, OutputStream dst) throws IOException {
+			compress(org, ref_data, dst);
+		}
+
+		/** As compress(org, ref_data, profile, dst), but may give up with a
+		 *  TrialAbandonedException once the output is sure to be larger than
+		 *  'size_limit', which other trials may lower meanwhile. */
+		public void compress(ByteBuffer org, ByteBuffer ref_data, EncodingProfile profile, AtomicInteger size_limit, OutputStream dst) throws IOException {
+			compress(org, ref_data, profile, dst);
+		}
+
+		/** If false, the method is not tried for versions of this size. */
+		public boolean accepts(long org_length, long ref_length) {return true;}
+
+		/** Decode into 'dst'. The reference version is read from index 0 to
+		 *  the limit of 'ref_data', which may be a mapped region.
+		 *  IOExceptions come from 'dst'. */
+		public abstract void uncompress(ByteBuffer org, ByteBuffer ref_data, Inflater inflater, OutputStream dst) throws ArchiveIntegrityException, IOException;
+
+		/** If false, uncompress() is passed a null Inflater. */
+		public boolean usesInflater() {return true;}
+
+		public byte[] uncompress(ByteBuffer org, byte[] ref_data, Inflater inflater) throws ArchiveIntegrityException {
+			ByteArrayOutputStream baos = new ByteArrayOutputStream();
+			try {
+				uncompress(org, (ref_data==null) ? null : ByteBuffer.wrap(ref_data), inflater, baos);
+			} catch (IOException ioe) {
+				throw new RuntimeException("Can't happen: "+ioe);
+			}
+			return baos.toByteArray();
+		}
 	}
 
 	//==================== Interface types ==============================
@@ -382,26 +1410,57 @@ public class DeltaZip {
 		ByteBuffer pread(long offset, int size) throws IOException;
 	}
 
+	/** An Access which can also be written to, so that a new tail can be
+	 *  written as it is produced rather than collected in an AppendSpecification. */
+	public interface WritableAccess extends Access {
+		/** Write all of 'data' at position 'pos'. */
+		void pwrite(long pos, ByteBuffer data) throws IOException;
+		/** Cut off everything from position 'size' on. */
+		void truncate(long size) throws IOException;
+		/** Make everything written so far durable. */
+		void force() throws IOException;
+	}
+
 	public final class AppendSpecification {
+		/** The archive size the specification was computed for; -1 if not known. */
+		final long base_size;
 		final long prefix_size;
 		final ByteBuffer new_tail;
+		/** The envelopes in the new tail, oldest first; null if not known. */
+		final List<EnvelopeInfo> new_envelopes;
 
 		public AppendSpecification(long prefix_size, ByteBuffer new_tail) {
-			this.prefix_size = prefix_size;
-			this.new_tail = new_tail.asReadOnlyBuffer();
+			this(prefix_size, new_tail, null);
 		}
 
 		public AppendSpecification(long prefix_size, byte[] new_tail) {
 			this(prefix_size, ByteBuffer.wrap(new_tail).asReadOnlyBuffer());
 		}
+
+		public AppendSpecification(long prefix_size, ByteBuffer new_tail, List<EnvelopeInfo> new_envelopes) {
+			this(-1, prefix_size, new_tail, new_envelopes);
+		}
+
+		AppendSpecification(long base_size, long prefix_size, ByteBuffer new_tail, List<EnvelopeInfo> new_envelopes) {
+			this.base_size = base_size;
+			this.prefix_size = prefix_size;
+			this.new_tail = new_tail.asReadOnlyBuffer();
+			this.new_envelopes = (new_envelopes == null) ? null : Collections.unmodifiableList(new_envelopes);
+		}
+
+		public long getPrefixSize() {return prefix_size;}
+
+		public List<EnvelopeInfo> getNewEnvelopes() {return new_envelopes;}
 	}
 
     public interface VersionIterator extends Iterator<Version> {
         public long getCurrentPosition();
         public int getCurrentChecksum();
         public int getCurrentMethod();
-        public int getCurrentCompSize();
-        public int getCurrentRawSize();
+        public long getCurrentCompSize();
+        public long getCurrentRawSize();
+        /** The statistics above, and the metadata, as one object. */
+        public EnvelopeInfo getCurrentEnvelope();
     }
 
 }
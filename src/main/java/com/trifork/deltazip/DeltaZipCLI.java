@@ -1,19 +1,25 @@
 package com.trifork.deltazip;
 
 import com.trifork.deltazip.DZUtil.FileAccess;
+import com.trifork.deltazip.DZUtil.MappedFileAccess;
 import com.trifork.deltazip.DeltaZip.AppendSpecification;
+import java.io.BufferedOutputStream;
 import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
 import java.io.IOException;
-import java.io.ByteArrayOutputStream;
+import java.io.InterruptedIOException;
 import java.io.FileInputStream;
-import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Date;
-import java.util.Iterator;
 import java.util.List;
 import java.util.TimeZone;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 
 public abstract class DeltaZipCLI {
 
@@ -26,6 +32,9 @@ public abstract class DeltaZipCLI {
 		else if ("get".equals(command))    do_get(args);
 		else if ("create".equals(command)) do_create(args);
 		else if ("add".equals(command))    do_add(args);
+		else if ("index".equals(command))  do_index(args);
+		else if ("repack".equals(command)) do_repack(args);
+		else if ("prune".equals(command))  do_prune(args);
 		else {usage(); System.exit(1);}
 	}
 
@@ -38,17 +47,38 @@ public abstract class DeltaZipCLI {
 		System.err.println("  count [dzfile]   Count the number of versions");
 		System.err.println("  list [dzfile]   List versions and their statistics");
 		System.err.println("  add [dzfile] [version-files]");
+		System.err.println("  index [dzfile]   (Re)build the sidecar index [dzfile]"+DeltaZipIndex.FILE_SUFFIX);
+		System.err.println("  repack [-jN] [-rBYTES] [-fFORMAT] [dzfiles]   Re-encode archives more compactly,");
+		System.err.println("                   N at a time, reading and writing at most BYTES per second,");
+		System.err.println("                   in FORMAT (e.g. 0x13) rather than each archive's own format");
+		System.err.println("  prune (-nN|-sTIMESTAMP|-thin) [-jN] [-rBYTES] [dzfiles]   Drop old versions,");
+		System.err.println("                   keeping the newest N, those since TIMESTAMP, or one per");
+		System.err.println("                   hour for the last day and one per day before that");
+		System.err.println("The commands use and maintain the sidecar index when it exists.");
+		System.err.println("New archives use format 11, or the one given by -Ddeltazip-new-archive-format;");
+		System.err.println("format 0x12 is needed for versions which compress to 128 MB or more, and");
+		System.err.println("format 0x13 for the FastLZ snapshot method (2) and the block-copy and");
+		System.err.println("long-range delta methods (8 and 9).");
+		System.err.println("Versions are encoded with the 'max' effort profile, or the one given by");
+		System.err.println("-Ddeltazip-encoding-profile=fast|balanced|max|exhaustive; repack always");
+		System.err.println("uses 'exhaustive'.");
 	}
 
 	//====================
 	public static void do_count(String[] args) throws IOException {
 		if (args.length != 2) {usage(); System.exit(1);}
-		FileAccess fa = openDZFile(args[1]);
+		MappedFileAccess fa = openMappedDZFile(args[1]);
 		DeltaZip dz = new DeltaZip(fa);
 
         int count = 0;
-        for (Version v : dz.backwardsIterable()) {
-			count++;
+        DeltaZipIndex index = openIndexIfConsistent(new File(args[1]), fa);
+        if (index != null) {
+            count = index.size();
+            index.close();
+        } else {
+            for (EnvelopeInfo envelope : dz.envelopeIterable()) {
+                count++;
+            }
         }
 
 		fa.close();
@@ -58,30 +88,41 @@ public abstract class DeltaZipCLI {
 	//====================
 	public static void do_list(String[] args) throws IOException {
 		if (args.length != 2) {usage(); System.exit(1);}
-		FileAccess fa = openDZFile(args[1]);
+		MappedFileAccess fa = openMappedDZFile(args[1]);
 		DeltaZip dz = new DeltaZip(fa);
 
 		System.out.println("Nr:\tMethod\tCompSize\tVersionSize\tChecksum\tMetadata");
 
+        DeltaZipIndex index = openIndexIfConsistent(new File(args[1]), fa);
+        if (index != null) {
+            for (int nr=0; nr<index.size(); nr++) {
+                EnvelopeInfo envelope = index.get(nr);
+                System.out.println(listLine(nr, envelope.getMethod(), envelope.getCompSize(), envelope.getRawSize(),
+                                            envelope.getChecksum(), envelope.getMetadata()));
+            }
+            index.close();
+            fa.close();
+            return;
+        }
+
 		int nr = 0;
         DeltaZip.VersionIterator iter = dz.backwardsIterator();
         while (iter.hasNext()) {
             Version version = iter.next();
-            String line =
-				String.format("%d:\t"+"M%d\t"+"%8d\t"+"%8d\t"+"%8x\t%s",
-							  (-nr),
-							  iter.getCurrentMethod(),
-							  iter.getCurrentCompSize(),
-							  iter.getCurrentRawSize(),
-							  iter.getCurrentChecksum(),
-                              metadataToString(version.getMetadata()));
-			System.out.println(line);
+			System.out.println(listLine(nr, iter.getCurrentMethod(), iter.getCurrentCompSize(), iter.getCurrentRawSize(),
+										iter.getCurrentChecksum(), version.getMetadata()));
 
             nr++;
 		}
 		fa.close();
 	}
 
+    private static String listLine(int nr, int method, long comp_size, long raw_size, int checksum, List<Metadata.Item> metadata) {
+        return String.format("%d:\t"+"M%d\t"+"%8d\t"+"%8d\t"+"%8x\t%s",
+                             (-nr), method, comp_size, raw_size, checksum,
+                             metadataToString(metadata));
+    }
+
     private static String metadataToString(List<Metadata.Item> metadata) {
         StringBuilder sb = new StringBuilder();
         SimpleDateFormat dfmt = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss'Z'");//spec for RFC3339
@@ -117,23 +158,24 @@ public abstract class DeltaZipCLI {
 		if (args.length != file_arg+1) {usage(); System.exit(1);}
         if (rev_nr < 0) {usage(); System.exit(1);}
 
-        FileAccess fa = openDZFile(args[file_arg]);
+        MappedFileAccess fa = openMappedDZFile(args[file_arg]);
 		DeltaZip dz = new DeltaZip(fa);
-
-        DeltaZip.VersionIterator iter = dz.backwardsIterator();
-        if (! iter.hasNext()) {
-            System.err.println("Archive is empty.");
-            System.exit(3);
-        } else {
-            Version v = null;
-            for (int i=0; i<rev_nr; i++) {
-                if (! iter.hasNext()) {
-                    System.err.println("Archive only contains "+(i+1)+" versions.");
-                    System.exit(3);
-                }
-				v = iter.next();
-			}
-			System.out.write(DZUtil.allToByteArray(v.getContents()));
+		int index_from_newest = Math.max(0, rev_nr-1); // @1 is the last version.
+
+		// Stream the version to stdout, without holding it in memory:
+		OutputStream out = new BufferedOutputStream(new FileOutputStream(FileDescriptor.out), 64 << 10);
+		DeltaZipIndex index = openIndexIfConsistent(new File(args[file_arg]), fa);
+		boolean found = (index != null)
+			? dz.writeVersion(index_from_newest, index, out)
+			: dz.writeVersion(index_from_newest, out);
+		out.flush();
+		if (index != null) index.close();
+
+		if (!found) {
+			int count = 0;
+			for (EnvelopeInfo envelope : dz.envelopeIterable()) count++;
+			System.err.println(count==0 ? "Archive is empty." : "Archive only contains "+count+" versions.");
+			System.exit(3);
 		}
 		fa.close();
 	}
@@ -150,7 +192,7 @@ public abstract class DeltaZipCLI {
 
 		// Possible race condition here. Can't do anything about it I think.
 		FileAccess fa = new FileAccess(dzfile, true);
-		add_to_file(fa, createFileIterator(args, 2));
+		add_to_file(fa, parseVersionFileArgs(args, 2), dzfile);
 		fa.close();
 	}
 
@@ -159,19 +201,176 @@ public abstract class DeltaZipCLI {
 		if (args.length < 2) {usage(); System.exit(1);}
 		String filename = args[1];
 		FileAccess fa = openDZFile(filename, true, false);
-		add_to_file(fa, createFileIterator(args, 2));
+		add_to_file(fa, parseVersionFileArgs(args, 2), new File(filename));
 		fa.close();
 	}
 
-	protected static void add_to_file(FileAccess fa, Iterator<Version> to_add) throws IOException {
-		DeltaZip dz = new DeltaZip(fa);
-		AppendSpecification app_spec = dz.add(to_add);
-		fa.applyAppendSpec(app_spec);
+	/** Add the version files to the archive, and keep its index (if any) up to date.
+	 *  A single version is streamed from its file. Several versions are added
+	 *  with one AppendSpecification, so that either all or none of them are
+	 *  added; their files are all opened and mapped before anything is written.
+	 */
+	protected static void add_to_file(FileAccess fa, List<VersionFile> to_add, File dzfile) throws IOException {
+		File index_file = DeltaZipIndex.indexFileFor(dzfile);
+		boolean has_index = index_file.exists();
+		DeltaZipIndex index = null;
+		if (has_index) {
+			try {
+				index = DeltaZipIndex.openForUpdate(index_file);
+			} catch (IOException ioe) {
+				System.err.println("Rebuilding unreadable index: "+ioe.getMessage());
+			}
+		}
+		boolean index_is_consistent = index != null && index.isConsistentWith(fa);
+
+		if (to_add.size() == 1) {
+			// Stream the version into the archive:
+			VersionFile version_file = to_add.get(0);
+			FileInputStream in = new FileInputStream(version_file.filename);
+			try {
+				List<EnvelopeInfo> new_envelopes = new DeltaZip(fa).add(in.getChannel(), version_file.metadata);
+				if (index_is_consistent) index.applyNewEnvelopes(new_envelopes);
+			} finally {
+				in.close();
+			}
+		} else if (to_add.size() > 1) {
+			List<FileInputStream> ins = new ArrayList<FileInputStream>();
+			try {
+				List<Version> versions = new ArrayList<Version>();
+				for (VersionFile version_file : to_add) {
+					FileInputStream in = new FileInputStream(version_file.filename);
+					ins.add(in);
+					FileChannel channel = in.getChannel();
+					if (channel.size() > Integer.MAX_VALUE) {
+						throw new IOException("Version file is too large to be added with others: "+version_file.filename);
+					}
+					versions.add(new Version(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()), version_file.metadata));
+				}
+				AppendSpecification app_spec = new DeltaZip(fa).add(versions);
+				fa.applyAppendSpec(app_spec);
+				if (index_is_consistent) index.applyAppendSpec(app_spec);
+			} finally {
+				for (FileInputStream in : ins) in.close();
+			}
+		}
+
+		// Maintain the index, if there is one:
+		if (has_index) {
+			if (!index_is_consistent) {
+				if (index != null) index.close();
+				index = DeltaZipIndex.rebuild(new DeltaZip(fa), index_file);
+			}
+			index.close();
+		}
+	}
+
+	//====================
+	public static void do_index(String[] args) throws IOException {
+		if (args.length != 2) {usage(); System.exit(1);}
+		File dzfile = new File(args[1]);
+		MappedFileAccess fa = openMappedDZFile(args[1]);
+		DeltaZipIndex.rebuild(new DeltaZip(fa), DeltaZipIndex.indexFileFor(dzfile)).close();
+		fa.close();
+	}
+
+	//====================
+	public static void do_repack(String[] args) throws IOException {
+		rewrite(args, null);
+	}
+
+	//====================
+	public static void do_prune(String[] args) throws IOException {
+		RetentionPolicy policy = null;
+		List<String> rest = new ArrayList<String>();
+		rest.add(args[0]);
+		for (int pos = 1; pos < args.length; pos++) {
+			String arg = args[pos];
+			RetentionPolicy given;
+			if ("-thin".equals(arg))       given = RetentionPolicy.thinned(new Date());
+			else if (arg.startsWith("-n")) given = RetentionPolicy.keepNewest(Integer.parseInt(arg.substring(2)));
+			else if (arg.startsWith("-s")) {
+				Metadata.Item since = cli_arg_to_metadata_item("timestamp", arg.substring(2));
+				given = RetentionPolicy.newerThan(((Metadata.Timestamp)since).getDate());
+			} else {
+				rest.add(arg);
+				continue;
+			}
+			if (policy != null) {usage(); System.exit(1);}
+			policy = given;
+		}
+		if (policy == null) {usage(); System.exit(1);}
+		rewrite(rest.toArray(new String[rest.size()]), policy);
+	}
+
+	/** Repack or prune (if a policy is given) the archives given as arguments. */
+	private static void rewrite(String[] args, RetentionPolicy policy) throws IOException {
+		int parallelism = Repacker.DEFAULT_PARALLELISM;
+		long max_io_rate = Repacker.DEFAULT_MAX_IO_RATE;
+		FormatVersion format = null;
+		List<File> archives = new ArrayList<File>();
+		for (int pos = 1; pos < args.length; pos++) {
+			String arg = args[pos];
+			if (arg.startsWith("-j"))      parallelism = Integer.parseInt(arg.substring(2));
+			else if (arg.startsWith("-r")) max_io_rate = Long.parseLong(arg.substring(2));
+			else if (arg.startsWith("-f")) {
+				format = FormatVersion.fromNumber(Integer.decode(arg.substring(2)));
+				if (format == null) {
+					System.err.println("Unknown format version: "+arg.substring(2));
+					System.exit(1);
+				}
+			} else {
+				File dzfile = new File(arg);
+				checkExistence(dzfile);
+				archives.add(dzfile);
+			}
+		}
+		if (archives.isEmpty() || (format != null && policy != null)) {usage(); System.exit(1);} // Pruning keeps the format.
+
+		Repacker repacker = new Repacker(parallelism, max_io_rate);
+		repacker.setTargetFormat(format);
+		List<Future<Repacker.Result>> results = new ArrayList<Future<Repacker.Result>>();
+		for (File archive : archives) {
+			results.add(policy == null ? repacker.submit(archive) : repacker.submitPrune(archive, policy));
+		}
+		boolean failed = false;
+		for (int i=0; i<archives.size(); i++) {
+			try {
+				Repacker.Result result = results.get(i).get();
+				System.out.println(String.format("%s: %d -> %d bytes, %d versions%s",
+												 archives.get(i), result.getOldSize(), result.getNewSize(),
+												 result.getVersionCount(), result.isReplaced() ? "" : " (kept original)"));
+			} catch (ExecutionException ee) {
+				System.err.println(archives.get(i)+": "+ee.getCause());
+				failed = true;
+			} catch (InterruptedException ie) {
+				throw new InterruptedIOException("Interrupted while rewriting archives");
+			}
+		}
+		repacker.close();
+		if (failed) System.exit(2);
 	}
 
 	//======================================================================
-	private static FileAccess openDZFile(String filename) throws IOException {
-		return openDZFile(filename, false, false);
+	/** Open the sidecar index of an archive, if it exists and is up to date. */
+	private static DeltaZipIndex openIndexIfConsistent(File dzfile, DeltaZip.Access access) throws IOException {
+		File index_file = DeltaZipIndex.indexFileFor(dzfile);
+		if (!index_file.exists()) return null;
+		DeltaZipIndex index;
+		try {
+			index = DeltaZipIndex.open(index_file);
+		} catch (IOException ioe) {
+			System.err.println("Ignoring unreadable index: "+ioe.getMessage());
+			return null;
+		}
+		if (index.isConsistentWith(access)) return index;
+		index.close();
+		return null;
+	}
+
+	private static MappedFileAccess openMappedDZFile(String filename) throws IOException {
+		File dzfile = new File(filename);
+		checkExistence(dzfile);
+		return new MappedFileAccess(dzfile);
 	}
 
 	private static FileAccess openDZFile(String filename, boolean writable, boolean create) throws IOException {
@@ -187,58 +386,39 @@ public abstract class DeltaZipCLI {
 		}
 	}
 
-	private static ByteBuffer fileToByteBuffer(String filename) throws IOException {
-		FileInputStream in = new FileInputStream(filename);
-		try {
-			ByteArrayOutputStream baos = new ByteArrayOutputStream();
-			byte[] tmp = new byte[4096];
-			int r;
-			while ((r = in.read(tmp)) >= 0) {
-				baos.write(tmp, 0, r);
-			}
-			return ByteBuffer.wrap(baos.toByteArray());
-		} finally {
-			in.close();
+	/** A version file argument, with the metadata given before it. */
+	protected static class VersionFile {
+		final String filename;
+		final List<Metadata.Item> metadata;
+
+		VersionFile(String filename, List<Metadata.Item> metadata) {
+			this.filename = filename;
+			this.metadata = metadata;
 		}
 	}
 
-	protected static Iterator<Version> createFileIterator(final String[] args, final int start_index) {
-		return new Iterator<Version>() {
-			int pos = start_index;
-            List<Metadata.Item> metadata_for_next_filename = eatMetadata();
-
-            private List<Metadata.Item> eatMetadata() {
-                List<Metadata.Item> res = new ArrayList<Metadata.Item>();
-                while (pos < args.length && args[pos].startsWith("-m")) {
-                    String md_spec = args[pos++];
-                    int eq_pos = md_spec.indexOf("=");
-                    if (eq_pos < 0) {
-                        throw new IllegalArgumentException("Metadata specification contains no \"=\" sign");
-                    }
-                    String md_key = md_spec.substring(2,eq_pos);
-                    String md_value = md_spec.substring(eq_pos+1);
-                    res.add(cli_arg_to_metadata_item(md_key, md_value));
-                }
-                if (pos >= args.length && !res.isEmpty()) {
-                    throw new IllegalArgumentException("Parameter list ends with metadata, not with a version filename");
-                }
-                return res;
-            }
-
-            public boolean hasNext() {return pos < args.length;}
-
-			public Version next() {
-				String filename = args[pos++];
-                try {
-                    return new Version(fileToByteBuffer(filename), metadata_for_next_filename);
-                } catch (IOException ioe) {
-                    throw new RuntimeException(ioe);
-                } finally {
-                    metadata_for_next_filename = eatMetadata();
-                }
-            }
-			public void remove() {throw new UnsupportedOperationException();}
-		};
+	protected static List<VersionFile> parseVersionFileArgs(String[] args, int start_index) {
+		List<VersionFile> res = new ArrayList<VersionFile>();
+		List<Metadata.Item> metadata = new ArrayList<Metadata.Item>();
+		for (int pos = start_index; pos < args.length; pos++) {
+			if (args[pos].startsWith("-m")) {
+				String md_spec = args[pos];
+				int eq_pos = md_spec.indexOf("=");
+				if (eq_pos < 0) {
+					throw new IllegalArgumentException("Metadata specification contains no \"=\" sign");
+				}
+				String md_key = md_spec.substring(2,eq_pos);
+				String md_value = md_spec.substring(eq_pos+1);
+				metadata.add(cli_arg_to_metadata_item(md_key, md_value));
+			} else {
+				res.add(new VersionFile(args[pos], metadata));
+				metadata = new ArrayList<Metadata.Item>();
+			}
+		}
+		if (!metadata.isEmpty()) {
+			throw new IllegalArgumentException("Parameter list ends with metadata, not with a version filename");
+		}
+		return res;
 	}
 
     private static Metadata.Item cli_arg_to_metadata_item(String key_str, String value_str) {
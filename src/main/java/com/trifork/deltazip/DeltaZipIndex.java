@@ -0,0 +1,266 @@
+package com.trifork.deltazip;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+
+import com.trifork.deltazip.DeltaZip.AppendSpecification;
+
+/** Sidecar index of the envelopes of a DeltaZip archive.
+ *  For each version, it records the envelope position, method, sizes,
+ *  checksum and metadata, so that counting and listing versions, and
+ *  locating a given version, need not decode the archive.
+ *
+ *  The index is kept in a separate file (by convention the archive file
+ *  name plus ".dzi"), and is updated with the same AppendSpecifications
+ *  as the archive. It can always be rebuilt from the archive.
+ *  An index may be shared between threads.
+ *
+ *  File format: a 4-byte magic number, then one record per envelope,
+ *  oldest first:
+ *  position (8 bytes), method (1; high bit set for extended envelopes),
+ *  comp. size (8), raw size (8), Adler32 (4), metadata (as in envelopes).
+ */
+public class DeltaZipIndex {
+    public static final int INDEX_MAGIC = 0xCEB47AD2;
+    private static final int METHOD_MASK = 0x0F;
+    private static final int EXTENDED_FLAG = 0x80;
+    public static final String FILE_SUFFIX = ".dzi";
+    private static final int HEADER_LENGTH = 4;
+
+    //==================== Fields ==========================================
+
+    private final FileChannel file;
+    private final boolean writable;
+    private final List<EnvelopeInfo> entries = new ArrayList<EnvelopeInfo>(); // Oldest first.
+    private final List<Long> record_offsets = new ArrayList<Long>();
+    private long index_size;
+
+    //==================== API ==========================================
+
+    public static File indexFileFor(File archive_file) {
+        return new File(archive_file.getPath() + FILE_SUFFIX);
+    }
+
+    /** Open an existing index file for queries; the file is not modified.
+     *  A partially written record at the end (from an interrupted update) is ignored.
+     */
+    public static DeltaZipIndex open(File index_file) throws IOException {
+        return open(index_file, false);
+    }
+
+    /** Open an existing index file, to keep it up to date with the archive.
+     *  A partially written record at the end (from an interrupted update) is discarded.
+     */
+    public static DeltaZipIndex openForUpdate(File index_file) throws IOException {
+        return open(index_file, true);
+    }
+
+    private static DeltaZipIndex open(File index_file, boolean writable) throws IOException {
+        DeltaZipIndex index = new DeltaZipIndex(new RandomAccessFile(index_file, writable ? "rw" : "r").getChannel(), writable);
+        try {
+            index.load();
+        } catch (IOException ioe) {
+            index.close();
+            throw ioe;
+        }
+        return index;
+    }
+
+    /** Create (or overwrite) an index file, by scanning the whole archive once. */
+    public static DeltaZipIndex rebuild(DeltaZip dz, File index_file) throws IOException {
+        List<EnvelopeInfo> scanned = new ArrayList<EnvelopeInfo>();
+        DeltaZip.VersionIterator iter = dz.backwardsIterator();
+        while (iter.hasNext()) {
+            iter.next();
+            scanned.add(iter.getCurrentEnvelope());
+        }
+        Collections.reverse(scanned);
+        return create(index_file, scanned);
+    }
+
+    /** Create (or overwrite) an index file with the given envelopes, oldest first. */
+    static DeltaZipIndex create(File index_file, List<EnvelopeInfo> entries) throws IOException {
+        DeltaZipIndex index = new DeltaZipIndex(new RandomAccessFile(index_file, "rw").getChannel(), true);
+        try {
+            index.truncate(0);
+            ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+            header.putInt(0, INDEX_MAGIC);
+            index.write(header, 0);
+            index.index_size = HEADER_LENGTH;
+            index.append(entries);
+        } catch (IOException ioe) {
+            index.close();
+            throw ioe;
+        }
+        return index;
+    }
+
+    public synchronized void close() throws IOException {
+        file.close();
+    }
+
+    /** The number of versions. */
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /** The envelope of the version 'index_from_newest' steps back (0 is the latest). */
+    public synchronized EnvelopeInfo get(int index_from_newest) {
+        return entries.get(entries.size() - 1 - index_from_newest);
+    }
+
+    /** All envelopes, oldest first. */
+    public synchronized List<EnvelopeInfo> getEntries() {
+        return Collections.unmodifiableList(new ArrayList<EnvelopeInfo>(entries));
+    }
+
+    /** Tells whether the index describes the archive as it currently is:
+     *  its last entry must match the position, tag and checksum of the
+     *  latest envelope, which ends the archive.
+     */
+    public boolean isConsistentWith(DeltaZip.Access access) throws IOException {
+        return isConsistentWith(new DeltaZip(access));
+    }
+
+    /** As isConsistentWith(Access), for the archive read by 'dz'. */
+    public synchronized boolean isConsistentWith(DeltaZip dz) {
+        EnvelopeInfo actual;
+        try {
+            Iterator<EnvelopeInfo> iter = dz.envelopeIterator();
+            if (!iter.hasNext()) return entries.isEmpty();
+            actual = iter.next();
+        } catch (RuntimeException re) {
+            if (re.getCause() instanceof IOException) return false; // No envelope ends the archive.
+            throw re;
+        }
+        if (entries.isEmpty()) return false;
+        EnvelopeInfo expected = entries.get(entries.size()-1);
+        return actual.getPosition() == expected.getPosition() &&
+            actual.getMethod() == expected.getMethod() &&
+            actual.getCompSize() == expected.getCompSize() &&
+            actual.hasExtendedSize() == expected.hasExtendedSize() &&
+            actual.getChecksum() == expected.getChecksum();
+    }
+
+    /** Tells whether the index describes an archive of the given size. */
+    synchronized boolean endsAt(long archive_size) {
+        if (entries.isEmpty()) return archive_size <= DeltaZip.FILE_HEADER_LENGTH;
+        return entries.get(entries.size()-1).getEndPosition() == archive_size;
+    }
+
+    /** Update the index to match the archive after the append specification has been applied.
+     *  @throws IllegalArgumentException if the specification does not describe its envelopes.
+     */
+    public synchronized void applyAppendSpec(AppendSpecification spec) throws IOException {
+        if (spec.new_envelopes == null) {
+            throw new IllegalArgumentException("Append specification has no envelope information; rebuild the index instead");
+        }
+        apply(spec.prefix_size, spec.new_envelopes);
+    }
+
+    /** Update the index to match the archive after a streaming add,
+     *  given the envelopes it wrote. */
+    public synchronized void applyNewEnvelopes(List<EnvelopeInfo> new_envelopes) throws IOException {
+        if (new_envelopes.isEmpty()) return;
+        apply(new_envelopes.get(0).getPosition(), new_envelopes);
+    }
+
+    //==================== Internals =======================================
+
+    private DeltaZipIndex(FileChannel file, boolean writable) {
+        this.file = file;
+        this.writable = writable;
+    }
+
+    private void apply(long prefix_size, List<EnvelopeInfo> new_envelopes) throws IOException {
+        if (!writable) throw new IllegalStateException("Index is open for queries only");
+        // Drop the entries of the replaced tail:
+        int keep = entries.size();
+        while (keep > 0 && entries.get(keep-1).getPosition() >= prefix_size) keep--;
+        if (keep < entries.size()) {
+            truncate(record_offsets.get(keep));
+            entries.subList(keep, entries.size()).clear();
+            record_offsets.subList(keep, record_offsets.size()).clear();
+        }
+
+        append(new_envelopes);
+    }
+
+    private void load() throws IOException {
+        long size = file.size();
+        if (size > Integer.MAX_VALUE) throw new IOException("Index file is too large");
+        ByteBuffer data = DZUtil.readFromChannel(file, 0, (int)size);
+        if (size < HEADER_LENGTH || data.getInt(0) != INDEX_MAGIC) throw new IOException("Not a deltazip index file, or of an older format; rebuild it");
+
+        data.position(HEADER_LENGTH);
+        while (data.hasRemaining()) {
+            int record_start = data.position();
+            try {
+                entries.add(read_record(data));
+                record_offsets.add((long)record_start);
+            } catch (BufferUnderflowException bue) { // Torn write; discard.
+                data.position(record_start);
+                break;
+            }
+        }
+        index_size = data.position();
+        if (index_size < size && writable) truncate(index_size);
+    }
+
+    private void append(List<EnvelopeInfo> new_entries) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        List<Long> new_offsets = new ArrayList<Long>(new_entries.size());
+        for (EnvelopeInfo entry : new_entries) {
+            new_offsets.add(index_size + baos.size());
+            write_record(entry, baos);
+        }
+        write(ByteBuffer.wrap(baos.toByteArray()), index_size);
+
+        entries.addAll(new_entries);
+        record_offsets.addAll(new_offsets);
+        index_size += baos.size();
+    }
+
+    private void truncate(long size) throws IOException {
+        file.truncate(size);
+        index_size = size;
+    }
+
+    private void write(ByteBuffer data, long pos) throws IOException {
+        while (data.hasRemaining()) {
+            pos += file.write(data, pos);
+        }
+    }
+
+    private static void write_record(EnvelopeInfo entry, ByteArrayOutputStream out) throws IOException {
+        DataOutputStream dos = new DataOutputStream(out);
+        dos.writeLong(entry.getPosition());
+        dos.writeByte(entry.getMethod() | (entry.hasExtendedSize() ? EXTENDED_FLAG : 0));
+        dos.writeLong(entry.getCompSize());
+        dos.writeLong(entry.getRawSize());
+        dos.writeInt(entry.getChecksum());
+        dos.flush();
+        Metadata.pack(entry.getMetadata(), out);
+    }
+
+    private static EnvelopeInfo read_record(ByteBuffer src) throws IOException {
+        long position = src.getLong();
+        int method_byte = src.get() & 0xFF;
+        long comp_size = src.getLong();
+        long raw_size  = src.getLong();
+        int checksum   = src.getInt();
+        List<Metadata.Item> metadata = Metadata.unpack(src);
+        return new EnvelopeInfo(position, method_byte & METHOD_MASK, comp_size, (method_byte & EXTENDED_FLAG) != 0,
+                                raw_size, checksum, metadata);
+    }
+}
@@ -0,0 +1,351 @@
+package com.trifork.deltazip;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+/** A directory of DeltaZip archives, one per key.
+ *  Archives are spread over two levels of subdirectories by a hash of the
+ *  key (see pathFor()). Recently used archives are kept open, with their
+ *  format version read, so that small reads and appends do not pay for
+ *  opening the file and reading its header each time.
+ *  Appends to one archive are serialized by a lock striped by key, so
+ *  appends to unrelated archives run in parallel. Reads only take the
+ *  lock when the archive needs to be opened.
+ *  The store may be shared between threads.
+ */
+public class DeltaZipStore implements Closeable {
+    public static final int DEFAULT_MAX_OPEN =
+        Integer.getInteger("deltazip-store-max-open", 256);
+    public static final int DEFAULT_LOCK_STRIPES =
+        Integer.getInteger("deltazip-store-lock-stripes", 64);
+    public static final String FILE_SUFFIX = ".dz";
+    /** The longest file name which file systems commonly allow (NAME_MAX). */
+    public static final int MAX_NAME_LENGTH = 255;
+    /** Bytes of the key hash in shortened names. */
+    private static final int LONG_NAME_HASH_LENGTH = 16;
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    //==================== Fields ==========================================
+
+    private final File root;
+    private final int max_open;
+    private final ReentrantLock[] stripes;
+    /** Open archives, least recently used first. Guarded by 'this'. */
+    private final LinkedHashMap<String,Handle> open_handles;
+    /** Evicted archives which are still in use. Guarded by 'this'.
+     *  They are taken back into use rather than opened again, because
+     *  concurrent reads and writes are only coordinated within one handle. */
+    private final Map<String,Handle> retired_handles = new HashMap<String,Handle>();
+    private boolean closed;
+    /** Settings for the archives, applied as they are opened. */
+    private volatile FormatVersion new_archive_format = FormatVersion.fromNumber(DeltaZip.DEFAULT_NEW_ARCHIVE_FORMAT);
+    private volatile int snapshot_method = DeltaZip.DEFAULT_SNAPSHOT_METHOD;
+    private volatile EncodingProfile encoding_profile = EncodingProfile.DEFAULT;
+
+    //==================== API ==========================================
+
+    public DeltaZipStore(File root) {
+        this(root, DEFAULT_MAX_OPEN, DEFAULT_LOCK_STRIPES);
+    }
+
+    /**
+     * @param max_open  the number of archives to keep open.
+     * @param lock_stripes  the number of locks to spread the keys over.
+     */
+    public DeltaZipStore(File root, int max_open, int lock_stripes) {
+        if (max_open < 1) throw new IllegalArgumentException("Bad max. number of open archives: "+max_open);
+        if (lock_stripes < 1) throw new IllegalArgumentException("Bad number of lock stripes: "+lock_stripes);
+        this.root = root;
+        this.max_open = max_open;
+        this.stripes = new ReentrantLock[lock_stripes];
+        for (int i=0; i<lock_stripes; i++) stripes[i] = new ReentrantLock();
+        this.open_handles = new LinkedHashMap<String,Handle>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String,Handle> eldest) {
+                if (size() <= DeltaZipStore.this.max_open) return false;
+                if (eldest.getValue().retire()) retired_handles.put(eldest.getKey(), eldest.getValue());
+                return true;
+            }
+        };
+    }
+
+    /** Sets the format of archives created from now on (see DeltaZip.setNewArchiveFormat()). */
+    public void setNewArchiveFormat(FormatVersion format) {
+        if (format == null) throw new NullPointerException();
+        this.new_archive_format = format;
+        for (Handle handle : handles()) handle.dz.setNewArchiveFormat(format);
+    }
+
+    /** Sets the snapshot method of the archives (see DeltaZip.setSnapshotMethod()). */
+    public void setSnapshotMethod(int method) {
+        this.snapshot_method = DeltaZip.check_snapshot_method(method);
+        for (Handle handle : handles()) handle.dz.setSnapshotMethod(method);
+    }
+
+    /** Sets the encoding profile of the archives (see DeltaZip.setEncodingProfile()). */
+    public void setEncodingProfile(EncodingProfile profile) {
+        if (profile == null) throw new NullPointerException();
+        this.encoding_profile = profile;
+        for (Handle handle : handles()) handle.dz.setEncodingProfile(profile);
+    }
+
+    /** The file holding the archive for 'key':
+     *  root/xx/yy/name.dz, where xx and yy are hex digits of a hash of the
+     *  key, and the name is the key with characters other than letters,
+     *  digits, '-' and '_' percent-encoded (as UTF-8).
+     *  Names which would be longer than file systems allow (MAX_NAME_LENGTH)
+     *  are cut short, and end with '~' and a SHA-256 hash of the whole key
+     *  instead, so that long keys still get files of their own.
+     */
+    public File pathFor(String key) {
+        byte[] key_bytes = key.getBytes(UTF8);
+        CRC32 crc = new CRC32();
+        crc.update(key_bytes);
+        int hash = (int) crc.getValue();
+
+        StringBuilder name = new StringBuilder(key_bytes.length + FILE_SUFFIX.length());
+        for (byte b : key_bytes) {
+            char c = (char)(b & 0xFF);
+            if ((c>='a' && c<='z') || (c>='A' && c<='Z') || (c>='0' && c<='9') || c=='-' || c=='_') {
+                name.append(c);
+            } else {
+                name.append('%').append(HEX_DIGITS[(b >> 4) & 15]).append(HEX_DIGITS[b & 15]);
+            }
+        }
+        if (name.length() > MAX_NAME_LENGTH - FILE_SUFFIX.length()) {
+            int keep = MAX_NAME_LENGTH - FILE_SUFFIX.length() - 1 - 2*LONG_NAME_HASH_LENGTH;
+            if (name.charAt(keep-1) == '%') keep -= 1; // Don't cut escapes in two.
+            else if (name.charAt(keep-2) == '%') keep -= 2;
+            name.setLength(keep);
+            name.append('~');
+            for (byte b : sha256(key_bytes, LONG_NAME_HASH_LENGTH)) name.append(hex_byte(b));
+        }
+        name.append(FILE_SUFFIX);
+        File dir = new File(new File(root, hex_byte(hash >>> 24)), hex_byte(hash >>> 16));
+        return new File(dir, name.toString());
+    }
+
+    /** Add a version to the archive for 'key', creating the archive if needed. */
+    public void add(String key, Version version) throws IOException {
+        ReentrantLock lock = stripe_for(key);
+        lock.lock();
+        try {
+            Handle handle = acquire(key, true);
+            try {
+                handle.dz.applyAppendSpec(handle.dz.add(version));
+            } finally {
+                release(handle);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** The latest version in the archive for 'key', or null if there is none. */
+    public Version latest(String key) throws IOException {
+        Handle handle = acquire(key, false);
+        if (handle == null) return null;
+        try {
+            return handle.dz.latestVersion();
+        } finally {
+            release(handle);
+        }
+    }
+
+    /** Repack the archive for 'key' (see Repacker.repack()), while appends to
+     *  it wait. If the archive is replaced, its handle is closed (when no
+     *  longer in use), so that later operations open the new file.
+     *  @return null if the archive does not exist. */
+    public Repacker.Result repack(String key, Repacker repacker) throws IOException {
+        return rewrite(key, repacker, null);
+    }
+
+    /** Prune the archive for 'key' (see Repacker.prune()), as repack() does. */
+    public Repacker.Result prune(String key, Repacker repacker, RetentionPolicy policy) throws IOException {
+        if (policy == null) throw new NullPointerException();
+        return rewrite(key, repacker, policy);
+    }
+
+    /** Close all archives. Archives in use are closed when their operations finish. */
+    public void close() throws IOException {
+        List<Handle> handles;
+        synchronized (this) {
+            closed = true;
+            handles = new ArrayList<Handle>(open_handles.values());
+            open_handles.clear();
+            retired_handles.clear();
+        }
+        for (Handle handle : handles) handle.retire();
+    }
+
+    //==================== Internals =======================================
+
+    /** An open archive. Closed when it has been evicted and is no longer in use. */
+    private static class Handle {
+        final DZUtil.FileAccess access;
+        final DeltaZip dz;
+        /** Guarded by the handle itself. */
+        int users = 1; // The opener.
+        boolean retired;
+
+        Handle(DZUtil.FileAccess access, DeltaZip dz) {
+            this.access = access;
+            this.dz = dz;
+        }
+
+        /** @return true if the handle is still in use, and will be closed when released. */
+        boolean retire() {
+            boolean do_close;
+            synchronized (this) {
+                retired = true;
+                do_close = (users == 0);
+            }
+            if (do_close) close_quietly();
+            return !do_close;
+        }
+
+        void close_quietly() {
+            try {
+                access.close();
+            } catch (IOException ioe) {} // Nothing was left unwritten.
+        }
+    }
+
+    private ReentrantLock stripe_for(String key) {
+        int h = key.hashCode();
+        h ^= (h >>> 16);
+        return stripes[(h & 0x7FFFFFFF) % stripes.length];
+    }
+
+    /** Get the open archive for 'key', opening it if necessary.
+     *  @return null if the archive does not exist and 'create' is false. */
+    private Handle acquire(String key, boolean create) throws IOException {
+        Handle handle = lookup(key);
+        if (handle != null) return handle;
+
+        // Open it under the key's lock, so that it is not opened twice:
+        ReentrantLock lock = stripe_for(key);
+        lock.lock();
+        try {
+            handle = lookup(key);
+            if (handle != null) return handle;
+
+            File file = pathFor(key);
+            if (!file.exists()) {
+                if (!create) return null;
+                File dir = file.getParentFile();
+                if (!dir.isDirectory() && !dir.mkdirs() && !dir.isDirectory()) {
+                    throw new IOException("Could not create directory "+dir);
+                }
+            }
+            DZUtil.FileAccess access = new DZUtil.FileAccess(file, true);
+            try {
+                handle = new Handle(access, new DeltaZip(access));
+            } catch (IOException ioe) {
+                access.close();
+                throw ioe;
+            }
+
+            synchronized (this) {
+                if (closed) {
+                    access.close();
+                    throw new IllegalStateException("Store is closed");
+                }
+                // Under the store's lock, so that concurrent setters reach it:
+                handle.dz.setNewArchiveFormat(new_archive_format);
+                handle.dz.setSnapshotMethod(snapshot_method);
+                handle.dz.setEncodingProfile(encoding_profile);
+                open_handles.put(key, handle);
+            }
+            return handle;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private Repacker.Result rewrite(String key, Repacker repacker, RetentionPolicy policy) throws IOException {
+        ReentrantLock lock = stripe_for(key);
+        lock.lock();
+        try {
+            synchronized (this) {
+                if (closed) throw new IllegalStateException("Store is closed");
+            }
+            File file = pathFor(key);
+            if (!file.exists()) return null;
+            Repacker.Result result = (policy == null) ? repacker.repack(file) : repacker.prune(file, policy);
+            if (result.isReplaced()) evict(key);
+            return result;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Forget the open archive for 'key'; it is closed when no longer in use.
+     *  Readers which have it keep reading the file it was opened on. */
+    private void evict(String key) {
+        Handle handle;
+        synchronized (this) {
+            handle = open_handles.remove(key);
+            if (handle == null) handle = retired_handles.remove(key);
+        }
+        if (handle != null) handle.retire();
+    }
+
+    /** The open archives, including those which are in use after eviction. */
+    private synchronized List<Handle> handles() {
+        List<Handle> handles = new ArrayList<Handle>(open_handles.values());
+        handles.addAll(retired_handles.values());
+        return handles;
+    }
+
+    private synchronized Handle lookup(String key) {
+        if (closed) throw new IllegalStateException("Store is closed");
+        Handle handle = open_handles.get(key);
+        if (handle == null) {
+            handle = retired_handles.remove(key);
+            if (handle == null) return null;
+            synchronized (handle) {handle.retired = false;}
+            open_handles.put(key, handle);
+        }
+        synchronized (handle) {handle.users++;}
+        return handle;
+    }
+
+    private void release(Handle handle) {
+        boolean do_close;
+        synchronized (this) {
+            synchronized (handle) {
+                handle.users--;
+                do_close = handle.retired && handle.users == 0;
+            }
+            if (do_close) retired_handles.values().remove(handle);
+        }
+        if (do_close) handle.close_quietly();
+    }
+
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    private static byte[] sha256(byte[] data, int length) {
+        try {
+            return Arrays.copyOf(MessageDigest.getInstance("SHA-256").digest(data), length);
+        } catch (NoSuchAlgorithmException nsae) {
+            throw new RuntimeException("Can't happen: every JVM has SHA-256", nsae);
+        }
+    }
+
+    private static String hex_byte(int b) {
+        return new String(new char[] {HEX_DIGITS[(b >> 4) & 15], HEX_DIGITS[b & 15]});
+    }
+}
@@ -0,0 +1,117 @@
+package com.trifork.deltazip;
+
+import java.util.zip.Deflater;
+
+/** How much effort to spend on encoding new versions: the deflate settings,
+ *  which chunk options the chunked methods try, and which delta methods
+ *  compete for each version.
+ *  Decoding speed is not affected; archives written with different profiles
+ *  can be read by the same readers.
+ */
+public class EncodingProfile {
+    /** Deflate quickly, try few chunk options, and compete only the cheap delta methods.
+     *  For archives which change often. */
+    public static final EncodingProfile FAST =
+        new EncodingProfile("fast", Deflater.BEST_SPEED, Deflater.DEFAULT_STRATEGY,
+                            new int[] {0}, new int[] {0, 2, 3}, 0,
+                            new int[] {DeltaZip.METHOD_CHUNKED_MIDDLE, DeltaZip.METHOD_BLOCK_COPY});
+    public static final EncodingProfile BALANCED =
+        new EncodingProfile("balanced", Deflater.DEFAULT_COMPRESSION, Deflater.DEFAULT_STRATEGY,
+                            new int[] {0}, new int[] {0, 1, 2, 3}, 1,
+                            new int[] {DeltaZip.METHOD_CHUNKED_MIDDLE, DeltaZip.METHOD_BLOCK_COPY, DeltaZip.METHOD_LONG_RANGE_LZ});
+    /** All delta methods and chunk options, at the best deflate level;
+     *  of the chunk options, only the two best estimated ones are deflated
+     *  at that level. For archives which are rarely written. */
+    public static final EncodingProfile MAX =
+        new EncodingProfile("max", Deflater.BEST_COMPRESSION, Deflater.DEFAULT_STRATEGY,
+                            new int[] {0, 1, 2}, new int[] {0, 1, 2, 3}, 2,
+                            new int[] {DeltaZip.METHOD_CHUNKED_MIDDLE, DeltaZip.METHOD_CHUNKED_MIDDLE2,
+                                       DeltaZip.METHOD_BLOCK_COPY, DeltaZip.METHOD_LONG_RANGE_LZ});
+    /** As MAX, but with every chunk option deflated at the best level and
+     *  compared exactly. Used for repacking, where only the size counts. */
+    public static final EncodingProfile EXHAUSTIVE =
+        new EncodingProfile("exhaustive", Deflater.BEST_COMPRESSION, Deflater.DEFAULT_STRATEGY,
+                            new int[] {0, 1, 2}, new int[] {0, 1, 2, 3}, 0,
+                            new int[] {DeltaZip.METHOD_CHUNKED_MIDDLE, DeltaZip.METHOD_CHUNKED_MIDDLE2,
+                                       DeltaZip.METHOD_BLOCK_COPY, DeltaZip.METHOD_LONG_RANGE_LZ});
+
+    /** The profile of a new DeltaZip: "max", or the one named by -Ddeltazip-encoding-profile. */
+    public static final EncodingProfile DEFAULT = named(System.getProperty("deltazip-encoding-profile", "max"));
+
+    private final String name;
+    private final int deflate_level, deflate_strategy;
+    private final int[] dsize_specs, rskip_specs;
+    private final int chunk_finalists;
+    private final DeltaZip.CompressionMethod[] delta_methods;
+
+    /**
+     * @param deflate_level     a Deflater level (0-9, or -1 for zlib's default).
+     * @param deflate_strategy  a Deflater strategy.
+     * @param dsize_specs       the chunk sizes tried by the chunked methods besides the
+     *                          whole rest of the data: 0, 1 and 2 for 16, 24 and 32 KB.
+     * @param rskip_specs       the reference skips tried: 0 to 3 for 0, 8, 16 and 24 KB.
+     * @param chunk_finalists   how many of the chunk options, ranked by a quick deflate,
+     *                          are deflated at 'deflate_level' and compared exactly;
+     *                          0 means that all of them are.
+     * @param delta_methods     the delta method numbers to try; the most compact result is used.
+     *                          On ties, the earlier method wins. Methods which the
+     *                          archive's format does not allow are skipped.
+     */
+    public EncodingProfile(String name, int deflate_level, int deflate_strategy,
+                           int[] dsize_specs, int[] rskip_specs, int chunk_finalists, int[] delta_methods) {
+        if (deflate_level < -1 || deflate_level > 9) throw new IllegalArgumentException("Bad deflate level: "+deflate_level);
+        if (deflate_strategy != Deflater.DEFAULT_STRATEGY && deflate_strategy != Deflater.FILTERED &&
+            deflate_strategy != Deflater.HUFFMAN_ONLY) {
+            throw new IllegalArgumentException("Bad deflate strategy: "+deflate_strategy);
+        }
+        check_specs("chunk size", dsize_specs, 2);
+        check_specs("reference skip", rskip_specs, 3);
+        if (chunk_finalists < 0) throw new IllegalArgumentException("Bad chunk finalist count: "+chunk_finalists);
+        if (delta_methods.length == 0) throw new IllegalArgumentException("No delta methods");
+        this.name = name;
+        this.deflate_level = deflate_level;
+        this.deflate_strategy = deflate_strategy;
+        this.dsize_specs = dsize_specs.clone();
+        this.rskip_specs = rskip_specs.clone();
+        this.chunk_finalists = chunk_finalists;
+        this.delta_methods = new DeltaZip.CompressionMethod[delta_methods.length];
+        for (int i=0; i<delta_methods.length; i++) {
+            int method = delta_methods[i];
+            DeltaZip.CompressionMethod cm = (method >= 0 && method < DeltaZip.COMPRESSION_METHODS.length) ? DeltaZip.COMPRESSION_METHODS[method] : null;
+            if (cm == null || DeltaZip.is_snapshot_method(method)) throw new IllegalArgumentException("Not a delta method: "+method);
+            this.delta_methods[i] = cm;
+        }
+    }
+
+    private static void check_specs(String what, int[] specs, int max) {
+        if (specs.length == 0) throw new IllegalArgumentException("No "+what+" options");
+        for (int spec : specs) {
+            if (spec < 0 || spec > max) throw new IllegalArgumentException("Bad "+what+" option: "+spec);
+        }
+    }
+
+    /** @return FAST, BALANCED, MAX or EXHAUSTIVE, by name. */
+    public static EncodingProfile named(String name) {
+        if ("fast".equals(name))     return FAST;
+        if ("balanced".equals(name)) return BALANCED;
+        if ("max".equals(name))      return MAX;
+        if ("exhaustive".equals(name)) return EXHAUSTIVE;
+        throw new IllegalArgumentException("Unknown encoding profile: "+name);
+    }
+
+    public String getName() {return name;}
+    public int getDeflateLevel() {return deflate_level;}
+    public int getDeflateStrategy() {return deflate_strategy;}
+
+    int[] dsizeSpecs() {return dsize_specs;}
+    int[] rskipSpecs() {return rskip_specs;}
+    int chunkFinalists() {return chunk_finalists;}
+    DeltaZip.CompressionMethod[] deltaMethods() {return delta_methods;}
+
+    /** Borrow a deflater with this profile's settings from the shared pool. */
+    Deflater borrowDeflater() {
+        return CodecPool.shared().borrowDeflater(deflate_level, deflate_strategy);
+    }
+
+    public String toString() {return "EncodingProfile("+name+")";}
+}
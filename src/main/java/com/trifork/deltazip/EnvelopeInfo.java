@@ -0,0 +1,77 @@
+package com.trifork.deltazip;
+
+import java.util.Collections;
+import java.util.List;
+
+/** Describes one envelope (one stored version) of a DeltaZip archive,
+ *  without its contents.
+ */
+public class EnvelopeInfo {
+    /** Size of start tag, checksum and end tag. */
+    public static final int ENVELOPE_OVERHEAD = 4 + 4 + 4;
+    /** Additional size of the 64-bit sizes in extended envelopes. */
+    public static final int EXTENDED_OVERHEAD = 8 + 8;
+
+    private final long position;
+    private final int method;
+    private final long comp_size;
+    private final boolean extended;
+    private final long raw_size;
+    private final int checksum;
+    private final List<Metadata.Item> metadata;
+
+    public EnvelopeInfo(long position, int method, long comp_size, long raw_size, int checksum, List<Metadata.Item> metadata) {
+        this(position, method, comp_size, false, raw_size, checksum, metadata);
+    }
+
+    /** @param extended  whether the envelope carries its size as 64-bit integers (format version 12). */
+    public EnvelopeInfo(long position, int method, long comp_size, boolean extended, long raw_size, int checksum, List<Metadata.Item> metadata) {
+        this.position = position;
+        this.method = method;
+        this.comp_size = comp_size;
+        this.extended = extended;
+        this.raw_size = raw_size;
+        this.checksum = checksum;
+        this.metadata = Collections.unmodifiableList(metadata);
+    }
+
+    /** The position of the start of the envelope in the archive. */
+    public long getPosition() {return position;}
+
+    /** The position just after the end of the envelope. */
+    public long getEndPosition() {return position + comp_size + ENVELOPE_OVERHEAD + (extended ? EXTENDED_OVERHEAD : 0);}
+
+    public int getMethod() {return method;}
+
+    public boolean isSnapshot() {return method < DeltaZip.METHOD_CHUNKED;}
+
+    /** The size of the envelope contents (metadata and compressed data). */
+    public long getCompSize() {return comp_size;}
+
+    public boolean hasExtendedSize() {return extended;}
+
+    /** The size of the version, or -1 if not known. */
+    public long getRawSize() {return raw_size;}
+
+    /** The Adler32 checksum of the version. */
+    public int getChecksum() {return checksum;}
+
+    public List<Metadata.Item> getMetadata() {return metadata;}
+
+    /** The same envelope, moved by 'offset' bytes. */
+    EnvelopeInfo relocate(long offset) {
+        return new EnvelopeInfo(position + offset, method, comp_size, extended, raw_size, checksum, metadata);
+    }
+
+    @Override
+    public String toString() {
+        return "EnvelopeInfo{position=" + position +
+                ", method=" + method +
+                ", comp_size=" + comp_size +
+                (extended ? " (extended)" : "") +
+                ", raw_size=" + raw_size +
+                ", checksum=" + checksum +
+                ", metadata=" + metadata +
+                '}';
+    }
+}
@@ -1,22 +1,70 @@
 package com.trifork.deltazip;
 
 import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 
-/** ByteArrayOutputStream with support for "blanks to be filled in later".
+/** ByteArrayOutputStream with support for "blanks to be filled in later",
+ *  and for handing over its contents without copying.
  */
 class ExtByteArrayOutputStream extends ByteArrayOutputStream {
+    public ExtByteArrayOutputStream() {super();}
+
+    public ExtByteArrayOutputStream(int initial_capacity) {super(initial_capacity);}
+
+    /** Make room for at least 'min' more bytes, and return the internal buffer.
+     *  The caller may write into it from size() on, and must then call advance().
+     */
+    byte[] reserve(int min) {
+        if (buf.length - count < min) {
+            long new_capacity = Math.max(2L * buf.length, (long)count + min);
+            if (new_capacity > Integer.MAX_VALUE - 8) new_capacity = Integer.MAX_VALUE - 8;
+            if (new_capacity - count < min) throw new OutOfMemoryError("Buffer size limit exceeded");
+            buf = Arrays.copyOf(buf, (int)new_capacity);
+        }
+        return buf;
+    }
+
+    /** Account for 'len' bytes written directly into the buffer returned by reserve(). */
+    void advance(int len) {
+        if (len < 0 || count + len > buf.length) throw new IllegalArgumentException("Bad length: "+len);
+        count += len;
+    }
+
+    /** The contents so far, as a buffer sharing this stream's storage.
+     *  The stream should not be written to while the buffer is in use.
+     */
+    public ByteBuffer toByteBuffer() {
+        return ByteBuffer.wrap(buf, 0, count);
+    }
+
     public Gap insertGap(int len) {
         int pos = count;
         for (int i=0; i<len; i++) write(0);
         return new Gap(this, pos, len);
     }
 
+    /** Insert 'len' blank bytes at 'pos', moving what follows. */
+    public Gap insertGapAt(int pos, int len) {
+        if (pos < 0 || pos > count) throw new IllegalArgumentException("Bad position: "+pos);
+        reserve(len);
+        System.arraycopy(buf, pos, buf, pos+len, count-pos);
+        count += len;
+        return new Gap(this, pos, len);
+    }
+
     public void writeBigEndianInteger(int value, int len) {
         for (int i=len-1; i>=0; i--) {
             write(value >> (8*i));
         }
     }
 
+    public void writeBigEndianLong(long value) {
+        for (int i=7; i>=0; i--) {
+            write((int)(value >> (8*i)));
+        }
+    }
+
     public static class Gap {
         private final ExtByteArrayOutputStream str;
         private final int pos, size;
@@ -49,6 +97,15 @@ class ExtByteArrayOutputStream extends ByteArrayOutputStream {
             }
         }
 
+        public void fillWithBigEndianLong(long value) {
+            if (size != 8) {
+                throw new IllegalArgumentException("Can't fill gap of size "+size+" with a long");
+            }
+            for (int i=0; i<8; i++) {
+                str.buf[pos+i] = (byte) (value >> (8*(7-i)));
+            }
+        }
+
     }
 
 }
@@ -0,0 +1,186 @@
+package com.trifork.deltazip;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+import java.nio.ByteBuffer;
+
+import java.util.zip.Inflater;
+
+/** Snapshot method which trades compression ratio for speed: a
+ *  byte-oriented LZ77 code in the manner of LZ4, without entropy coding,
+ *  which decodes with plain array copies and no Inflater.
+ *  Meant for archives whose latest version is read often and must be read
+ *  quickly.
+ *
+ *  Format: the version length as a varlen integer, then sequences of
+ *  a token byte (literal count in the high nibble, match length - 4 in the
+ *  low nibble; 15 means that more follows, in bytes which are added up
+ *  until one is not 255), the literals, and a 2-byte little-endian match
+ *  offset. The last sequence has only literals.
+ */
+class FastLZMethod extends DeltaZip.CompressionMethod {
+	//==================== Constants =======================================
+
+	private static final int MIN_MATCH = 4;
+	private static final int MAX_OFFSET = 0xFFFF;
+	/** The last match starts at least this far from the end,
+	 *  and the version ends with at least LAST_LITERALS literals. */
+	private static final int MATCH_FIND_LIMIT = 12;
+	private static final int LAST_LITERALS = 5;
+	private static final int HASH_BITS = 14;
+	/** Step faster through data which does not compress. */
+	private static final int SKIP_STRENGTH = 6;
+
+	//==================== API fulfillment ==============================
+	public int methodNumber() {return DeltaZip.METHOD_FAST_LZ;}
+
+	@Override
+	public boolean usesInflater() {return false;}
+
+	//==================== Uncompression: ========================================
+	public void uncompress(ByteBuffer org, ByteBuffer ref_data, Inflater inflater, OutputStream dst) throws ArchiveIntegrityException, IOException {
+		int length = DZUtil.varlen_decode(org);
+		byte[] src;
+		int ip, src_end;
+		if (org.hasArray()) {
+			src = org.array();
+			ip = org.arrayOffset() + org.position();
+			src_end = org.arrayOffset() + org.limit();
+		} else {
+			src = DZUtil.remainingToByteArray(org.duplicate());
+			ip = 0;
+			src_end = src.length;
+		}
+		org.position(org.limit());
+
+		byte[] out = new byte[length];
+		int op = 0;
+		try {
+			while (true) {
+				int token = src[ip++] & 0xFF;
+
+				// Literals:
+				int literals = token >>> 4;
+				if (literals == 15) {
+					int b;
+					do {
+						b = src[ip++] & 0xFF;
+						literals += b;
+					} while (b == 255);
+				}
+				if (literals > src_end - ip || literals > length - op) throw new ArchiveIntegrityException("Literals out of range: "+literals);
+				System.arraycopy(src, ip, out, op, literals);
+				ip += literals;
+				op += literals;
+				if (ip == src_end) break;
+
+				// Match:
+				int offset = (src[ip] & 0xFF) | (src[ip+1] & 0xFF) << 8;
+				ip += 2;
+				int match_length = token & 15;
+				if (match_length == 15) {
+					int b;
+					do {
+						b = src[ip++] & 0xFF;
+						match_length += b;
+					} while (b == 255);
+				}
+				match_length += MIN_MATCH;
+				int match = op - offset;
+				if (offset == 0 || match < 0 || match_length > length - op) {
+					throw new ArchiveIntegrityException("Match out of range: "+offset+"/"+match_length);
+				}
+				if (offset >= match_length) {
+					System.arraycopy(out, match, out, op, match_length);
+					op += match_length;
+				} else { // Overlapping.
+					for (int i=0; i<match_length; i++) out[op++] = out[match + i];
+				}
+			}
+		} catch (ArrayIndexOutOfBoundsException aioobe) {
+			throw new ArchiveIntegrityException("Compressed data is truncated");
+		}
+		if (op != length) throw new ArchiveIntegrityException("Version has wrong length: "+op+" vs. "+length);
+		dst.write(out);
+	}
+
+	//==================== Compression: ========================================
+	public void compress(ByteBuffer org, ByteBuffer ref_data, OutputStream dst) throws IOException {
+		byte[] src;
+		int start, end;
+		if (org.hasArray()) {
+			src = org.array();
+			start = org.arrayOffset() + org.position();
+			end = org.arrayOffset() + org.limit();
+		} else {
+			src = DZUtil.remainingToByteArray(org.duplicate());
+			start = 0;
+			end = src.length;
+		}
+		DZUtil.varlen_encode(end - start, dst);
+
+		ExtByteArrayOutputStream out = new ExtByteArrayOutputStream(Math.max(16, (end - start) / 2));
+		int anchor = start;
+		if (end - start > MATCH_FIND_LIMIT) {
+			int[] table = new int[1 << HASH_BITS]; // Position - start + 1; 0 is empty.
+			int match_limit = end - LAST_LITERALS;
+			int find_limit = end - MATCH_FIND_LIMIT;
+			int ip = start;
+			while (ip < find_limit) {
+				int h = hash(read_int(src, ip));
+				int entry = table[h];
+				table[h] = ip - start + 1;
+				int ref = start + entry - 1;
+				if (entry == 0 || ip - ref > MAX_OFFSET || read_int(src, ref) != read_int(src, ip)) {
+					ip += 1 + ((ip - anchor) >>> SKIP_STRENGTH);
+					continue;
+				}
+
+				// Extend the match both ways:
+				while (ip > anchor && ref > start && src[ip-1] == src[ref-1]) {
+					ip--;
+					ref--;
+				}
+				int match_length = MIN_MATCH;
+				while (ip + match_length < match_limit && src[ip + match_length] == src[ref + match_length]) match_length++;
+
+				write_sequence(src, anchor, ip - anchor, ip - ref, match_length, out);
+				ip += match_length;
+				anchor = ip;
+				if (ip < find_limit) table[hash(read_int(src, ip - 2))] = ip - 2 - start + 1;
+			}
+		}
+		write_literals(src, anchor, end - anchor, out);
+		out.writeTo(dst);
+	}
+
+	private static void write_sequence(byte[] src, int literal_start, int literals, int offset, int match_length, ExtByteArrayOutputStream out) {
+		int extra_match = match_length - MIN_MATCH;
+		out.write((Math.min(literals, 15) << 4) | Math.min(extra_match, 15));
+		if (literals >= 15) write_length(literals - 15, out);
+		out.write(src, literal_start, literals);
+		out.write(offset & 0xFF);
+		out.write(offset >>> 8);
+		if (extra_match >= 15) write_length(extra_match - 15, out);
+	}
+
+	private static void write_literals(byte[] src, int literal_start, int literals, ExtByteArrayOutputStream out) {
+		out.write(Math.min(literals, 15) << 4);
+		if (literals >= 15) write_length(literals - 15, out);
+		out.write(src, literal_start, literals);
+	}
+
+	private static void write_length(int length, ExtByteArrayOutputStream out) {
+		for (; length >= 255; length -= 255) out.write(255);
+		out.write(length);
+	}
+
+	private static int read_int(byte[] src, int pos) {
+		return (src[pos] & 0xFF) | (src[pos+1] & 0xFF) << 8 | (src[pos+2] & 0xFF) << 16 | (src[pos+3] & 0xFF) << 24;
+	}
+
+	private static int hash(int value) {
+		return (value * 0x9E3779B1) >>> (32 - HASH_BITS);
+	}
+}
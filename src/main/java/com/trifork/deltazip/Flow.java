@@ -0,0 +1,26 @@
+package com.trifork.deltazip;
+
+/** Interfaces for demand-driven streams, with the same shape and rules as
+ *  java.util.concurrent.Flow (Java 9) and Reactive Streams, so that
+ *  adapting to either takes only a wrapper.
+ */
+public final class Flow {
+    private Flow() {}
+
+    public interface Publisher<T> {
+        void subscribe(Subscriber<? super T> subscriber);
+    }
+
+    public interface Subscriber<T> {
+        void onSubscribe(Subscription subscription);
+        void onNext(T item);
+        void onError(Throwable throwable);
+        void onComplete();
+    }
+
+    public interface Subscription {
+        /** Ask for up to 'n' more items. A non-positive 'n' is signalled as an error. */
+        void request(long n);
+        void cancel();
+    }
+}
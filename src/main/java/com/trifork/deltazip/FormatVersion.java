@@ -3,20 +3,74 @@ package com.trifork.deltazip;
 /** Represents version differences.
  */
 public abstract class FormatVersion {
+    public abstract int versionNumber();
     public abstract boolean supportsMetadata();
     public abstract int versionSizeBits();
 
     public int versionSizeLimit() { return 1 << versionSizeBits();}
 
+    /** Whether envelopes may be larger than the tag's size field can express.
+     *  Such envelopes have the size field set to extendedSizeMarker(), and
+     *  carry their size as a 64-bit integer after the start tag and before
+     *  the end tag. */
+    public boolean supportsExtendedSizes() { return false; }
+
+    public int extendedSizeMarker() { return versionSizeLimit() - 1; }
+
+    /** Whether envelopes may use the given compression method.
+     *  Readers of a format know only the methods it allows. */
+    public boolean supportsMethod(int method) {
+        return method < DeltaZip.METHOD_BLOCK_COPY && method != DeltaZip.METHOD_FAST_LZ;
+    }
+
     public static FormatVersion VERSION_10 = new FormatVersion() {
+        @Override public int versionNumber() { return DeltaZip.VERSION_10; }
+
         @Override public boolean supportsMetadata() { return false; }
 
         @Override public int versionSizeBits() { return 28; }
     };
 
     public static FormatVersion VERSION_11 = new FormatVersion() {
+        @Override public int versionNumber() { return DeltaZip.VERSION_11; }
+
         @Override public boolean supportsMetadata() { return true; }
 
         @Override public int versionSizeBits() { return 27; }
     };
+
+    /** As version 11, plus extended (64-bit) envelope sizes. */
+    public static FormatVersion VERSION_12 = new FormatVersion() {
+        @Override public int versionNumber() { return DeltaZip.VERSION_12; }
+
+        @Override public boolean supportsMetadata() { return true; }
+
+        @Override public int versionSizeBits() { return 27; }
+
+        @Override public boolean supportsExtendedSizes() { return true; }
+    };
+
+    /** As version 12, plus the FastLZ snapshot method and the block-copy
+     *  and long-range LZ delta methods. */
+    public static FormatVersion VERSION_13 = new FormatVersion() {
+        @Override public int versionNumber() { return DeltaZip.VERSION_13; }
+
+        @Override public boolean supportsMetadata() { return true; }
+
+        @Override public int versionSizeBits() { return 27; }
+
+        @Override public boolean supportsExtendedSizes() { return true; }
+
+        @Override public boolean supportsMethod(int method) { return true; }
+    };
+
+    public static FormatVersion fromNumber(int version_number) {
+        switch (version_number) {
+        case DeltaZip.VERSION_10: return VERSION_10;
+        case DeltaZip.VERSION_11: return VERSION_11;
+        case DeltaZip.VERSION_12: return VERSION_12;
+        case DeltaZip.VERSION_13: return VERSION_13;
+        default: return null;
+        }
+    }
 }
@@ -0,0 +1,262 @@
+package com.trifork.deltazip;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.trifork.deltazip.DeltaZip.AppendSpecification;
+
+/** Adds versions to any number of archives and makes them durable in
+ *  batches ("group commit"), so that the cost of forcing data to disk is
+ *  shared by all appends in a commit window rather than paid per append.
+ *
+ *  A commit window closes when it holds max_batch appends, or when
+ *  max_delay has passed since its first append arrived. Then the appends
+ *  of each archive in the window are made, in the order they were
+ *  submitted: consecutive new Versions of an archive are encoded together
+ *  into one AppendSpecification. Each archive is then forced once, and
+ *  the futures of its appends complete. Distinct archives are handled in
+ *  parallel, by up to 'parallelism' worker threads.
+ *  With a max_delay of 0, a window holds whatever queued up while the
+ *  previous one was being committed.
+ *
+ *  Appends may also be given as AppendSpecifications computed by the
+ *  caller. A caller must then wait for an append to complete before
+ *  computing the next AppendSpecification for the same archive; otherwise
+ *  that one fails with a ConcurrentModificationException.
+ *  Cancelling a future does not stop its append.
+ *  The directory entries of newly created archive files are not forced.
+ */
+public class GroupCommitter implements Closeable {
+    public static final int DEFAULT_MAX_BATCH =
+        Integer.getInteger("deltazip-commit-max-batch", 1024);
+    public static final int DEFAULT_MAX_DELAY_MILLIS =
+        Integer.getInteger("deltazip-commit-max-delay-ms", 0);
+    /** Number of archives committed at the same time. */
+    public static final int DEFAULT_PARALLELISM =
+        Integer.getInteger("deltazip-commit-parallelism", 4);
+
+    //==================== Fields ==========================================
+
+    private final int max_batch;
+    private final long max_delay_nanos;
+    private final BlockingQueue<Commit> queue = new LinkedBlockingQueue<Commit>();
+    private final Thread committer;
+    private final ExecutorService workers;
+    /** Guarded by 'this'. */
+    private boolean closed;
+    private static final Commit STOP = new Commit(null, null, null);
+
+    //==================== API ==========================================
+
+    public GroupCommitter() {
+        this(DEFAULT_MAX_BATCH, DEFAULT_MAX_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    public GroupCommitter(int max_batch, long max_delay, TimeUnit unit) {
+        this(max_batch, max_delay, unit, DEFAULT_PARALLELISM);
+    }
+
+    public GroupCommitter(int max_batch, long max_delay, TimeUnit unit, int parallelism) {
+        if (max_batch < 1) throw new IllegalArgumentException("Bad batch size: "+max_batch);
+        if (max_delay < 0) throw new IllegalArgumentException("Negative delay: "+max_delay);
+        if (parallelism < 1) throw new IllegalArgumentException("Bad parallelism: "+parallelism);
+        this.max_batch = max_batch;
+        this.max_delay_nanos = unit.toNanos(max_delay);
+        this.workers = Executors.newFixedThreadPool(parallelism, new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "deltazip-group-commit-worker-"+count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        this.committer = new Thread("deltazip-group-commit") {
+            @Override
+            public void run() {
+                run_committer();
+            }
+        };
+        committer.setDaemon(true);
+        committer.start();
+    }
+
+    /** Queue a new version of the archive of 'dz', whose Access must be a WritableAccess.
+     *  The version is encoded by the committer; it must not be used
+     *  until the future has completed.
+     *  @return a future which completes when the version has been added and
+     *          forced to disk, or fails with the reason it could not be.
+     */
+    public CompletableFuture<Void> submit(DeltaZip dz, Version version) {
+        if (dz == null || version == null) throw new NullPointerException();
+        return enqueue(new Commit(dz, version, null));
+    }
+
+    /** Queue an append to the archive of 'dz', whose Access must be a WritableAccess.
+     *  @return a future which completes when the append has been applied and
+     *          forced to disk, or fails with the reason it could not be.
+     */
+    public CompletableFuture<Void> submit(DeltaZip dz, AppendSpecification spec) {
+        if (dz == null || spec == null) throw new NullPointerException();
+        return enqueue(new Commit(dz, null, spec));
+    }
+
+    /** Commit what has been submitted, and stop the committer threads. */
+    public void close() throws IOException {
+        synchronized (this) {
+            if (closed) return;
+            closed = true;
+            queue.add(STOP);
+        }
+        try {
+            committer.join();
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for commits");
+        } finally {
+            workers.shutdown();
+        }
+    }
+
+    //==================== Internals =======================================
+
+    /** A new version or an append specification, for one archive. */
+    private static class Commit {
+        final DeltaZip dz;
+        final Version version;
+        final AppendSpecification spec;
+        final CompletableFuture<Void> future = new CompletableFuture<Void>();
+
+        Commit(DeltaZip dz, Version version, AppendSpecification spec) {
+            this.dz = dz;
+            this.version = version;
+            this.spec = spec;
+        }
+
+        void succeed() {future.complete(null);}
+        void fail(Throwable t) {future.completeExceptionally(t);}
+    }
+
+    private synchronized CompletableFuture<Void> enqueue(Commit commit) {
+        if (closed) throw new IllegalStateException("Committer is closed");
+        queue.add(commit);
+        return commit.future;
+    }
+
+    private void run_committer() {
+        List<Commit> batch = new ArrayList<Commit>();
+        boolean stop = false;
+        try {
+            while (!stop) {
+                Commit first = queue.take();
+                if (first == STOP) break;
+                batch.add(first);
+
+                // Collect the commit window:
+                long deadline = System.nanoTime() + max_delay_nanos;
+                while (batch.size() < max_batch) {
+                    long wait = deadline - System.nanoTime();
+                    Commit next = (wait > 0) ? queue.poll(wait, TimeUnit.NANOSECONDS) : queue.poll();
+                    if (next == null) break;
+                    if (next == STOP) {stop = true; break;}
+                    batch.add(next);
+                }
+
+                try {
+                    commit(batch);
+                } catch (InterruptedException ie) {
+                    throw ie;
+                } catch (Throwable t) { // Keep the committer alive; fail what is left of the window.
+                    for (Commit commit : batch) commit.fail(t);
+                }
+                batch.clear();
+            }
+        } catch (InterruptedException ie) {
+            synchronized (this) {closed = true;}
+            Exception reason = new IOException("Committer was interrupted");
+            for (Commit commit : batch) commit.fail(reason);
+            Commit commit;
+            while ((commit = queue.poll()) != null) if (commit != STOP) commit.fail(reason);
+        }
+    }
+
+    /** Commit a window: each archive on a worker, and wait for all of them. */
+    private void commit(List<Commit> batch) throws InterruptedException {
+        Map<DeltaZip, List<Commit>> by_archive = new LinkedHashMap<DeltaZip, List<Commit>>();
+        for (Commit commit : batch) {
+            List<Commit> commits = by_archive.get(commit.dz);
+            if (commits == null) by_archive.put(commit.dz, commits = new ArrayList<Commit>());
+            commits.add(commit);
+        }
+
+        List<Callable<Void>> tasks = new ArrayList<Callable<Void>>(by_archive.size());
+        for (final Map.Entry<DeltaZip, List<Commit>> entry : by_archive.entrySet()) {
+            tasks.add(new Callable<Void>() {
+                public Void call() {
+                    commit_archive(entry.getKey(), entry.getValue());
+                    return null;
+                }
+            });
+        }
+        workers.invokeAll(tasks);
+    }
+
+    /** Make the appends to one archive, in order, and force it once. */
+    private static void commit_archive(DeltaZip dz, List<Commit> commits) {
+        try {
+            List<Commit> applied = new ArrayList<Commit>();
+            List<Commit> versions = new ArrayList<Commit>();
+            for (Commit commit : commits) {
+                if (commit.version != null) {
+                    versions.add(commit);
+                    continue;
+                }
+                add_versions(dz, versions, applied);
+                try {
+                    dz.applyAppendSpec(commit.spec);
+                    applied.add(commit);
+                } catch (Throwable t) {
+                    commit.fail(t);
+                }
+            }
+            add_versions(dz, versions, applied);
+            if (applied.isEmpty()) return;
+
+            try {
+                dz.force();
+            } catch (Throwable t) {
+                for (Commit commit : applied) commit.fail(t);
+                return;
+            }
+            for (Commit commit : applied) commit.succeed();
+        } catch (Throwable t) { // Fail whatever has not completed.
+            for (Commit commit : commits) commit.fail(t);
+        }
+    }
+
+    /** Encode and apply the collected new versions with one AppendSpecification. */
+    private static void add_versions(DeltaZip dz, List<Commit> versions, List<Commit> applied) {
+        if (versions.isEmpty()) return;
+        List<Version> to_add = new ArrayList<Version>(versions.size());
+        for (Commit commit : versions) to_add.add(commit.version);
+        try {
+            dz.applyAppendSpec(dz.add(to_add));
+            applied.addAll(versions);
+        } catch (Throwable t) {
+            for (Commit commit : versions) commit.fail(t);
+        }
+        versions.clear();
+    }
+}
@@ -0,0 +1,57 @@
+package com.trifork.deltazip;
+
+/** Decides when an older version is kept as a full snapshot ("keyframe")
+ *  instead of being turned into a delta against its successor.
+ *  Keyframes bound the number of deltas which must be decoded to reach an
+ *  old version. Snapshots may occur anywhere in an archive, so archives
+ *  with keyframes are readable by any reader of the same format version.
+ */
+public class KeyframePolicy {
+    /** Only the latest version is a snapshot. */
+    public static final KeyframePolicy NONE = new KeyframePolicy(0, 0);
+
+    private final int interval;
+    private final long max_decode_bytes;
+
+    /**
+     * @param interval          keep a snapshot at least every 'interval' versions; 0 means no limit.
+     * @param max_decode_bytes  keep a snapshot when reaching a version would otherwise mean
+     *                          decoding more than this many bytes of deltas (estimated as
+     *                          number of deltas times version size); 0 means no limit.
+     */
+    public KeyframePolicy(int interval, long max_decode_bytes) {
+        if (interval < 0 || max_decode_bytes < 0) throw new IllegalArgumentException("Negative limit");
+        this.interval = interval;
+        this.max_decode_bytes = max_decode_bytes;
+    }
+
+    public static KeyframePolicy every(int interval) {
+        if (interval < 1) throw new IllegalArgumentException("Bad interval: "+interval);
+        return new KeyframePolicy(interval, 0);
+    }
+
+    public static KeyframePolicy decodeBudget(long max_decode_bytes) {
+        if (max_decode_bytes < 1) throw new IllegalArgumentException("Bad budget: "+max_decode_bytes);
+        return new KeyframePolicy(0, max_decode_bytes);
+    }
+
+    /** Should a version be kept as a snapshot?
+     *  @param deltas_below  the number of delta envelopes immediately preceding it.
+     *  @param version_size  its raw size.
+     */
+    public boolean isKeyframe(int deltas_below, int version_size) {
+        if (interval > 0 && deltas_below + 1 >= interval) return true;
+        if (max_decode_bytes > 0 && (deltas_below + 1L) * version_size > max_decode_bytes) return true;
+        return false;
+    }
+
+    /** How many preceding delta envelopes need to be counted at most,
+     *  for isKeyframe() to give the right answer. */
+    int scanLimit(int version_size) {
+        if (interval == 0 && max_decode_bytes == 0) return 0; // Never a keyframe.
+        long limit = Integer.MAX_VALUE;
+        if (interval > 0) limit = interval;
+        if (max_decode_bytes > 0) limit = Math.min(limit, max_decode_bytes / Math.max(1, version_size) + 1);
+        return (int)limit;
+    }
+}
@@ -0,0 +1,295 @@
+package com.trifork.deltazip;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/** Delta method which LZ77-codes a version as if it followed the reference
+ *  version: a match may refer to any earlier position in the reference
+ *  or in the version itself, not just to a 32 KB window.
+ *  Matches are found through hash chains over both, and chosen by greedy
+ *  parsing with one step of lookahead. The tokens are split into four
+ *  streams - literal bytes, literal run lengths, match lengths and match
+ *  distances - which are entropy coded (and searched for remaining
+ *  repetition) by deflating each of them once.
+ *
+ *  The hash chains cover the whole reference. Reference and version
+ *  together must not exceed MAX_INPUT bytes (-Ddeltazip-long-range-max-input);
+ *  for larger ones, the method is not tried. In long runs of literals,
+ *  the search gets sparser, as in FastLZMethod. A trial gives up once its
+ *  output is sure to be larger than that of another trial.
+ *
+ *  Format: the version length, then for each stream its raw length and
+ *  deflated length, as varlen integers; then the four deflated streams.
+ *  Each sequence is a run of literals followed by a match; the literals
+ *  left after the last sequence end the version. Distances are counted
+ *  back from the current position in the reference-then-version
+ *  sequence; distance code 0 repeats the previous distance, and code d
+ *  otherwise means distance d.
+ */
+class LongRangeLZMethod extends DeltaZip.CompressionMethod {
+	//==================== Constants =======================================
+
+	public static final int MIN_MATCH = 4;
+	/** The most reference and version bytes to encode with this method. */
+	public static final int MAX_INPUT = Integer.getInteger("deltazip-long-range-max-input", 32 << 20);
+	/** The number of chain entries to look at, and the match length to settle for. */
+	private static final int MAX_CHAIN = 48;
+	private static final int NICE_LENGTH = 1 << 12;
+	/** After 2^SKIP_STRENGTH literals, search every other position with half the chain, and so on. */
+	private static final int SKIP_STRENGTH = 8;
+	/** How often to compare the output so far with the size limit. */
+	private static final int CHECK_INTERVAL = 1 << 16;
+
+	private static final int LITERALS = 0, RUNS = 1, LENGTHS = 2, DISTANCES = 3, STREAM_COUNT = 4;
+
+	//==================== API fulfillment ==============================
+	public int methodNumber() {return DeltaZip.METHOD_LONG_RANGE_LZ;}
+
+	//==================== Uncompression: ========================================
+	public void uncompress(ByteBuffer org, ByteBuffer ref_data, Inflater inflater, OutputStream dst) throws ArchiveIntegrityException, IOException {
+		int length = DZUtil.varlen_decode(org);
+		int[] raw_sizes = new int[STREAM_COUNT], comp_sizes = new int[STREAM_COUNT];
+		for (int i=0; i<STREAM_COUNT; i++) {
+			raw_sizes[i] = DZUtil.varlen_decode(org);
+			comp_sizes[i] = DZUtil.varlen_decode(org);
+		}
+		ByteBuffer[] streams = new ByteBuffer[STREAM_COUNT];
+		for (int i=0; i<STREAM_COUNT; i++) {
+			if (comp_sizes[i] > org.remaining()) throw new ArchiveIntegrityException("Invalid stream size: "+comp_sizes[i]);
+			ExtByteArrayOutputStream raw = new ExtByteArrayOutputStream(raw_sizes[i]);
+			DZUtil.inflate(inflater, org, comp_sizes[i], raw, null);
+			if (raw.size() != raw_sizes[i]) throw new ArchiveIntegrityException("Stream has wrong length: "+raw.size()+" vs. "+raw_sizes[i]);
+			streams[i] = raw.toByteBuffer();
+		}
+		ByteBuffer literals = streams[LITERALS];
+
+		int ref_length = ref_data.limit();
+		byte[] out = new byte[length];
+		int pos = 0;
+		long distance = 0;
+		try {
+			while (streams[RUNS].hasRemaining()) {
+				int run = DZUtil.varlen_decode(streams[RUNS]);
+				if (run > length - pos) throw new ArchiveIntegrityException("Literal run out of range: "+run);
+				literals.get(out, pos, run);
+				pos += run;
+
+				int match_length = DZUtil.varlen_decode(streams[LENGTHS]) + MIN_MATCH;
+				int code = DZUtil.varlen_decode(streams[DISTANCES]);
+				if (code != 0) distance = code;
+				long from = (long)ref_length + pos - distance; // In the reference-then-version sequence.
+				if (distance <= 0 || from < 0 || match_length > length - pos) {
+					throw new ArchiveIntegrityException("Match out of range: "+distance+"/"+match_length);
+				}
+				if (from < ref_length) { // From the reference:
+					int part = (int)Math.min(match_length, ref_length - from);
+					ByteBuffer src = ref_data.duplicate();
+					src.position((int)from);
+					src.get(out, pos, part);
+					pos += part;
+					match_length -= part;
+					from += part;
+				}
+				int out_from = (int)(from - ref_length);
+				for (int i=0; i<match_length; i++) out[pos++] = out[out_from + i]; // May overlap.
+			}
+			int rest = literals.remaining();
+			if (rest != length - pos) throw new ArchiveIntegrityException("Version has wrong length");
+			literals.get(out, pos, rest);
+		} catch (BufferUnderflowException bue) {
+			throw new ArchiveIntegrityException("Token streams are truncated");
+		}
+		dst.write(out);
+	}
+
+	//==================== Compression: ========================================
+	public void compress(ByteBuffer org, ByteBuffer ref_data, OutputStream dst) throws IOException {
+		compress(org, ref_data, EncodingProfile.MAX, dst);
+	}
+
+	@Override
+	public void compress(ByteBuffer org, ByteBuffer ref_data, EncodingProfile profile, OutputStream dst) throws IOException {
+		compress(org, ref_data, profile, null, dst);
+	}
+
+	@Override
+	public boolean accepts(long org_length, long ref_length) {
+		return org_length + ref_length <= MAX_INPUT;
+	}
+
+	@Override
+	public void compress(ByteBuffer org, ByteBuffer ref_data, EncodingProfile profile, AtomicInteger size_limit, OutputStream dst) throws IOException {
+		Encoder encoder = new Encoder(org, ref_data, size_limit);
+		encoder.run();
+
+		ExtByteArrayOutputStream[] comp = new ExtByteArrayOutputStream[STREAM_COUNT];
+		Deflater deflater = profile.borrowDeflater();
+		try {
+			int comp_size = 0;
+			for (int i=0; i<STREAM_COUNT; i++) {
+				comp[i] = new ExtByteArrayOutputStream();
+				ByteBuffer raw = encoder.streams[i].toByteBuffer();
+				DZUtil.deflate(deflater, raw, raw.remaining(), comp[i], null);
+				comp_size += comp[i].size();
+				encoder.check_size(comp_size);
+			}
+		} finally {
+			CodecPool.shared().release(deflater);
+		}
+
+		DZUtil.varlen_encode(encoder.org_length, dst);
+		for (int i=0; i<STREAM_COUNT; i++) {
+			DZUtil.varlen_encode(encoder.streams[i].size(), dst);
+			DZUtil.varlen_encode(comp[i].size(), dst);
+		}
+		for (int i=0; i<STREAM_COUNT; i++) comp[i].writeTo(dst);
+	}
+
+	/** The state of one compress() call. */
+	private static class Encoder {
+		/** The reference, followed by the version. */
+		final byte[] data;
+		final int start, org_length;
+		final int[] head, prev;
+		final int hash_shift;
+		final AtomicInteger size_limit;
+		final ExtByteArrayOutputStream[] streams = new ExtByteArrayOutputStream[STREAM_COUNT];
+		int last_distance = 0;
+		/** Where the current run of literals starts. */
+		int literal_start;
+		/** Positions before this are in the hash chains. */
+		int next_insert = 0;
+		/** The result of the latest find_match(). */
+		int match_length, match_distance;
+
+		Encoder(ByteBuffer org, ByteBuffer ref, AtomicInteger size_limit) {
+			this.org_length = org.remaining();
+			this.start = ref.limit();
+			this.data = new byte[start + org_length];
+			ByteBuffer ref_src = ref.duplicate();
+			ref_src.position(0);
+			ref_src.get(data, 0, start);
+			org.duplicate().get(data, start, org_length);
+			this.size_limit = size_limit;
+
+			this.prev = new int[data.length];
+			int hash_bits = Math.max(10, Math.min(20, 32 - Integer.numberOfLeadingZeros(data.length)));
+			this.head = new int[1 << hash_bits];
+			this.hash_shift = 32 - hash_bits;
+			for (int i=0; i<STREAM_COUNT; i++) streams[i] = new ExtByteArrayOutputStream();
+		}
+
+		void run() throws IOException {
+			int end = data.length;
+			literal_start = start;
+			int pos = start;
+			int next_check = pos + CHECK_INTERVAL;
+			while (pos + MIN_MATCH <= end) {
+				if (pos >= next_check) {
+					// Deflate takes the literals down to no less than a bit each:
+					check_size((streams[LITERALS].size() + pos - literal_start) >>> 3);
+					next_check = pos + CHECK_INTERVAL;
+				}
+				// In a long run of literals, search less and less:
+				int misses = (pos - literal_start) >>> SKIP_STRENGTH;
+				insert_upto(pos);
+				find_match(pos, MAX_CHAIN >> Math.min(misses, 3));
+				if (match_length < MIN_MATCH) {
+					pos += 1 + misses;
+					continue;
+				}
+				// One step of lookahead:
+				int length = match_length, distance = match_distance;
+				if (length < NICE_LENGTH && pos + 1 + MIN_MATCH <= end) {
+					insert_upto(pos + 1);
+					find_match(pos + 1, MAX_CHAIN);
+					if (match_length > length + 1) {
+						pos++;
+						length = match_length;
+						distance = match_distance;
+					}
+				}
+				// Positions skipped over may hide the start of the match:
+				while (pos > literal_start && pos - 1 - distance >= 0 && data[pos - 1] == data[pos - 1 - distance]) {
+					pos--;
+					length++;
+				}
+				emit(pos, length, distance);
+				pos += length;
+				literal_start = pos;
+			}
+			// The rest are literals:
+			streams[LITERALS].write(data, literal_start, end - literal_start);
+		}
+
+		/** Give up if the output will be larger than 'size_limit'. */
+		void check_size(int min_size) throws DeltaZip.TrialAbandonedException {
+			if (size_limit != null && min_size > size_limit.get()) throw new DeltaZip.TrialAbandonedException();
+		}
+
+		/** Find the longest earlier match for the bytes at 'pos',
+		 *  looking at no more than 'max_chain' chain entries. */
+		private void find_match(int pos, int max_chain) {
+			int limit = data.length - pos;
+			match_length = 0;
+			match_distance = 0;
+			// The previous distance is cheap to encode; try it first.
+			if (last_distance > 0 && last_distance <= pos) {
+				int len = common_length(pos - last_distance, pos, limit);
+				if (len >= MIN_MATCH) {
+					match_length = len;
+					match_distance = last_distance;
+				}
+			}
+			int candidate = head[hash(pos)] - 1;
+			for (int chain = 0; chain < max_chain && candidate >= 0 && match_length < NICE_LENGTH; chain++) {
+				int distance = pos - candidate;
+				if (match_length < limit && data[candidate + match_length] == data[pos + match_length]) {
+					int len = common_length(candidate, pos, limit);
+					if (len > match_length) {
+						match_length = len;
+						match_distance = distance;
+					}
+				}
+				candidate = prev[candidate] - 1;
+			}
+		}
+
+		private int common_length(int a, int b, int limit) {
+			int len = 0;
+			while (len < limit && data[a + len] == data[b + len]) len++;
+			return len;
+		}
+
+		/** Add the positions before 'pos' to the hash chains. */
+		private void insert_upto(int pos) {
+			int limit = Math.min(pos, data.length - MIN_MATCH + 1);
+			for (int p = next_insert; p < limit; p++) {
+				int h = hash(p);
+				prev[p] = head[h];
+				head[h] = p + 1;
+			}
+			next_insert = Math.max(next_insert, pos);
+		}
+
+		private int hash(int pos) {
+			int v = (data[pos] & 0xFF) | (data[pos+1] & 0xFF) << 8 | (data[pos+2] & 0xFF) << 16 | (data[pos+3] & 0xFF) << 24;
+			return (v * 0x9E3779B1) >>> hash_shift;
+		}
+
+		private void emit(int pos, int length, int distance) throws IOException {
+			streams[LITERALS].write(data, literal_start, pos - literal_start);
+			DZUtil.varlen_encode(pos - literal_start, streams[RUNS]);
+			DZUtil.varlen_encode(length - MIN_MATCH, streams[LENGTHS]);
+			DZUtil.varlen_encode(distance == last_distance ? 0 : distance, streams[DISTANCES]);
+			last_distance = distance;
+		}
+	}
+}
@@ -0,0 +1,495 @@
+package com.trifork.deltazip;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.ConcurrentModificationException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/** Rewrites archives, either into a more compact form (repack()), or
+ *  without the versions a retention policy does not keep (prune()).
+ *
+ *  When repacking, each archive's history is decoded once, newest first,
+ *  and every version is encoded again with all the methods at hand,
+ *  against its successor; versions which were stored as snapshots stay
+ *  snapshots, so that the keyframe spacing is kept. The result replaces
+ *  the archive only if it is smaller, or if it is in another format
+ *  (see setTargetFormat()).
+ *
+ *  In either case, the new archive is written to a file next to the
+ *  original, which it then replaces by an atomic rename; a sidecar index,
+ *  if present, is rewritten to match.
+ *  Archives may be rewritten in parallel on a pool of worker threads, and
+ *  the total rate of reading and writing may be limited, so that a fleet of
+ *  archives can be processed in the background.
+ *
+ *  The archive must not be written to while it is rewritten, and handles
+ *  which were open on it must not be used for appends afterwards: they
+ *  would write to the replaced file. For archives in a DeltaZipStore, use
+ *  DeltaZipStore.repack() and prune(), which take care of both.
+ *  An archive which has grown in the meantime is left alone (with a
+ *  ConcurrentModificationException), but writers in other processes are not
+ *  otherwise locked out.
+ */
+public class Repacker implements Closeable {
+    public static final int DEFAULT_PARALLELISM =
+        Integer.getInteger("deltazip-repack-parallelism", 1);
+    /** In bytes per second; 0 means unlimited. */
+    public static final long DEFAULT_MAX_IO_RATE =
+        Long.getLong("deltazip-repack-io-rate", 0);
+    public static final String TEMP_SUFFIX = ".repack";
+    private static final int COPY_CHUNK_SIZE = 1 << 20;
+
+    //==================== Fields ==========================================
+
+    private final ExecutorService workers;
+    private final Throttle throttle;
+    private volatile FormatVersion target_format;
+
+    //==================== API ==========================================
+
+    public Repacker() {
+        this(DEFAULT_PARALLELISM, DEFAULT_MAX_IO_RATE);
+    }
+
+    /**
+     * @param parallelism  the number of archives to repack at a time.
+     * @param max_io_rate  the maximum number of bytes per second to read and
+     *                     write, in total over all workers; 0 means unlimited.
+     */
+    public Repacker(int parallelism, long max_io_rate) {
+        if (parallelism < 1) throw new IllegalArgumentException("Bad parallelism: "+parallelism);
+        if (max_io_rate < 0) throw new IllegalArgumentException("Negative I/O rate: "+max_io_rate);
+        this.workers = Executors.newFixedThreadPool(parallelism);
+        this.throttle = (max_io_rate > 0) ? new Throttle(max_io_rate) : null;
+    }
+
+    /** Use the given format for the repacked archives,
+     *  rather than the format of each original; null for the latter.
+     *  Archives are then replaced even if they do not get smaller. */
+    public void setTargetFormat(FormatVersion format) {
+        this.target_format = format;
+    }
+
+    /** Repack one archive, in the calling thread. */
+    public Result repack(File archive) throws IOException {
+        Job job = new Job(archive);
+        try {
+            DeltaZip src = new DeltaZip(throttled(job.in));
+            FormatVersion format = (target_format != null) ? target_format : src.getFormatVersion();
+            DeltaZip encoder = encoder_for(format);
+            ExtByteArrayOutputStream header = new ExtByteArrayOutputStream();
+            encoder.start_new_archive(header);
+
+            // Encode the history, newest first, into the scratch file:
+            List<Piece> pieces = new ArrayList<Piece>();
+            ByteBuffer newer = null;
+            DeltaZip.VersionIterator iter = src.backwardsIterator();
+            while (iter.hasNext()) {
+                Version version = iter.next();
+                ExtByteArrayOutputStream buf = new ExtByteArrayOutputStream();
+                EnvelopeInfo info;
+                if (newer == null) {
+                    job.latest_checksum = iter.getCurrentChecksum();
+                    info = encoder.pack_snapshot(version, buf);
+                } else if (DeltaZip.is_snapshot_method(iter.getCurrentMethod())) {
+                    info = encoder.pack_snapshot(version, buf);
+                } else {
+                    info = encoder.pack_delta(version, newer.duplicate(), buf);
+                }
+                pieces.add(job.scratch(buf, info));
+                newer = version.getContents();
+            }
+            Collections.reverse(pieces);
+
+            List<EnvelopeInfo> new_envelopes = job.write(header.toByteBuffer(), pieces);
+            boolean new_format = format.versionNumber() != src.getFormatVersion().versionNumber();
+            return job.finish(new_envelopes, job.new_size < job.old_size || new_format);
+        } catch (IOException ioe) {
+            job.abort();
+            throw ioe;
+        } catch (RuntimeException re) {
+            job.abort();
+            throw re;
+        } finally {
+            job.close();
+        }
+    }
+
+    /** Drop the versions which 'policy' does not keep from one archive, in
+     *  the calling thread.
+     *  Older versions never serve as reference for newer ones, so the
+     *  surviving envelopes are copied as they are - except deltas whose
+     *  successor is dropped; those are encoded again against the next
+     *  surviving version, which takes decoding the history down to the
+     *  oldest of them.
+     */
+    public Result prune(File archive, RetentionPolicy policy) throws IOException {
+        Job job = new Job(archive);
+        try {
+            DeltaZip src = new DeltaZip(throttled(job.in));
+            List<EnvelopeInfo> envelopes = indexed_envelopes(archive, job.in);
+            if (envelopes == null) {
+                envelopes = new ArrayList<EnvelopeInfo>();
+                for (EnvelopeInfo envelope : src.envelopeIterable()) envelopes.add(envelope);
+            }
+            boolean[] keep = policy.select(envelopes);
+            if (keep.length != envelopes.size() || (keep.length > 0 && !keep[0])) {
+                throw new IllegalArgumentException("Retention policy must select among all versions, and keep the latest");
+            }
+
+            // Find the deltas whose reference is dropped:
+            boolean[] reencode = new boolean[keep.length];
+            int kept = 0, last_reencode = -1;
+            for (int i=0; i<keep.length; i++) {
+                if (!keep[i]) continue;
+                kept++;
+                if (i > 0 && !keep[i-1] && !envelopes.get(i).isSnapshot()) {
+                    reencode[i] = true;
+                    last_reencode = i;
+                }
+            }
+            if (kept == envelopes.size()) return new Result(archive, job.old_size, job.old_size, kept, false);
+            job.latest_checksum = envelopes.get(0).getChecksum();
+
+            // Encode those again, against the next surviving version:
+            Map<Integer,Piece> reencoded = new HashMap<Integer,Piece>();
+            if (last_reencode >= 0) {
+                DeltaZip encoder = encoder_for(src.getFormatVersion());
+                ByteBuffer last_kept = null;
+                DeltaZip.VersionIterator iter = src.backwardsIterator();
+                for (int i=0; i<=last_reencode; i++) {
+                    Version version = iter.next();
+                    if (!keep[i]) continue;
+                    if (reencode[i]) {
+                        ExtByteArrayOutputStream buf = new ExtByteArrayOutputStream();
+                        EnvelopeInfo info = encoder.pack_delta(version, last_kept.duplicate(), buf);
+                        reencoded.put(i, job.scratch(buf, info));
+                    }
+                    last_kept = version.getContents();
+                }
+            }
+
+            // Write the survivors, oldest first, after the original header:
+            List<Piece> pieces = new ArrayList<Piece>(kept);
+            for (int i=keep.length-1; i>=0; i--) {
+                if (!keep[i]) continue;
+                Piece piece = reencoded.get(i);
+                pieces.add((piece != null) ? piece : new Piece(job.source, envelopes.get(i)));
+            }
+            ByteBuffer header = read_fully(job.source, 0, DeltaZip.FILE_HEADER_LENGTH);
+            return job.finish(job.write(header, pieces), true);
+        } catch (IOException ioe) {
+            job.abort();
+            throw ioe;
+        } catch (RuntimeException re) {
+            job.abort();
+            throw re;
+        } finally {
+            job.close();
+        }
+    }
+
+    /** Queue an archive for repacking by the worker threads. */
+    public Future<Result> submit(final File archive) {
+        return workers.submit(new Callable<Result>() {
+            public Result call() throws IOException {
+                return repack(archive);
+            }
+        });
+    }
+
+    /** Queue a number of archives for repacking by the worker threads.
+     *  @return the futures of the results, in the same order. */
+    public List<Future<Result>> submitAll(List<File> archives) {
+        List<Future<Result>> results = new ArrayList<Future<Result>>(archives.size());
+        for (File archive : archives) results.add(submit(archive));
+        return results;
+    }
+
+    /** Queue an archive for pruning by the worker threads. */
+    public Future<Result> submitPrune(final File archive, final RetentionPolicy policy) {
+        return workers.submit(new Callable<Result>() {
+            public Result call() throws IOException {
+                return prune(archive, policy);
+            }
+        });
+    }
+
+    /** Finish the queued repacks, and stop the worker threads. */
+    public void close() throws IOException {
+        workers.shutdown();
+        try {
+            while (!workers.awaitTermination(1, TimeUnit.MINUTES)) {}
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for repacks");
+        }
+    }
+
+    /** The outcome of repacking or pruning one archive. */
+    public static class Result {
+        private final File file;
+        private final long old_size, new_size;
+        private final int version_count;
+        private final boolean replaced;
+
+        Result(File file, long old_size, long new_size, int version_count, boolean replaced) {
+            this.file = file;
+            this.old_size = old_size;
+            this.new_size = new_size;
+            this.version_count = version_count;
+            this.replaced = replaced;
+        }
+
+        public File getFile() {return file;}
+        public long getOldSize() {return old_size;}
+        /** The size of the repacked archive, whether or not it replaced the original. */
+        public long getNewSize() {return new_size;}
+        public int getVersionCount() {return version_count;}
+        /** Whether the original was replaced: when repacking, if the result
+         *  was smaller or in another format; when pruning, if any version was dropped. */
+        public boolean isReplaced() {return replaced;}
+    }
+
+    //==================== Internals =======================================
+
+    /** An envelope to be written to the new archive, and the file holding it. */
+    private static class Piece {
+        final FileChannel file;
+        final EnvelopeInfo envelope;
+
+        Piece(FileChannel file, EnvelopeInfo envelope) {
+            this.file = file;
+            this.envelope = envelope;
+        }
+    }
+
+    /** The files involved in rewriting one archive. */
+    private class Job {
+        final File archive, temp;
+        final DZUtil.FileAccess in;
+        final FileChannel source;
+        final long old_size;
+        File scratch;
+        FileChannel scratch_channel;
+        long scratch_size, new_size;
+        int latest_checksum;
+
+        Job(File archive) throws IOException {
+            this.archive = archive;
+            this.temp = new File(archive.getPath() + TEMP_SUFFIX);
+            DZUtil.FileAccess in = new DZUtil.FileAccess(archive);
+            FileChannel source = null;
+            try {
+                source = new RandomAccessFile(archive, "r").getChannel();
+                this.old_size = in.getSize();
+            } catch (IOException ioe) {
+                in.close();
+                if (source != null) source.close();
+                throw ioe;
+            }
+            this.in = in;
+            this.source = source;
+        }
+
+        /** Put a newly encoded envelope in the scratch file. */
+        Piece scratch(ExtByteArrayOutputStream buf, EnvelopeInfo envelope) throws IOException {
+            if (scratch == null) {
+                scratch = File.createTempFile("deltazip-", TEMP_SUFFIX);
+                scratch_channel = new RandomAccessFile(scratch, "rw").getChannel();
+            }
+            write_fully(scratch_channel, scratch_size, buf.toByteBuffer());
+            Piece piece = new Piece(scratch_channel, envelope.relocate(scratch_size));
+            scratch_size += buf.size();
+            return piece;
+        }
+
+        /** Write the new archive to the temporary file, and force it to disk.
+         *  @return the envelopes of the new archive. */
+        List<EnvelopeInfo> write(ByteBuffer header, List<Piece> pieces) throws IOException {
+            List<EnvelopeInfo> new_envelopes = new ArrayList<EnvelopeInfo>(pieces.size());
+            FileChannel out = new RandomAccessFile(temp, "rw").getChannel();
+            try {
+                out.truncate(0);
+                new_size = write_fully(out, 0, header);
+                for (Piece piece : pieces) {
+                    EnvelopeInfo envelope = piece.envelope;
+                    long length = envelope.getEndPosition() - envelope.getPosition();
+                    for (long done = 0; done < length; ) {
+                        int chunk = (int)Math.min(COPY_CHUNK_SIZE, length - done);
+                        write_fully(out, new_size + done, read_fully(piece.file, envelope.getPosition() + done, chunk));
+                        done += chunk;
+                    }
+                    new_envelopes.add(envelope.relocate(new_size - envelope.getPosition()));
+                    new_size += length;
+                }
+                out.force(true);
+            } finally {
+                out.close();
+            }
+            return new_envelopes;
+        }
+
+        /** Replace the archive with the new one, unless it has changed meanwhile. */
+        Result finish(List<EnvelopeInfo> new_envelopes, boolean replace) throws IOException {
+            Result result = new Result(archive, old_size, new_size, new_envelopes.size(), replace);
+            if (!replace) {
+                temp.delete();
+                return result;
+            }
+
+            if (in.getSize() != old_size || latest_checksum(new DeltaZip(in)) != latest_checksum) {
+                throw new ConcurrentModificationException("Archive changed while being rewritten: "+archive);
+            }
+            Files.move(temp.toPath(), archive.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            force_directory(archive.getAbsoluteFile().getParentFile());
+
+            File index_file = DeltaZipIndex.indexFileFor(archive);
+            if (index_file.exists()) DeltaZipIndex.create(index_file, new_envelopes).close();
+            return result;
+        }
+
+        void abort() {
+            temp.delete();
+        }
+
+        void close() throws IOException {
+            in.close();
+            source.close();
+            if (scratch != null) {
+                scratch_channel.close();
+                scratch.delete();
+            }
+        }
+    }
+
+    /** Make a rename in 'dir' durable. Where directories cannot be opened
+     *  (as on Windows), this is skipped. */
+    private static void force_directory(File dir) throws IOException {
+        FileChannel channel;
+        try {
+            channel = FileChannel.open(dir.toPath(), StandardOpenOption.READ);
+        } catch (IOException ioe) {
+            return;
+        }
+        try {
+            channel.force(true);
+        } finally {
+            channel.close();
+        }
+    }
+
+    /** An encoder for envelopes of the given format.
+     *  Repacking is about size, so it spends maximal effort (EXHAUSTIVE) whatever the default profile. */
+    private static DeltaZip encoder_for(FormatVersion format) throws IOException {
+        DeltaZip encoder = new DeltaZip(new DZUtil.ByteArrayAccess(new byte[0]));
+        encoder.setNewArchiveFormat(format);
+        encoder.setEncodingProfile(EncodingProfile.EXHAUSTIVE);
+        encoder.start_new_archive(new ExtByteArrayOutputStream());
+        return encoder;
+    }
+
+    /** The envelopes of an archive, newest first, as recorded in its index;
+     *  or null if it has no usable index. */
+    private static List<EnvelopeInfo> indexed_envelopes(File archive, DeltaZip.Access access) throws IOException {
+        File index_file = DeltaZipIndex.indexFileFor(archive);
+        if (!index_file.exists()) return null;
+        DeltaZipIndex index;
+        try {
+            index = DeltaZipIndex.open(index_file);
+        } catch (IOException ioe) {
+            return null; // Unreadable; it gets rewritten anyway.
+        }
+        try {
+            if (!index.isConsistentWith(access)) return null;
+            List<EnvelopeInfo> envelopes = new ArrayList<EnvelopeInfo>(index.getEntries());
+            Collections.reverse(envelopes);
+            return envelopes;
+        } finally {
+            index.close();
+        }
+    }
+
+    private static int latest_checksum(DeltaZip dz) {
+        Iterator<EnvelopeInfo> iter = dz.envelopeIterable().iterator();
+        return iter.hasNext() ? iter.next().getChecksum() : 0;
+    }
+
+    private ByteBuffer read_fully(FileChannel src, long pos, int len) throws IOException {
+        if (throttle != null) throttle.acquire(len);
+        ByteBuffer data = DZUtil.readFromChannel(src, pos, len);
+        data.flip();
+        return data;
+    }
+
+    private long write_fully(FileChannel dst, long pos, ByteBuffer data) throws IOException {
+        if (throttle != null) throttle.acquire(data.remaining());
+        while (data.hasRemaining()) {
+            pos += dst.write(data, pos);
+        }
+        return pos;
+    }
+
+    private DeltaZip.Access throttled(final DeltaZip.Access access) {
+        if (throttle == null) return access;
+        return new DeltaZip.Access() {
+            public long getSize() throws IOException {
+                return access.getSize();
+            }
+
+            public ByteBuffer pread(long pos, int len) throws IOException {
+                throttle.acquire(len);
+                return access.pread(pos, len);
+            }
+        };
+    }
+
+    /** Spaces out I/O so that it does not exceed a given rate. */
+    private static class Throttle {
+        private final long bytes_per_second;
+        /** When the I/O reserved so far is done. Guarded by 'this'. */
+        private long next_free = System.nanoTime();
+
+        Throttle(long bytes_per_second) {
+            this.bytes_per_second = bytes_per_second;
+        }
+
+        /** Wait until 'bytes' bytes may be read or written. */
+        void acquire(long bytes) throws InterruptedIOException {
+            long wait = reserve(bytes);
+            if (wait <= 0) return;
+            try {
+                Thread.sleep(wait / 1000000, (int)(wait % 1000000));
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while throttled");
+            }
+        }
+
+        /** @return the number of nanoseconds to wait before doing the I/O. */
+        private synchronized long reserve(long bytes) {
+            long now = System.nanoTime();
+            long start = Math.max(now, next_free);
+            next_free = start + (long)(bytes * 1e9 / bytes_per_second);
+            return start - now;
+        }
+    }
+}
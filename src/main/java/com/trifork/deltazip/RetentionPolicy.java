@@ -0,0 +1,98 @@
+package com.trifork.deltazip;
+
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/** Decides which versions of an archive survive pruning.
+ *  The latest version is always kept. Policies going by age use the
+ *  timestamp metadata of the versions; versions without a timestamp are
+ *  kept.
+ */
+public abstract class RetentionPolicy {
+    public static final long HOUR = 60 * 60 * 1000L;
+    public static final long DAY  = 24 * HOUR;
+
+    /** Select the versions to keep.
+     *  @param envelopes  the envelopes of the archive, newest first.
+     *  @return for each envelope, whether to keep it.
+     */
+    public boolean[] select(List<EnvelopeInfo> envelopes) {
+        boolean[] keep = new boolean[envelopes.size()];
+        for (int i=0; i<keep.length; i++) {
+            keep[i] = (i == 0) || keeps(i, envelopes.get(i));
+        }
+        return keep;
+    }
+
+    /** Should the version 'index_from_newest' steps back be kept?
+     *  Called for each version but the latest, newest first. */
+    protected abstract boolean keeps(int index_from_newest, EnvelopeInfo envelope);
+
+    /** Keep the newest 'count' versions. */
+    public static RetentionPolicy keepNewest(final int count) {
+        if (count < 1) throw new IllegalArgumentException("Bad count: "+count);
+        return new RetentionPolicy() {
+            protected boolean keeps(int index_from_newest, EnvelopeInfo envelope) {
+                return index_from_newest < count;
+            }
+        };
+    }
+
+    /** Keep the versions with a timestamp at or after 'cutoff'. */
+    public static RetentionPolicy newerThan(final Date cutoff) {
+        return new RetentionPolicy() {
+            protected boolean keeps(int index_from_newest, EnvelopeInfo envelope) {
+                Date timestamp = timestampOf(envelope);
+                return timestamp == null || !timestamp.before(cutoff);
+            }
+        };
+    }
+
+    /** Keep one version per hour for the last day, and one per day before that. */
+    public static RetentionPolicy thinned(Date now) {
+        return thinned(now, HOUR, DAY, DAY);
+    }
+
+    /** Keep the newest version of each 'fine_interval' within 'fine_period'
+     *  before 'now', and the newest version of each 'coarse_interval' before
+     *  that. Intervals are counted back from 'now', in milliseconds. */
+    public static RetentionPolicy thinned(final Date now, final long fine_interval, final long fine_period, final long coarse_interval) {
+        if (fine_interval < 1 || coarse_interval < 1 || fine_period < 0) throw new IllegalArgumentException("Bad thinning schedule");
+        return new RetentionPolicy() {
+            private final Set<Long> fine_buckets = new HashSet<Long>();
+            private final Set<Long> coarse_buckets = new HashSet<Long>();
+
+            @Override
+            public synchronized boolean[] select(List<EnvelopeInfo> envelopes) {
+                fine_buckets.clear();
+                coarse_buckets.clear();
+                Date latest = (envelopes.isEmpty()) ? null : timestampOf(envelopes.get(0));
+                if (latest != null) claim(latest.getTime());
+                return super.select(envelopes);
+            }
+
+            protected boolean keeps(int index_from_newest, EnvelopeInfo envelope) {
+                Date timestamp = timestampOf(envelope);
+                return timestamp == null || claim(timestamp.getTime());
+            }
+
+            /** @return true if the time falls in a bucket not yet claimed. */
+            private boolean claim(long time) {
+                long age = now.getTime() - time;
+                if (age < 0) return true;
+                if (age < fine_period) return fine_buckets.add(age / fine_interval);
+                return coarse_buckets.add((age - fine_period) / coarse_interval);
+            }
+        };
+    }
+
+    /** The timestamp of a version, or null if it has none. */
+    public static Date timestampOf(EnvelopeInfo envelope) {
+        for (Metadata.Item item : envelope.getMetadata()) {
+            if (item instanceof Metadata.Timestamp) return ((Metadata.Timestamp)item).getDate();
+        }
+        return null;
+    }
+}
@@ -0,0 +1,93 @@
+package com.trifork.deltazip;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+
+/** Output buffer for versions which are decoded only to serve as the
+ *  reference for the next delta.
+ *  Contents are kept on the heap up to a threshold; beyond that, they are
+ *  written to a temporary file, which is read back through a memory
+ *  mapping, so that large versions do not take up heap space.
+ *  Call dispose() when done with the contents.
+ */
+class SpillBuffer extends OutputStream {
+    /** Size in bytes above which contents are moved to a temporary file. */
+    public static final int DEFAULT_THRESHOLD = Integer.getInteger("deltazip-spill-threshold", 4 << 20);
+    private static final int FILE_BUFFER_SIZE = 64 << 10;
+
+    //==================== Fields ==========================================
+
+    private final int threshold;
+    private ExtByteArrayOutputStream heap = new ExtByteArrayOutputStream();
+    private File spill_file;
+    private FileChannel spill_channel;
+    private OutputStream spill_out;
+    private long size;
+
+    //==================== API ==========================================
+
+    public SpillBuffer() {
+        this(DEFAULT_THRESHOLD);
+    }
+
+    public SpillBuffer(int threshold) {
+        this.threshold = threshold;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        if (heap != null && heap.size() + 1 > threshold) spill();
+        if (heap != null) heap.write(b); else spill_out.write(b);
+        size++;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (heap != null && heap.size() + (long)len > threshold) spill();
+        if (heap != null) heap.write(b, off, len); else spill_out.write(b, off, len);
+        size += len;
+    }
+
+    public long size() {return size;}
+
+    /** Tells whether the contents have been moved to a file. */
+    public boolean isSpilled() {return heap == null;}
+
+    /** The contents, from index 0 to the limit.
+     *  Should not be called until all has been written. */
+    public ByteBuffer contents() throws IOException {
+        if (heap != null) return heap.toByteBuffer();
+        if (size > Integer.MAX_VALUE) throw new IOException("Version is too large: "+size+" bytes");
+        spill_out.flush();
+        return spill_channel.map(FileChannel.MapMode.READ_ONLY, 0, size).asReadOnlyBuffer();
+    }
+
+    /** Release the contents and any temporary file. */
+    public void dispose() {
+        heap = null;
+        if (spill_file != null) {
+            try {
+                spill_channel.close();
+            } catch (IOException ioe) {} // Only reading from it anyway.
+            // A mapping may still hold on to the file on some platforms:
+            if (!spill_file.delete()) spill_file.deleteOnExit();
+            spill_file = null;
+        }
+    }
+
+    //==================== Internals =======================================
+
+    private void spill() throws IOException {
+        spill_file = File.createTempFile("deltazip-", ".spill");
+        spill_channel = new RandomAccessFile(spill_file, "rw").getChannel();
+        spill_out = new BufferedOutputStream(Channels.newOutputStream(spill_channel), FILE_BUFFER_SIZE);
+        heap.writeTo(spill_out);
+        heap = null;
+    }
+}
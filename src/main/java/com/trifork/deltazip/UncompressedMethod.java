@@ -15,15 +15,19 @@ import java.util.zip.Inflater;
 class UncompressedMethod extends DeltaZip.CompressionMethod {
 	public int methodNumber() {return DeltaZip.METHOD_UNCOMPRESSED;}
 
-	public void compress(ByteBuffer org, byte[] ref_data, OutputStream dst) {
+	@Override
+	public boolean usesInflater() {return false;}
+
+	public void compress(ByteBuffer org, ByteBuffer ref_data, OutputStream dst) {
 		try {
 			WritableByteChannel channel = Channels.newChannel(dst);
 			channel.write(org);
 		} catch (IOException ioe) {throw new RuntimeException(ioe);}
 	}
 
-	public byte[] uncompress(ByteBuffer org, byte[] ref_data, Inflater inflater) {
-		return DZUtil.remainingToByteArray(org);
+	public void uncompress(ByteBuffer org, ByteBuffer ref_data, Inflater inflater, OutputStream dst) throws IOException {
+		DZUtil.writeSlice(org.slice(), 0, org.remaining(), dst);
+		org.position(org.limit());
 	}
 }
 
@@ -9,6 +9,8 @@ import java.util.List;
 public class Version {
     private final ByteBuffer contents;
     private final List<Metadata.Item> metadata;
+    /** The array holding exactly the contents, if known; for copy-free encoding. */
+    private final byte[] contents_array;
 
     /** Convenience constructor. */
     public Version(byte[] contents) { this(ByteBuffer.wrap(contents)); }
@@ -23,12 +25,21 @@ public class Version {
     public Version(ByteBuffer contents, List<Metadata.Item> metadata) {
         this.contents = contents.asReadOnlyBuffer();
         this.metadata = metadata;
+        this.contents_array =
+            (contents.hasArray() && contents.arrayOffset()==0 && contents.limit()==contents.array().length)
+            ? contents.array() : null;
     }
 
     public ByteBuffer getContents() {
         return contents;
     }
 
+    /** The contents as an array. Shares storage with the version when possible,
+     *  so the result must not be modified. */
+    byte[] contentsAsArray() {
+        return (contents_array != null) ? contents_array : DZUtil.allToByteArray(contents);
+    }
+
     public List<Metadata.Item> getMetadata() {
         return metadata;
     }
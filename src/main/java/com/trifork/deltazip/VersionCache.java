@@ -0,0 +1,185 @@
+package com.trifork.deltazip;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.SoftReference;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+/** Cache of decoded versions, which may be shared by any number of
+ *  DeltaZip handles and threads.
+ *  Versions are keyed by archive identity, envelope position and checksum.
+ *  Adding to an archive never moves an older version, so entries stay
+ *  valid as the archive grows.
+ *
+ *  The cache holds at most a given number of bytes of version contents.
+ *  When it is full, entries are evicted by the GreedyDual-Size policy:
+ *  the cost of recomputing a version is taken to be its chain depth (the
+ *  number of envelopes decoded to reach it) times its size, so the cost
+ *  per byte is the depth, and among recently used entries, the shallow
+ *  ones go first.
+ *  Contents are held through soft references, so the garbage collector
+ *  may also drop entries when memory is short.
+ */
+public class VersionCache {
+
+    //==================== Fields ==========================================
+
+    private final long capacity;
+    private final Map<Key,Entry> entries = new HashMap<Key,Entry>();
+    private final TreeSet<Entry> eviction_order = new TreeSet<Entry>();
+    private final ReferenceQueue<byte[]> cleared = new ReferenceQueue<byte[]>();
+    private long size;
+    /** The GreedyDual "inflation" value: the priority of the last evicted entry. */
+    private long inflation;
+    private long seq;
+
+    //==================== API ==========================================
+
+    /** @param capacity  the maximum total size of cached versions, in bytes. */
+    public VersionCache(long capacity) {
+        if (capacity < 1) throw new IllegalArgumentException("Bad capacity: "+capacity);
+        this.capacity = capacity;
+    }
+
+    public long getCapacity() {return capacity;}
+
+    /** The total size of the versions currently cached. */
+    public synchronized long size() {
+        purge();
+        return size;
+    }
+
+    /** The number of versions currently cached. */
+    public synchronized int count() {
+        purge();
+        return entries.size();
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+        eviction_order.clear();
+        size = 0;
+    }
+
+    //==================== Package API ==================================
+
+    /** A version found in the cache. */
+    static class CachedVersion {
+        final byte[] contents;
+        final List<Metadata.Item> metadata;
+        final int depth;
+
+        CachedVersion(byte[] contents, List<Metadata.Item> metadata, int depth) {
+            this.contents = contents;
+            this.metadata = metadata;
+            this.depth = depth;
+        }
+    }
+
+    /** Look up a version, counting as a use of it.
+     *  @return null if it is not cached. */
+    synchronized CachedVersion get(Object archive_id, long position, int checksum) {
+        purge();
+        Entry entry = entries.get(new Key(archive_id, position, checksum));
+        if (entry == null) return null;
+        byte[] contents = entry.get();
+        if (contents == null) { // Cleared, but not yet enqueued.
+            remove(entry);
+            return null;
+        }
+        eviction_order.remove(entry);
+        entry.touch();
+        eviction_order.add(entry);
+        return new CachedVersion(contents, entry.metadata, entry.depth);
+    }
+
+    /** Cache a version. The contents must not be modified afterwards.
+     *  @param depth  the number of envelopes decoded to reach it; 1 for a snapshot. */
+    synchronized void put(Object archive_id, long position, int checksum, byte[] contents, List<Metadata.Item> metadata, int depth) {
+        if (contents.length > capacity) return;
+        purge();
+        Key key = new Key(archive_id, position, checksum);
+        if (entries.containsKey(key)) return;
+
+        while (size + contents.length > capacity) {
+            Entry victim = eviction_order.first();
+            inflation = victim.priority;
+            remove(victim);
+        }
+        Entry entry = new Entry(key, contents, metadata, depth, cleared);
+        entries.put(key, entry);
+        eviction_order.add(entry);
+        size += entry.length;
+    }
+
+    //==================== Internals =======================================
+
+    private void remove(Entry entry) {
+        if (entries.get(entry.key) != entry) return; // Already gone.
+        entries.remove(entry.key);
+        eviction_order.remove(entry);
+        size -= entry.length;
+        entry.clear();
+    }
+
+    /** Forget the entries whose contents have been collected. */
+    private void purge() {
+        Object ref;
+        while ((ref = cleared.poll()) != null) remove((Entry) ref);
+    }
+
+    private static final class Key {
+        final Object archive_id;
+        final long position;
+        final int checksum;
+
+        Key(Object archive_id, long position, int checksum) {
+            this.archive_id = archive_id;
+            this.position = position;
+            this.checksum = checksum;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) return false;
+            Key other = (Key) o;
+            return position == other.position && checksum == other.checksum &&
+                archive_id.equals(other.archive_id);
+        }
+
+        @Override
+        public int hashCode() {
+            return (archive_id.hashCode() * 31 + (int)(position ^ (position >>> 32))) * 31 + checksum;
+        }
+    }
+
+    private final class Entry extends SoftReference<byte[]> implements Comparable<Entry> {
+        final Key key;
+        final int length;
+        final List<Metadata.Item> metadata;
+        final int depth;
+        long priority, order;
+
+        Entry(Key key, byte[] contents, List<Metadata.Item> metadata, int depth, ReferenceQueue<byte[]> queue) {
+            super(contents, queue);
+            this.key = key;
+            this.length = contents.length;
+            this.metadata = metadata;
+            this.depth = depth;
+            touch();
+        }
+
+        void touch() {
+            priority = inflation + depth;
+            order = seq++;
+        }
+
+        @Override
+        public int compareTo(Entry other) {
+            if (priority != other.priority) return (priority < other.priority) ? -1 : 1;
+            return (order < other.order) ? -1 : (order > other.order) ? 1 : 0;
+        }
+    }
+}
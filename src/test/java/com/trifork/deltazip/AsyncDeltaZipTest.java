@@ -0,0 +1,142 @@
+package com.trifork.deltazip;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+public class AsyncDeltaZipTest {
+    private ExecutorService cpu_executor;
+    private DZUtil.FileAccess access;
+    private AsyncDeltaZip adz;
+    private Version[] versions;
+
+    @Before
+    public void setUp() throws Exception {
+        cpu_executor = Executors.newFixedThreadPool(2);
+        File f = File.createTempFile("deltazip-test", ".dz");
+        f.deleteOnExit();
+        access = new DZUtil.FileAccess(f, true);
+        adz = new AsyncDeltaZip(new DeltaZip(access), cpu_executor);
+
+        Random rnd = new Random();
+        versions = new Version[8];
+        byte[] tmp = new byte[10000];
+        rnd.nextBytes(tmp);
+        List<CompletableFuture<List<EnvelopeInfo>>> adds = new ArrayList<CompletableFuture<List<EnvelopeInfo>>>();
+        for (int i=0; i<versions.length; i++) {
+            tmp = tmp.clone();
+            tmp[rnd.nextInt(tmp.length)] = (byte) rnd.nextInt(256);
+            versions[i] = new Version(tmp);
+            adds.add(adz.add(versions[i])); // Not waiting; adds are applied in order.
+        }
+        for (CompletableFuture<List<EnvelopeInfo>> add : adds) {
+            List<EnvelopeInfo> envelopes = add.get(10, TimeUnit.SECONDS);
+            assertFalse(envelopes.isEmpty());
+        }
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        cpu_executor.shutdown();
+        access.close();
+    }
+
+    @Test
+    public void getVersions() throws Exception {
+        assertEquals(versions[versions.length-1], adz.latest().get(10, TimeUnit.SECONDS));
+        for (int k=0; k<versions.length; k++) {
+            assertEquals(versions[versions.length-1-k], adz.getVersion(k).get(10, TimeUnit.SECONDS));
+        }
+        assertNull(adz.getVersion(versions.length).get(10, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void historyHonoursDemand() throws Exception {
+        RecordingSubscriber subscriber = new RecordingSubscriber();
+        adz.history().subscribe(subscriber);
+        subscriber.subscription.request(2);
+        subscriber.await(2);
+        Thread.sleep(100);
+        assertEquals(2, subscriber.received.size()); // No more than requested.
+
+        subscriber.subscription.request(Long.MAX_VALUE);
+        assertTrue(subscriber.completed.await(10, TimeUnit.SECONDS));
+        assertNull(subscriber.error);
+        assertEquals(versions.length, subscriber.received.size());
+        for (int k=0; k<versions.length; k++) {
+            assertEquals(versions[versions.length-1-k], subscriber.received.get(k));
+        }
+    }
+
+    @Test
+    public void historyCanBeCancelled() throws Exception {
+        RecordingSubscriber subscriber = new RecordingSubscriber();
+        adz.history().subscribe(subscriber);
+        subscriber.subscription.request(3);
+        subscriber.await(3);
+        subscriber.subscription.cancel();
+        subscriber.subscription.request(10);
+        Thread.sleep(100);
+        assertEquals(3, subscriber.received.size());
+        assertEquals(1, subscriber.completed.getCount());
+    }
+
+    @Test
+    public void badRequestIsAnError() throws Exception {
+        RecordingSubscriber subscriber = new RecordingSubscriber();
+        adz.history().subscribe(subscriber);
+        subscriber.subscription.request(0);
+        assertTrue(subscriber.completed.await(10, TimeUnit.SECONDS));
+        assertTrue(subscriber.error instanceof IllegalArgumentException);
+    }
+
+    @Test
+    public void defaultExecutorIsDedicated() throws Exception {
+        AsyncDeltaZip default_adz = new AsyncDeltaZip(adz.getDeltaZip());
+        final List<String> threads = Collections.synchronizedList(new ArrayList<String>());
+        RecordingSubscriber subscriber = new RecordingSubscriber() {
+            @Override
+            public void onNext(Version item) {
+                threads.add(Thread.currentThread().getName());
+                super.onNext(item);
+            }
+        };
+        default_adz.history().subscribe(subscriber);
+        subscriber.subscription.request(Long.MAX_VALUE);
+        assertTrue(subscriber.completed.await(10, TimeUnit.SECONDS));
+        assertEquals(versions.length, threads.size());
+        for (String thread : threads) assertTrue(thread, thread.startsWith("deltazip-async-"));
+        assertEquals(versions[versions.length-1], default_adz.latest().get(10, TimeUnit.SECONDS));
+    }
+
+    private static class RecordingSubscriber implements Flow.Subscriber<Version> {
+        final List<Version> received = Collections.synchronizedList(new ArrayList<Version>());
+        /** Counted down on completion or error. */
+        final CountDownLatch completed = new CountDownLatch(1);
+        volatile Flow.Subscription subscription;
+        volatile Throwable error;
+
+        public void onSubscribe(Flow.Subscription subscription) {this.subscription = subscription;}
+        public void onNext(Version item) {received.add(item);}
+        public void onError(Throwable t) {error = t; completed.countDown();}
+        public void onComplete() {completed.countDown();}
+
+        void await(int count) throws InterruptedException {
+            long deadline = System.currentTimeMillis() + 10000;
+            while (received.size() < count && System.currentTimeMillis() < deadline) Thread.sleep(5);
+        }
+    }
+}
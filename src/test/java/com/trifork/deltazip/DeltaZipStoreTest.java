@@ -0,0 +1,193 @@
+package com.trifork.deltazip;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+public class DeltaZipStoreTest {
+    private File root;
+
+    @Before
+    public void createRoot() throws IOException {
+        root = File.createTempFile("deltazip-store", "");
+        assertTrue(root.delete() && root.mkdir());
+    }
+
+    @After
+    public void deleteRoot() {
+        delete(root);
+    }
+
+    @Test
+    public void pathsAreShardedAndEscaped() {
+        DeltaZipStore store = new DeltaZipStore(root);
+        File path = store.pathFor("doc/1 \u00fc");
+        assertEquals("doc%2f1%20%c3%bc.dz", path.getName());
+        assertEquals(root, path.getParentFile().getParentFile().getParentFile());
+        assertEquals(path, store.pathFor("doc/1 \u00fc"));
+        assertFalse(store.pathFor("a").getParentFile().equals(store.pathFor("b").getParentFile()));
+
+        // Long names are shortened, but stay distinct:
+        StringBuilder long_key = new StringBuilder();
+        for (int i=0; i<100; i++) long_key.append("\u00fc/");
+        String name1 = store.pathFor(long_key+"1").getName(), name2 = store.pathFor(long_key+"2").getName();
+        assertTrue(name1, name1.length() <= DeltaZipStore.MAX_NAME_LENGTH);
+        assertTrue(name1, name1.matches("(%[0-9a-f]{2})+~[0-9a-f]{32}\\.dz"));
+        assertFalse(name1.equals(name2));
+        assertEquals(255, store.pathFor(repeat('x', 252)).getName().length()); // Fits as it is.
+        assertTrue(store.pathFor(repeat('x', 253)).getName().contains("~"));
+    }
+
+    private static String repeat(char c, int count) {
+        char[] chars = new char[count];
+        Arrays.fill(chars, c);
+        return new String(chars);
+    }
+
+    @Test
+    public void addAndLatest() throws IOException {
+        DeltaZipStore store = new DeltaZipStore(root, 2, 4);
+        assertNull(store.latest("missing"));
+        assertFalse(store.pathFor("missing").exists());
+
+        for (int round=0; round<3; round++) {
+            for (int k=0; k<5; k++) {
+                store.add("key"+k, version(k, round));
+            }
+        }
+        for (int k=0; k<5; k++) {
+            assertEquals(version(k, 2), store.latest("key"+k));
+        }
+        store.close();
+
+        // The archives are ordinary DeltaZip files:
+        DZUtil.FileAccess access = new DZUtil.FileAccess(store.pathFor("key3"));
+        DeltaZip.VersionIterator iter = new DeltaZip(access).backwardsIterator();
+        for (int round=2; round>=0; round--) assertEquals(version(3, round), iter.next());
+        assertFalse(iter.hasNext());
+        access.close();
+    }
+
+    @Test
+    public void settingsApplyToTheArchives() throws IOException {
+        DeltaZipStore store = new DeltaZipStore(root, 2, 4);
+        store.setNewArchiveFormat(FormatVersion.VERSION_13);
+        store.setEncodingProfile(EncodingProfile.FAST);
+        store.add("key0", version(0, 0));
+        store.setSnapshotMethod(DeltaZip.METHOD_FAST_LZ); // Reaches the open archive, too.
+        store.add("key0", version(0, 1));
+        store.add("key1", version(1, 0));
+        store.close();
+
+        for (int k=0; k<2; k++) {
+            DZUtil.FileAccess access = new DZUtil.FileAccess(store.pathFor("key"+k));
+            DeltaZip dz = new DeltaZip(access);
+            assertEquals(DeltaZip.VERSION_13, dz.getFormatVersion().versionNumber());
+            DeltaZip.VersionIterator iter = dz.backwardsIterator();
+            assertEquals(version(k, 1-k), iter.next());
+            assertEquals(DeltaZip.METHOD_FAST_LZ, iter.getCurrentMethod());
+            access.close();
+        }
+
+        try {
+            store.setSnapshotMethod(DeltaZip.METHOD_CHUNKED);
+            fail();
+        } catch (IllegalArgumentException expected) {}
+    }
+
+    @Test
+    public void longKeys() throws IOException {
+        DeltaZipStore store = new DeltaZipStore(root, 2, 4);
+        String key = repeat('-', 1000);
+        store.add(key, version(0, 0));
+        assertEquals(version(0, 0), store.latest(key));
+        store.close();
+    }
+
+    @Test
+    public void concurrentAdds() throws Exception {
+        final DeltaZipStore store = new DeltaZipStore(root, 3, 2);
+        final int rounds = 20;
+        final List<Throwable> failures = Collections.synchronizedList(new ArrayList<Throwable>());
+        Thread[] threads = new Thread[4];
+        for (int t=0; t<threads.length; t++) {
+            final int thread_nr = t;
+            threads[t] = new Thread() {
+                public void run() {
+                    try {
+                        for (int round=0; round<rounds; round++) {
+                            for (int k=0; k<6; k++) {
+                                // Threads share some keys:
+                                String key = "key" + ((k + thread_nr) % 6);
+                                store.add(key, version(k, round));
+                                assertNotNull(store.latest(key));
+                            }
+                        }
+                    } catch (Throwable e) {
+                        failures.add(e);
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        for (Thread thread : threads) thread.join();
+        if (!failures.isEmpty()) throw new AssertionError(failures.get(0));
+
+        for (int k=0; k<6; k++) {
+            DZUtil.FileAccess access = new DZUtil.FileAccess(store.pathFor("key"+k));
+            int count = 0;
+            for (Version v : new DeltaZip(access).backwardsIterable()) count++;
+            assertEquals(threads.length * rounds, count);
+            access.close();
+        }
+        store.close();
+    }
+
+    @Test
+    public void rewritesReopenTheArchive() throws IOException {
+        DeltaZipStore store = new DeltaZipStore(root, 2, 4);
+        Repacker repacker = new Repacker(1, 0);
+        assertNull(store.repack("missing", repacker));
+        for (int round=0; round<4; round++) store.add("key", version(0, round));
+
+        Repacker.Result result = store.prune("key", repacker, RetentionPolicy.keepNewest(2));
+        assertTrue(result.isReplaced());
+        // Appends go to the new file, not to the one the store had open:
+        store.add("key", version(0, 4));
+        assertEquals(version(0, 4), store.latest("key"));
+        store.close();
+        repacker.close();
+
+        DZUtil.FileAccess access = new DZUtil.FileAccess(store.pathFor("key"));
+        DeltaZip.VersionIterator iter = new DeltaZip(access).backwardsIterator();
+        for (int round=4; round>=2; round--) assertEquals(version(0, round), iter.next());
+        assertFalse(iter.hasNext());
+        access.close();
+    }
+
+    private static Version version(int k, int round) {
+        StringBuilder sb = new StringBuilder();
+        for (int i=0; i<100; i++) sb.append("Document ").append(k).append(" line ").append(i).append('\n');
+        sb.append("Revision ").append(round);
+        try {
+            return new Version(sb.toString().getBytes("UTF-8"));
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static void delete(File f) {
+        File[] children = f.listFiles();
+        if (children != null) for (File child : children) delete(child);
+        f.delete();
+    }
+}
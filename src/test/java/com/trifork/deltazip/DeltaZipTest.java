@@ -1,7 +1,11 @@
 package com.trifork.deltazip;
 
 import java.nio.ByteBuffer;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.IOException;
+import java.io.RandomAccessFile;
 import com.trifork.deltazip.DeltaZip.AppendSpecification;
 import com.trifork.deltazip.DZUtil.ByteArrayAccess;
 
@@ -10,8 +14,17 @@ import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.ConcurrentModificationException;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
 
 import org.junit.Test;
 import static org.junit.Assert.*;
@@ -325,6 +338,340 @@ public class DeltaZipTest {
 	}
 
 
+    @Test
+    public void block_copy_finds_moved_blocks() throws IOException {
+        final Random rnd = new Random();
+        byte[] base = createRandomBlob(1 << 20, rnd);
+
+        // Reorder 64K blocks, and insert a little new data between some:
+        ByteArrayOutputStream reordered = new ByteArrayOutputStream();
+        List<Integer> blocks = new ArrayList<Integer>();
+        for (int b=0; b<16; b++) blocks.add(b);
+        Collections.shuffle(blocks, rnd);
+        for (int b : blocks) {
+            reordered.write(base, b << 16, 1 << 16);
+            if (rnd.nextBoolean()) reordered.write(createRandomBlob(100, rnd));
+        }
+        byte[] next = reordered.toByteArray();
+        next[rnd.nextInt(next.length)] ^= 1;
+
+        ByteArrayAccess access = new ByteArrayAccess(new byte[0]);
+        DeltaZip dz = new DeltaZip(access);
+        dz.setNewArchiveFormat(FormatVersion.VERSION_13);
+        byte[] file = access.applyAppendSpec(dz.add(Arrays.asList(new Version(base), new Version(next))));
+        DeltaZip.VersionIterator iter = new DeltaZip(new ByteArrayAccess(file)).backwardsIterator();
+        assertEquals(new Version(next), iter.next());
+        assertEquals(new Version(base), iter.next());
+        assertTrue(iter.getCurrentMethod() >= DeltaZip.METHOD_BLOCK_COPY);
+        assertTrue("Delta is small: "+iter.getCurrentCompSize(), iter.getCurrentCompSize() < 4000);
+
+        // Older formats, which older readers know, do without it:
+        access = new ByteArrayAccess(new byte[0]);
+        file = access.applyAppendSpec(new DeltaZip(access).add(Arrays.asList(new Version(base), new Version(next))));
+        iter = new DeltaZip(new ByteArrayAccess(file)).backwardsIterator();
+        assertEquals(new Version(next), iter.next());
+        assertEquals(new Version(base), iter.next());
+        assertTrue(iter.getCurrentMethod() < DeltaZip.METHOD_BLOCK_COPY);
+        int size = compressed_size(DeltaZip.METHOD_BLOCK_COPY, next, base);
+        assertTrue("Block copy delta is small: "+size, size < 4000);
+
+        assert_round_trips(DeltaZip.METHOD_BLOCK_COPY, new byte[0], "short".getBytes(), createRandomBlob(1000, rnd), base);
+    }
+
+    @Test
+    public void long_range_lz_beats_chunked_middle() throws IOException {
+        final Random rnd = new Random(1);
+        // Text-like data, with repetition inside the inserted content and far-away matches:
+        String[] words = new String[500];
+        for (int i=0; i<words.length; i++) words[i] = Integer.toString(rnd.nextInt(1 << 30), 36);
+        StringBuilder sb = new StringBuilder();
+        while (sb.length() < 300000) sb.append(words[rnd.nextInt(words.length)]).append(' ');
+        byte[] base = sb.toString().getBytes(LATIN1);
+
+        ByteArrayOutputStream next = new ByteArrayOutputStream();
+        byte[] inserted = createRandomBlob(2000, rnd);
+        next.write(base, 200000, 100000); // Moved from the end.
+        next.write(inserted);
+        next.write(base, 0, 200000);
+        next.write(inserted); // Repeated within the new content.
+        byte[] version = next.toByteArray();
+
+        int lz_size = compressed_size(DeltaZip.METHOD_LONG_RANGE_LZ, version, base);
+        int chunked_size = compressed_size(DeltaZip.METHOD_CHUNKED_MIDDLE, version, base);
+        assertTrue("LZ: "+lz_size+" vs. chunked: "+chunked_size, lz_size < chunked_size);
+        assertTrue("Small: "+lz_size, lz_size < 4000);
+
+        assert_round_trips(DeltaZip.METHOD_LONG_RANGE_LZ, new byte[0], "short".getBytes(), "aaaaaaaaaaaaaaaaaaaaa".getBytes(),
+                           createRandomBlob(1000, rnd), base, version);
+    }
+
+    @Test
+    public void long_range_lz_gives_up_on_large_or_losing_inputs() throws IOException {
+        final Random rnd = new Random(2);
+        DeltaZip.CompressionMethod lz = DeltaZip.COMPRESSION_METHODS[DeltaZip.METHOD_LONG_RANGE_LZ];
+        assertTrue(lz.accepts(LongRangeLZMethod.MAX_INPUT / 2, LongRangeLZMethod.MAX_INPUT / 2));
+        assertFalse(lz.accepts(LongRangeLZMethod.MAX_INPUT, 1));
+
+        // Unrelated data; the literals alone outweigh a small limit:
+        byte[] base = createRandomBlob(300000, rnd), version = createRandomBlob(300000, rnd);
+        try {
+            lz.compress(ByteBuffer.wrap(version), ByteBuffer.wrap(base), EncodingProfile.MAX, new AtomicInteger(1000), new ByteArrayOutputStream());
+            fail("Expected the trial to be abandoned");
+        } catch (DeltaZip.TrialAbandonedException expected) {}
+
+        // Without a limit, it completes:
+        ByteArrayOutputStream comp = new ByteArrayOutputStream();
+        lz.compress(ByteBuffer.wrap(version), ByteBuffer.wrap(base), EncodingProfile.MAX, null, comp);
+        assertArrayEquals(version, lz.uncompress(ByteBuffer.wrap(comp.toByteArray()), base, new Inflater(true)));
+    }
+
+    @Test
+    public void fast_lz_snapshots() throws IOException {
+        final Random rnd = new Random();
+        StringBuilder sb = new StringBuilder();
+        while (sb.length() < 200000) sb.append("line ").append(rnd.nextInt(1000)).append(" of the text\n");
+        byte[] text = sb.toString().getBytes(LATIN1);
+        byte[] long_runs = new byte[70000];
+        Arrays.fill(long_runs, 1000, 69000, (byte)'x');
+
+        int size = compressed_size(DeltaZip.METHOD_FAST_LZ, text, new byte[0]);
+        assertTrue("Compresses: "+size, size < text.length / 2);
+        assert_round_trips(DeltaZip.METHOD_FAST_LZ, new byte[0], "short".getBytes(), "aaaaaaaaaaaaaaaaaaaaa".getBytes(),
+                           createRandomBlob(1000, rnd), text, long_runs);
+
+        // Chosen per archive; deltas are unaffected:
+        ByteArrayAccess access = new ByteArrayAccess(new byte[0]);
+        DeltaZip dz = new DeltaZip(access);
+        dz.setNewArchiveFormat(FormatVersion.VERSION_13);
+        dz.setSnapshotMethod(DeltaZip.METHOD_FAST_LZ);
+        byte[] file = access.applyAppendSpec(dz.add(Arrays.asList(new Version(long_runs), new Version(text))));
+        DeltaZip.VersionIterator iter = new DeltaZip(new ByteArrayAccess(file)).backwardsIterator();
+        assertEquals(new Version(text), iter.next());
+        assertEquals(DeltaZip.METHOD_FAST_LZ, iter.getCurrentMethod());
+        assertEquals(new Version(long_runs), iter.next());
+        assertFalse(DeltaZip.is_snapshot_method(iter.getCurrentMethod()));
+
+        // Older formats, which older readers know, deflate instead:
+        access = new ByteArrayAccess(new byte[0]);
+        dz = new DeltaZip(access);
+        dz.setSnapshotMethod(DeltaZip.METHOD_FAST_LZ);
+        file = access.applyAppendSpec(dz.add(new Version(text)));
+        iter = new DeltaZip(new ByteArrayAccess(file)).backwardsIterator();
+        assertEquals(new Version(text), iter.next());
+        assertEquals(DeltaZip.METHOD_DEFLATED, iter.getCurrentMethod());
+
+        // Versions added from a stream, too, are encoded with it:
+        File f = File.createTempFile("deltazip-test", ".dz");
+        f.deleteOnExit();
+        DZUtil.FileAccess file_access = new DZUtil.FileAccess(f, true);
+        dz = new DeltaZip(file_access);
+        dz.setNewArchiveFormat(FormatVersion.VERSION_13);
+        dz.setSnapshotMethod(DeltaZip.METHOD_FAST_LZ);
+        dz.setSpillThreshold(0);
+        dz.add(new ByteArrayInputStream(long_runs), Collections.<Metadata.Item>emptyList());
+        List<EnvelopeInfo> envelopes = dz.add(new ByteArrayInputStream(text), Collections.<Metadata.Item>emptyList());
+        assertEquals(DeltaZip.METHOD_FAST_LZ, envelopes.get(envelopes.size()-1).getMethod());
+        iter = new DeltaZip(file_access).backwardsIterator();
+        assertEquals(new Version(text), iter.next());
+        assertEquals(DeltaZip.METHOD_FAST_LZ, iter.getCurrentMethod());
+        assertEquals(new Version(long_runs), iter.next());
+        file_access.close();
+
+        try {
+            dz.setSnapshotMethod(DeltaZip.METHOD_CHUNKED);
+            fail();
+        } catch (IllegalArgumentException expected) {}
+    }
+
+    @Test
+    public void encoding_profiles() throws IOException {
+        final Random rnd = new Random();
+        List<Version> versions = new ArrayList<Version>();
+        byte[] text = createRandomBlob(100000, rnd);
+        for (int i=0; i<text.length; i++) text[i] = (byte)('a' + (text[i] & 7));
+        for (int v=0; v<5; v++) {
+            for (int j=0; j<20; j++) text[rnd.nextInt(text.length)] = (byte)'-';
+            versions.add(new Version(text.clone()));
+        }
+
+        for (EncodingProfile profile : new EncodingProfile[] {EncodingProfile.FAST, EncodingProfile.BALANCED, EncodingProfile.MAX}) {
+            ByteArrayAccess access = new ByteArrayAccess(new byte[0]);
+            DeltaZip dz = new DeltaZip(access);
+            dz.setEncodingProfile(profile);
+            byte[] file = access.applyAppendSpec(dz.add(versions));
+
+            DeltaZip.VersionIterator iter = new DeltaZip(new ByteArrayAccess(file)).backwardsIterator();
+            for (int v=versions.size()-1; v>=0; v--) {
+                assertEquals(versions.get(v), iter.next());
+                if (profile == EncodingProfile.FAST && v < versions.size()-1) {
+                    int method = iter.getCurrentMethod();
+                    assertTrue("Method: "+method, method == DeltaZip.METHOD_CHUNKED_MIDDLE || method == DeltaZip.METHOD_BLOCK_COPY);
+                }
+            }
+        }
+
+        // Chunk options are checked against what the format can express:
+        try {
+            new EncodingProfile("bad", 9, 0, new int[] {3}, new int[] {0}, 0, new int[] {DeltaZip.METHOD_CHUNKED});
+            fail();
+        } catch (IllegalArgumentException expected) {}
+        try {
+            new EncodingProfile("bad", 9, 0, new int[] {0}, new int[] {0}, 0, new int[] {DeltaZip.METHOD_DEFLATED});
+            fail();
+        } catch (IllegalArgumentException expected) {}
+        assertSame(EncodingProfile.BALANCED, EncodingProfile.named("balanced"));
+        assertSame(EncodingProfile.EXHAUSTIVE, EncodingProfile.named("exhaustive"));
+    }
+
+    @Test
+    public void chunk_options_follow_the_reference() throws IOException {
+        // Longer chunks cost less per byte, also when below one byte per byte:
+        assertTrue(new ChunkedMethod.PrefixChunkOption(1000).ratio() < new ChunkedMethod.PrefixChunkOption(100).ratio());
+
+        final Random rnd = new Random(25);
+        String[] words = new String[500];
+        for (int i=0; i<words.length; i++) words[i] = Integer.toString(rnd.nextInt(1 << 30), 36);
+        StringBuilder sb = new StringBuilder();
+        while (sb.length() < 300000) sb.append(words[rnd.nextInt(words.length)]).append(' ');
+        byte[] base = sb.toString().getBytes(LATIN1);
+        byte[] edited = base.clone();
+        for (int i=0; i<50; i++) edited[rnd.nextInt(edited.length)] = (byte)'#';
+
+        // Estimating and refining the deflate options costs little compared to deflating all of them fully:
+        EncodingProfile exhaustive = new EncodingProfile("exhaustive", 9, 0, new int[] {0, 1, 2}, new int[] {0, 1, 2, 3}, 0,
+                                                         new int[] {DeltaZip.METHOD_CHUNKED_MIDDLE});
+        int refined_size = compressed_size(DeltaZip.METHOD_CHUNKED_MIDDLE, edited, base);
+        ByteArrayOutputStream comp = new ByteArrayOutputStream();
+        DeltaZip.COMPRESSION_METHODS[DeltaZip.METHOD_CHUNKED_MIDDLE].compress(ByteBuffer.wrap(edited), ByteBuffer.wrap(base), exhaustive, comp);
+        int exhaustive_size = comp.size();
+        assertTrue("Small: "+refined_size, refined_size < 5000);
+        assertTrue("Refined: "+refined_size+" vs. exhaustive: "+exhaustive_size, refined_size < exhaustive_size * 1.1);
+
+        for (EncodingProfile profile : new EncodingProfile[] {EncodingProfile.FAST, EncodingProfile.BALANCED}) {
+            comp.reset();
+            DeltaZip.COMPRESSION_METHODS[DeltaZip.METHOD_CHUNKED].compress(ByteBuffer.wrap(edited), ByteBuffer.wrap(base), profile, comp);
+            assertTrue(profile+": "+comp.size(), comp.size() < 10000);
+            assertArrayEquals(edited, DeltaZip.COMPRESSION_METHODS[DeltaZip.METHOD_CHUNKED].uncompress(ByteBuffer.wrap(comp.toByteArray()), base, new Inflater(true)));
+        }
+    }
+
+    @Test
+    public void profiles_trade_effort_for_size() throws IOException {
+        int prev_size = Integer.MAX_VALUE;
+        for (EncodingProfile profile : new EncodingProfile[] {EncodingProfile.FAST, EncodingProfile.BALANCED,
+                                                              EncodingProfile.MAX, EncodingProfile.EXHAUSTIVE}) {
+            byte[] file = encoded_fixture(profile);
+            assert_fixture_contents(file);
+            assertTrue(profile+": "+file.length+" vs. "+prev_size, file.length <= prev_size);
+            prev_size = file.length;
+
+            // The deltas use the profile's methods:
+            List<Integer> methods = new ArrayList<Integer>();
+            for (DeltaZip.CompressionMethod cm : profile.deltaMethods()) methods.add(cm.methodNumber());
+            for (EnvelopeInfo envelope : new DeltaZip(new ByteArrayAccess(file)).envelopeIterable()) {
+                if (!envelope.isSnapshot()) assertTrue(profile+": "+envelope.getMethod(), methods.contains(envelope.getMethod()));
+            }
+        }
+
+        // The chunk options and deflate level, with the chunked method alone:
+        int[] chunked = {DeltaZip.METHOD_CHUNKED_MIDDLE};
+        EncodingProfile few_options = new EncodingProfile("few", Deflater.BEST_SPEED, Deflater.DEFAULT_STRATEGY,
+                                                          new int[] {0}, new int[] {0}, 0, chunked);
+        EncodingProfile all_options = new EncodingProfile("all", Deflater.BEST_COMPRESSION, Deflater.DEFAULT_STRATEGY,
+                                                          new int[] {0, 1, 2}, new int[] {0, 1, 2, 3}, 0, chunked);
+        byte[] few_file = encoded_fixture(few_options), all_file = encoded_fixture(all_options);
+        assert_fixture_contents(few_file);
+        assert_fixture_contents(all_file);
+        assertTrue(all_file.length+" vs. "+few_file.length, all_file.length < few_file.length);
+    }
+
+    private static byte[] encoded_fixture(EncodingProfile profile) throws IOException {
+        ByteArrayAccess access = new ByteArrayAccess(new byte[0]);
+        DeltaZip dz = new DeltaZip(access);
+        dz.setEncodingProfile(profile);
+        dz.setNewArchiveFormat(FormatVersion.VERSION_13);
+        return access.applyAppendSpec(dz.add(fixture_versions()));
+    }
+
+    private static List<Version> fixture_versions() throws IOException {
+        Random rnd = new Random(24);
+        List<Version> versions = new ArrayList<Version>();
+        StringBuilder sb = new StringBuilder();
+        while (sb.length() < 60000) sb.append("line ").append(rnd.nextInt(5000)).append(" of the fixture\n");
+        byte[] text = sb.toString().getBytes(LATIN1);
+        for (int v=0; v<4; v++) {
+            for (int j=0; j<10; j++) text[rnd.nextInt(text.length)] = (byte)'-';
+            versions.add(new Version(text.clone()));
+        }
+        return versions;
+    }
+
+    /** Only the deflate-based chunked methods, which use the reference as a dictionary. */
+    private static final EncodingProfile CHUNKED_ONLY =
+        new EncodingProfile("chunked", Deflater.BEST_COMPRESSION, Deflater.DEFAULT_STRATEGY,
+                            new int[] {0, 1}, new int[] {0, 1}, 0,
+                            new int[] {DeltaZip.METHOD_CHUNKED, DeltaZip.METHOD_CHUNKED_MIDDLE});
+
+    @Test
+    public void native_zlib_and_jzlib_read_each_other() throws IOException {
+        boolean saved = DZUtil.use_jzlib_always;
+        try {
+            DZUtil.use_jzlib_always = false;
+            byte[] by_native = encoded_fixture(CHUNKED_ONLY);
+            DZUtil.use_jzlib_always = true;
+            byte[] by_jzlib = encoded_fixture(CHUNKED_ONLY);
+
+            assert_fixture_contents(by_native); // Native output, jzlib inflater.
+            DZUtil.use_jzlib_always = false;
+            assert_fixture_contents(by_jzlib);  // jzlib output, native inflater.
+        } finally {
+            DZUtil.use_jzlib_always = saved;
+        }
+    }
+
+    @Test
+    public void jzlib_crosscheck_agrees() throws IOException {
+        boolean saved = DZUtil.jzlib_crosscheck;
+        try {
+            DZUtil.jzlib_crosscheck = true;
+            assert_fixture_contents(encoded_fixture(CHUNKED_ONLY));
+            assert_fixture_contents(encoded_fixture(EncodingProfile.MAX));
+        } finally {
+            DZUtil.jzlib_crosscheck = saved;
+        }
+    }
+
+    private static void assert_fixture_contents(byte[] file) throws IOException {
+        List<Version> versions = fixture_versions();
+        DeltaZip dz = new DeltaZip(new ByteArrayAccess(file));
+        int i = versions.size();
+        for (Version version : dz.backwardsIterable()) {
+            i--;
+            assertEquals(versions.get(i).getContents(), version.getContents());
+        }
+        assertEquals(0, i);
+    }
+
+    /** Encode and decode each case against each case, through the method itself. */
+    private static void assert_round_trips(int method_number, byte[]... cases) throws IOException {
+        DeltaZip.CompressionMethod method = DeltaZip.COMPRESSION_METHODS[method_number];
+        for (byte[] org : cases) {
+            for (byte[] ref : cases) {
+                ByteArrayOutputStream comp = new ByteArrayOutputStream();
+                method.compress(ByteBuffer.wrap(org), ByteBuffer.wrap(ref), comp);
+                Inflater inflater = new Inflater(true);
+                assertArrayEquals(org, method.uncompress(ByteBuffer.wrap(comp.toByteArray()), ref, inflater));
+                inflater.end();
+            }
+        }
+    }
+
+    private static int compressed_size(int method_number, byte[] org, byte[] ref) throws IOException {
+        ByteArrayOutputStream comp = new ByteArrayOutputStream();
+        DeltaZip.COMPRESSION_METHODS[method_number].compress(ByteBuffer.wrap(org), ByteBuffer.wrap(ref), comp);
+        return comp.size();
+    }
+
 	public void series_test_with(ByteBuffer[] versions) throws IOException {
 		byte[] file = new byte[0];
 
@@ -355,6 +702,573 @@ public class DeltaZipTest {
         assertEquals("There are only the expected number of versions", i, -1);
     }
 
+    @Test
+    public void parallel_encoding_is_deterministic() throws IOException {
+        final Random rnd = new Random();
+        byte[] base = createRandomBlob(100000, rnd);
+        byte[] related = base.clone();
+        for (int k=0; k<20; k++) related[rnd.nextInt(related.length)] = (byte) rnd.nextInt(256);
+        List<Version> versions = Arrays.asList(new Version(base), new Version(related));
+
+        ForkJoinPool saved_pool = DeltaZip.getEncoderPool();
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            DeltaZip.setEncoderPool(null);
+            byte[] sequential = new ByteArrayAccess(new byte[0]).applyAppendSpec(
+                    new DeltaZip(new ByteArrayAccess(new byte[0])).add(versions));
+            DeltaZip.setEncoderPool(pool);
+            byte[] parallel = new ByteArrayAccess(new byte[0]).applyAppendSpec(
+                    new DeltaZip(new ByteArrayAccess(new byte[0])).add(versions));
+            assertArrayEquals(sequential, parallel);
+        } finally {
+            DeltaZip.setEncoderPool(saved_pool);
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void encoding_stays_in_the_encoder_pool() throws Exception {
+        ForkJoinPool pool = new ForkJoinPool(2), other_pool = new ForkJoinPool(2);
+        try {
+            final List<Callable<ForkJoinPool>> tasks = new ArrayList<Callable<ForkJoinPool>>();
+            for (int i=0; i<4; i++) {
+                tasks.add(new Callable<ForkJoinPool>() {
+                    public ForkJoinPool call() {return ForkJoinTask.getPool();}
+                });
+            }
+            final ForkJoinPool encoder_pool = pool;
+            List<ForkJoinPool> used = other_pool.submit(new Callable<List<ForkJoinPool>>() {
+                public List<ForkJoinPool> call() {return DZUtil.invokeAll(encoder_pool, tasks);}
+            }).get();
+            for (ForkJoinPool p : used) assertSame(pool, p);
+        } finally {
+            pool.shutdown();
+            other_pool.shutdown();
+        }
+    }
+
+    @Test
+    public void keyframe_test() throws IOException {
+        final Random rnd = new Random();
+        Version[] versions = new Version[10];
+        byte[] tmp = createRandomBlob(10000, rnd);
+        for (int i=0; i<versions.length; i++) {
+            tmp = tmp.clone();
+            tmp[rnd.nextInt(tmp.length)] = (byte) rnd.nextInt(256);
+            versions[i] = new Version(tmp);
+        }
+
+        // Add one by one, plus a batch, with a snapshot every 3 versions:
+        byte[] file = new byte[0];
+        for (int i=0; i<7; i++) {
+            ByteArrayAccess access = new ByteArrayAccess(file);
+            DeltaZip dz = new DeltaZip(access);
+            dz.setKeyframePolicy(KeyframePolicy.every(3));
+            file = access.applyAppendSpec(dz.add(versions[i]));
+        }
+        {
+            ByteArrayAccess access = new ByteArrayAccess(file);
+            DeltaZip dz = new DeltaZip(access);
+            dz.setKeyframePolicy(KeyframePolicy.every(3));
+            file = access.applyAppendSpec(dz.add(Arrays.asList(versions).subList(7, 10)));
+        }
+
+        DeltaZip dz = new DeltaZip(new ByteArrayAccess(file));
+        DeltaZip.VersionIterator iter = dz.backwardsIterator();
+        int deltas_in_a_row = 0, i = versions.length-1;
+        while (iter.hasNext()) {
+            assertEquals(versions[i--], iter.next());
+            if (iter.getCurrentMethod() < DeltaZip.METHOD_CHUNKED) deltas_in_a_row = 0;
+            else assertTrue("At most 2 deltas in a row", ++deltas_in_a_row <= 2);
+        }
+        assertEquals(-1, i);
+
+        for (int k=0; k<versions.length; k++) {
+            assertEquals(versions[versions.length-1-k], dz.getVersion(k));
+        }
+        assertNull(dz.getVersion(versions.length));
+    }
+
+    @Test
+    public void index_follows_appends() throws IOException {
+        final Random rnd = new Random();
+        File f = File.createTempFile("deltazip-test", ".dz");
+        File index_file = DeltaZipIndex.indexFileFor(f);
+        f.deleteOnExit(); index_file.deleteOnExit();
+
+        DZUtil.FileAccess access = new DZUtil.FileAccess(f, true);
+        DeltaZipIndex index = DeltaZipIndex.rebuild(new DeltaZip(access), index_file);
+        assertTrue(index.isConsistentWith(access));
+        assertEquals(0, index.size());
+
+        Version[] versions = new Version[8];
+        byte[] tmp = createRandomBlob(5000, rnd);
+        for (int i=0; i<versions.length; i++) {
+            tmp = tmp.clone();
+            tmp[rnd.nextInt(tmp.length)] = (byte) rnd.nextInt(256);
+            versions[i] = new Version(tmp, Collections.singletonList(new Metadata.Item(Metadata.VERSION_ID_KEYTAG, "v"+i)));
+            DeltaZip dz = new DeltaZip(access);
+            dz.setKeyframePolicy(KeyframePolicy.every(3));
+            AppendSpecification spec = dz.add(versions[i]);
+            access.applyAppendSpec(spec);
+            index.applyAppendSpec(spec);
+            assertTrue(index.isConsistentWith(access));
+        }
+        index.close();
+
+        // Reopened and rebuilt indexes agree:
+        DeltaZip dz = new DeltaZip(access);
+        DeltaZipIndex reopened = DeltaZipIndex.open(index_file);
+        DeltaZipIndex rebuilt = DeltaZipIndex.rebuild(dz, index_file);
+        assertEquals(versions.length, reopened.size());
+        assertEquals(reopened.getEntries().toString(), rebuilt.getEntries().toString());
+
+        for (int k=0; k<versions.length; k++) {
+            assertEquals(versions[versions.length-1-k], dz.getVersion(k, rebuilt));
+            assertEquals(versions[versions.length-1-k].getMetadata(), rebuilt.get(k).getMetadata());
+        }
+        reopened.close();
+        rebuilt.close();
+        access.close();
+    }
+
+    @Test
+    public void index_repairs_only_when_opened_for_update() throws IOException {
+        final Random rnd = new Random();
+        File f = File.createTempFile("deltazip-test", ".dz");
+        File index_file = DeltaZipIndex.indexFileFor(f);
+        f.deleteOnExit(); index_file.deleteOnExit();
+
+        DZUtil.FileAccess access = new DZUtil.FileAccess(f, true);
+        byte[] tmp = createRandomBlob(3000, rnd);
+        for (int i=0; i<3; i++) {
+            tmp = tmp.clone();
+            tmp[rnd.nextInt(tmp.length)] = (byte) rnd.nextInt(256);
+            access.applyAppendSpec(new DeltaZip(access).add(new Version(tmp)));
+        }
+        DeltaZipIndex index = DeltaZipIndex.rebuild(new DeltaZip(access), index_file);
+        List<EnvelopeInfo> entries = new ArrayList<EnvelopeInfo>(index.getEntries());
+        index.close();
+
+        // A torn record is left alone by queries, and discarded by updaters:
+        long good_length = index_file.length();
+        RandomAccessFile raf = new RandomAccessFile(index_file, "rw");
+        raf.setLength(good_length + 5);
+        raf.close();
+        index = DeltaZipIndex.open(index_file);
+        assertEquals(3, index.size());
+        assertTrue(index.isConsistentWith(access));
+        try {
+            index.applyNewEnvelopes(entries.subList(2, 3));
+            fail("Read-only index was updated");
+        } catch (IllegalStateException expected) {}
+        index.close();
+        assertEquals(good_length + 5, index_file.length());
+        DeltaZipIndex.openForUpdate(index_file).close();
+        assertEquals(good_length, index_file.length());
+
+        // An index which ends where the archive ends, but with another last envelope, is not consistent:
+        EnvelopeInfo last = entries.get(2);
+        entries.set(2, new EnvelopeInfo(last.getPosition()+1, last.getMethod(), last.getCompSize()-1,
+                                        last.getRawSize(), last.getChecksum(), last.getMetadata()));
+        index = DeltaZipIndex.create(index_file, entries);
+        assertFalse(index.isConsistentWith(access));
+        index.close();
+        entries.set(2, new EnvelopeInfo(last.getPosition(), last.getMethod(), last.getCompSize(),
+                                        last.getRawSize(), last.getChecksum() ^ 1, last.getMetadata()));
+        index = DeltaZipIndex.create(index_file, entries);
+        assertFalse(index.isConsistentWith(access));
+        index.close();
+        access.close();
+    }
+
+    @Test
+    public void envelope_iterator_matches_decoding() throws IOException {
+        final Random rnd = new Random();
+        byte[] big_value = new byte[1000]; // Larger than the metadata read-ahead.
+        Arrays.fill(big_value, (byte)'x');
+        Version[] versions = new Version[6];
+        byte[] tmp = createRandomBlob(3000, rnd);
+        for (int i=0; i<versions.length; i++) {
+            tmp = tmp.clone();
+            tmp[rnd.nextInt(tmp.length)] = (byte) rnd.nextInt(256);
+            List<Metadata.Item> metadata = (i==2) ? Collections.<Metadata.Item>emptyList()
+                : (i==4) ? Collections.singletonList(new Metadata.Item(17, big_value))
+                : Collections.singletonList(new Metadata.Item(Metadata.VERSION_ID_KEYTAG, "v"+i));
+            versions[i] = new Version(tmp, metadata);
+        }
+        ByteArrayAccess access = new ByteArrayAccess(new byte[0]);
+        byte[] file = access.applyAppendSpec(new DeltaZip(access).add(Arrays.asList(versions)));
+
+        DeltaZip dz = new DeltaZip(new ByteArrayAccess(file));
+        DeltaZip.VersionIterator iter = dz.backwardsIterator();
+        Iterator<EnvelopeInfo> env_iter = dz.envelopeIterator();
+        while (iter.hasNext()) {
+            assertTrue(env_iter.hasNext());
+            Version version = iter.next();
+            EnvelopeInfo envelope = env_iter.next();
+            assertEquals(iter.getCurrentPosition(), envelope.getPosition());
+            assertEquals(iter.getCurrentMethod(), envelope.getMethod());
+            assertEquals(iter.getCurrentCompSize(), envelope.getCompSize());
+            assertEquals(iter.getCurrentChecksum(), envelope.getChecksum());
+            assertEquals(-1, envelope.getRawSize());
+            assertEquals(version.getMetadata(), envelope.getMetadata());
+        }
+        assertFalse(env_iter.hasNext());
+    }
+
+    @Test
+    public void streaming_decode_matches_getVersion() throws IOException {
+        final Random rnd = new Random();
+        Version[] versions = new Version[5];
+        byte[] tmp = createRandomBlob(200000, rnd);
+        for (int i=0; i<versions.length; i++) {
+            tmp = tmp.clone();
+            tmp[rnd.nextInt(tmp.length)] = (byte) rnd.nextInt(256);
+            versions[i] = new Version(tmp);
+        }
+        ByteArrayAccess access = new ByteArrayAccess(new byte[0]);
+        byte[] file = access.applyAppendSpec(new DeltaZip(access).add(Arrays.asList(versions)));
+
+        for (int threshold : new int[] {0, 1000, Integer.MAX_VALUE}) { // Always, sometimes and never spilled.
+            DeltaZip dz = new DeltaZip(new ByteArrayAccess(file));
+            dz.setSpillThreshold(threshold);
+            for (int k=0; k<versions.length; k++) {
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                assertTrue(dz.writeVersion(k, out));
+                assertArrayEquals(DZUtil.allToByteArray(versions[versions.length-1-k].getContents()), out.toByteArray());
+            }
+            assertFalse(dz.writeVersion(versions.length, new ByteArrayOutputStream()));
+        }
+    }
+
+    @Test
+    public void streaming_add() throws IOException {
+        final Random rnd = new Random();
+        File f = File.createTempFile("deltazip-test", ".dz");
+        f.deleteOnExit();
+        DZUtil.FileAccess access = new DZUtil.FileAccess(f, true);
+
+        Version[] versions = new Version[7];
+        byte[] tmp = createRandomBlob(100000, rnd);
+        for (int i=0; i<versions.length; i++) {
+            tmp = tmp.clone();
+            tmp[rnd.nextInt(tmp.length)] = (byte) rnd.nextInt(256);
+            List<Metadata.Item> metadata = (i%2==0) ? Collections.<Metadata.Item>emptyList()
+                : Collections.singletonList(new Metadata.Item(Metadata.VERSION_ID_KEYTAG, "v"+i));
+            versions[i] = new Version(tmp, metadata);
+
+            DeltaZip dz = new DeltaZip(access);
+            dz.setSpillThreshold(i%2==0 ? 0 : Integer.MAX_VALUE);
+            dz.setKeyframePolicy(KeyframePolicy.every(3));
+            List<EnvelopeInfo> envelopes = dz.add(new ByteArrayInputStream(tmp), metadata);
+            assertEquals(access.getSize(), envelopes.get(envelopes.size()-1).getEndPosition());
+        }
+
+        DeltaZip dz = new DeltaZip(access);
+        DeltaZip.VersionIterator iter = dz.backwardsIterator();
+        int i = versions.length-1, deltas_in_a_row = 0;
+        while (iter.hasNext()) {
+            assertEquals(versions[i--], iter.next());
+            if (iter.getCurrentMethod() < DeltaZip.METHOD_CHUNKED) deltas_in_a_row = 0;
+            else assertTrue("At most 2 deltas in a row", ++deltas_in_a_row <= 2);
+        }
+        assertEquals(-1, i);
+        access.close();
+    }
+
+    @Test
+    public void extended_envelope_sizes() throws IOException {
+        // As format 12, but with envelopes of 100 bytes or more getting extended sizes:
+        FormatVersion small_marker_format = new FormatVersion() {
+            @Override public int versionNumber() { return DeltaZip.VERSION_12; }
+            @Override public boolean supportsMetadata() { return true; }
+            @Override public int versionSizeBits() { return 27; }
+            @Override public boolean supportsExtendedSizes() { return true; }
+            @Override public int extendedSizeMarker() { return 100; }
+        };
+        final Random rnd = new Random();
+        File f = File.createTempFile("deltazip-test", ".dz");
+        f.deleteOnExit();
+        DZUtil.FileAccess access = new DZUtil.FileAccess(f, true);
+        DeltaZip dz = new DeltaZip(access); // Used throughout, as it keeps the format.
+        dz.setNewArchiveFormat(small_marker_format);
+
+        Version[] versions = new Version[6];
+        byte[] tmp = createRandomBlob(3000, rnd);
+        for (int i=0; i<versions.length; i++) {
+            tmp = tmp.clone();
+            tmp[rnd.nextInt(tmp.length)] = (byte) rnd.nextInt(256);
+            versions[i] = new Version(tmp, Collections.singletonList(new Metadata.Item(Metadata.VERSION_ID_KEYTAG, "v"+i)));
+            if (i%2==0) {
+                access.applyAppendSpec(dz.add(versions[i]));
+            } else {
+                dz.add(new ByteArrayInputStream(tmp), versions[i].getMetadata());
+            }
+        }
+        assertEquals(DeltaZip.VERSION_12, dz.getFormatVersion().versionNumber());
+
+        DeltaZip.VersionIterator iter = dz.backwardsIterator();
+        Iterator<EnvelopeInfo> env_iter = dz.envelopeIterator();
+        long end_pos = access.getSize();
+        boolean seen_extended = false, seen_plain = false;
+        for (int k=versions.length-1; k>=0; k--) {
+            assertEquals(versions[k], iter.next());
+            EnvelopeInfo envelope = env_iter.next();
+            EnvelopeInfo decoded = iter.getCurrentEnvelope();
+            assertEquals(decoded.getPosition(), envelope.getPosition());
+            assertEquals(decoded.getCompSize(), envelope.getCompSize());
+            assertEquals(decoded.hasExtendedSize(), envelope.hasExtendedSize());
+            assertEquals(decoded.getChecksum(), envelope.getChecksum());
+            assertEquals(decoded.getMetadata(), envelope.getMetadata());
+            assertEquals(end_pos, envelope.getEndPosition());
+            assertEquals(envelope.getCompSize() >= 100, envelope.hasExtendedSize());
+            if (envelope.hasExtendedSize()) seen_extended = true; else seen_plain = true;
+            end_pos = envelope.getPosition();
+
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            assertTrue(dz.writeVersion(versions.length-1-k, out));
+            assertArrayEquals(DZUtil.allToByteArray(versions[k].getContents()), out.toByteArray());
+        }
+        assertFalse(iter.hasNext());
+        assertTrue(seen_extended && seen_plain);
+
+        File index_file = DeltaZipIndex.indexFileFor(f);
+        index_file.deleteOnExit();
+        DeltaZipIndex index = DeltaZipIndex.rebuild(dz, index_file);
+        index.close();
+        index = DeltaZipIndex.open(index_file);
+        assertTrue(index.isConsistentWith(dz));
+        for (int k=0; k<versions.length; k++) {
+            assertEquals(versions[versions.length-1-k], dz.getVersion(k, index));
+        }
+        index.close();
+        access.close();
+    }
+
+    @Test
+    public void iterators_see_archive_as_of_creation() throws IOException {
+        final Random rnd = new Random();
+        for (KeyframePolicy policy : new KeyframePolicy[] {KeyframePolicy.NONE, KeyframePolicy.every(1)}) {
+            File f = File.createTempFile("deltazip-test", ".dz");
+            f.deleteOnExit();
+            DZUtil.FileAccess access = new DZUtil.FileAccess(f, true);
+            DeltaZip dz = new DeltaZip(access);
+            dz.setKeyframePolicy(policy);
+
+            Version[] versions = new Version[5];
+            byte[] tmp = createRandomBlob(5000, rnd);
+            for (int i=0; i<versions.length; i++) {
+                tmp = tmp.clone();
+                tmp[rnd.nextInt(tmp.length)] = (byte) rnd.nextInt(256);
+                versions[i] = new Version(tmp, Collections.singletonList(new Metadata.Item(Metadata.VERSION_ID_KEYTAG, "v"+i)));
+            }
+            for (int i=0; i<3; i++) dz.applyAppendSpec(dz.add(versions[i]));
+            List<EnvelopeInfo> expected_envelopes = new ArrayList<EnvelopeInfo>();
+            for (EnvelopeInfo envelope : dz.envelopeIterable()) expected_envelopes.add(envelope);
+
+            DeltaZip.VersionIterator iter = dz.backwardsIterator();
+            Iterator<EnvelopeInfo> env_iter = dz.envelopeIterator();
+            dz.add(new ByteArrayInputStream(DZUtil.allToByteArray(versions[3].getContents())), versions[3].getMetadata());
+            dz.applyAppendSpec(dz.add(versions[4]));
+
+            for (int i=2; i>=0; i--) {
+                assertEquals(versions[i], iter.next());
+                EnvelopeInfo expected = expected_envelopes.get(2-i);
+                assertEquals(expected.toString(), env_iter.next().toString());
+                assertEquals(expected.getPosition(), iter.getCurrentPosition());
+                assertEquals(expected.getMethod(), iter.getCurrentMethod());
+            }
+            assertFalse(iter.hasNext());
+            assertFalse(env_iter.hasNext());
+            assertEquals(versions[4], dz.latestVersion());
+            access.close();
+        }
+    }
+
+    @Test(expected=ConcurrentModificationException.class)
+    public void stale_append_spec_is_rejected() throws IOException {
+        File f = File.createTempFile("deltazip-test", ".dz");
+        f.deleteOnExit();
+        DZUtil.FileAccess access = new DZUtil.FileAccess(f, true);
+        try {
+            DeltaZip dz = new DeltaZip(access);
+            dz.applyAppendSpec(dz.add(new Version("Hello".getBytes(LATIN1))));
+            AppendSpecification spec1 = dz.add(new Version("Hello, World!".getBytes(LATIN1)));
+            AppendSpecification spec2 = dz.add(new Version("Hello again".getBytes(LATIN1)));
+            dz.applyAppendSpec(spec1);
+            dz.applyAppendSpec(spec2);
+        } finally {
+            access.close();
+        }
+    }
+
+    @Test
+    public void concurrent_readers_and_writer() throws Exception {
+        final Random rnd = new Random();
+        File f = File.createTempFile("deltazip-test", ".dz");
+        f.deleteOnExit();
+        final DZUtil.FileAccess access = new DZUtil.FileAccess(f, true);
+        final DeltaZip dz = new DeltaZip(access);
+
+        // Plain arrays, as Versions are not to be shared between threads:
+        final byte[][] versions = new byte[30][];
+        byte[] tmp = createRandomBlob(20000, rnd);
+        for (int i=0; i<versions.length; i++) {
+            tmp = tmp.clone();
+            for (int j=0; j<10; j++) tmp[rnd.nextInt(tmp.length)] = (byte) rnd.nextInt(256);
+            versions[i] = tmp;
+        }
+
+        final AtomicBoolean done = new AtomicBoolean();
+        final List<Throwable> failures = Collections.synchronizedList(new ArrayList<Throwable>());
+        Thread[] readers = new Thread[4];
+        for (int r=0; r<readers.length; r++) {
+            final int reader_nr = r;
+            readers[r] = new Thread() {
+                public void run() {
+                    try {
+                        while (!done.get()) {
+                            if (reader_nr % 2 == 0) {
+                                DeltaZip.VersionIterator iter = dz.backwardsIterator();
+                                if (!iter.hasNext()) continue;
+                                Version latest = iter.next();
+                                int k = Integer.parseInt(new String(latest.getMetadata().get(0).getValue(), LATIN1));
+                                assertArrayEquals(versions[k], DZUtil.allToByteArray(latest.getContents()));
+                                while (iter.hasNext()) assertArrayEquals(versions[--k], DZUtil.allToByteArray(iter.next().getContents()));
+                                assertEquals(0, k);
+                            } else {
+                                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                                if (!dz.writeVersion(1, out)) continue;
+                                boolean found = false;
+                                for (byte[] v : versions) found |= Arrays.equals(v, out.toByteArray());
+                                assertTrue("Decoded a version which was added", found);
+                            }
+                        }
+                    } catch (Throwable t) {
+                        failures.add(t);
+                    }
+                }
+            };
+            readers[r].start();
+        }
+        try {
+            for (int i=0; i<versions.length; i++) {
+                List<Metadata.Item> metadata = Collections.singletonList(new Metadata.Item(Metadata.VERSION_ID_KEYTAG, String.valueOf(i)));
+                if (i%2==0) dz.applyAppendSpec(dz.add(new Version(versions[i], metadata)));
+                else dz.add(new ByteArrayInputStream(versions[i]), metadata);
+            }
+        } finally {
+            done.set(true);
+            for (Thread reader : readers) reader.join();
+            access.close();
+        }
+        if (!failures.isEmpty()) throw new AssertionError(failures.get(0));
+    }
+
+    @Test
+    public void version_cache_shortens_decoding() throws IOException {
+        final Random rnd = new Random();
+        Version[] versions = new Version[20];
+        byte[] tmp = createRandomBlob(5000, rnd);
+        ByteArrayAccess access = new ByteArrayAccess(new byte[0]);
+        for (int i=0; i<versions.length; i++) {
+            tmp = tmp.clone();
+            tmp[rnd.nextInt(tmp.length)] = (byte) rnd.nextInt(256);
+            versions[i] = new Version(tmp, Collections.singletonList(new Metadata.Item(Metadata.VERSION_ID_KEYTAG, "v"+i)));
+            access = new ByteArrayAccess(access.applyAppendSpec(new DeltaZip(access).add(versions[i])));
+        }
+        final ByteArrayAccess archive = access;
+        final long[] bytes_read = new long[1];
+        DeltaZip.Access counting_access = new DeltaZip.Access() {
+            public long getSize() throws IOException {return archive.getSize();}
+            public ByteBuffer pread(long pos, int len) throws IOException {
+                bytes_read[0] += len;
+                return archive.pread(pos, len);
+            }
+        };
+
+        DeltaZip dz = new DeltaZip(counting_access);
+        VersionCache cache = new VersionCache(1 << 20);
+        dz.setVersionCache(cache);
+        assertEquals(versions[12], dz.getVersion(7)); // Fills the cache on the way.
+        assertEquals(7, cache.count());
+
+        bytes_read[0] = 0;
+        assertEquals(versions[10], dz.getVersion(9));
+        long with_cache = bytes_read[0];
+        assertEquals(9, cache.count());
+
+        dz.setVersionCache(null);
+        bytes_read[0] = 0;
+        assertEquals(versions[10], dz.getVersion(9));
+        assertTrue("Resumed from a cached version: "+with_cache+" vs. "+bytes_read[0], with_cache < bytes_read[0] / 2);
+
+        // All the ways of reading agree with the cache in use:
+        dz.setVersionCache(cache);
+        DeltaZip.VersionIterator iter = dz.backwardsIterator();
+        for (int k=0; k<versions.length; k++) {
+            assertEquals(versions[versions.length-1-k], iter.next());
+            assertEquals(versions[versions.length-1-k], dz.getVersion(k));
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            assertTrue(dz.writeVersion(k, out));
+            assertArrayEquals(DZUtil.allToByteArray(versions[versions.length-1-k].getContents()), out.toByteArray());
+        }
+        assertEquals(versions.length-1, cache.count()); // All but the snapshot.
+    }
+
+    @Test
+    public void mapped_file_access_follows_growth() throws IOException {
+        File f = File.createTempFile("deltazip-test", ".dz");
+        f.deleteOnExit();
+        Version rev1 = new Version("Hello".getBytes(LATIN1));
+        Version rev2 = new Version("Hello, World!".getBytes(LATIN1));
+
+        DZUtil.FileAccess writer = new DZUtil.FileAccess(f, true);
+        DZUtil.MappedFileAccess reader = new DZUtil.MappedFileAccess(f);
+        try {
+            writer.applyAppendSpec(new DeltaZip(writer).add(rev1));
+            assertEquals(rev1, new DeltaZip(reader).latestVersion());
+
+            writer.applyAppendSpec(new DeltaZip(writer).add(rev2));
+            DeltaZip.VersionIterator iter = new DeltaZip(reader).backwardsIterator();
+            assertEquals(rev2, iter.next());
+            assertEquals(rev1, iter.next());
+            assertFalse(iter.hasNext());
+            assertTrue(reader.pread(0, 4).isReadOnly());
+        } finally {
+            writer.close();
+            reader.close();
+        }
+    }
+
+    @Test
+    public void mapped_file_access_follows_shrinking() throws IOException {
+        File f = File.createTempFile("deltazip-test", ".dz");
+        f.deleteOnExit();
+        byte[] data = createRandomBlob(3 << 20, new Random());
+        RandomAccessFile raf = new RandomAccessFile(f, "rw");
+        raf.write(data, 0, 1 << 20);
+        DZUtil.MappedFileAccess reader = new DZUtil.MappedFileAccess(f);
+        try {
+            raf.write(data, 1 << 20, 100); // A small tail is read conventionally.
+            assertArrayEquals(Arrays.copyOfRange(data, (1 << 20) - 50, (1 << 20) + 50), DZUtil.allToByteArray(reader.pread((1 << 20) - 50, 100)));
+            raf.write(data, (1 << 20) + 100, (2 << 20) - 100); // A large one gets mapped.
+            assertArrayEquals(Arrays.copyOfRange(data, 2 << 20, (2 << 20) + 1000), DZUtil.allToByteArray(reader.pread(2 << 20, 1000)));
+            assertTrue(reader.pread(2 << 20, 1000).isReadOnly());
+
+            raf.setLength(1 << 20);
+            try {
+                reader.pread(2 << 20, 1000);
+                fail("Read past the end");
+            } catch (IOException expected) {}
+            assertArrayEquals(Arrays.copyOfRange(data, 1000, 2000), DZUtil.allToByteArray(reader.pread(1000, 1000)));
+        } finally {
+            raf.close();
+            reader.close();
+        }
+    }
+
     //======================================================================
 
     @Test
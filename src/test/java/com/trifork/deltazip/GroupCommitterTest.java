@@ -0,0 +1,194 @@
+package com.trifork.deltazip;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.ConcurrentModificationException;
+import java.util.List;
+import java.util.concurrent.BrokenBarrierException;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class GroupCommitterTest {
+
+    /** Counts the forces made. */
+    private static class CountingFileAccess extends DZUtil.FileAccess {
+        final AtomicInteger forces = new AtomicInteger();
+
+        CountingFileAccess(File f) throws IOException {super(f, true);}
+
+        @Override
+        public void force() throws IOException {
+            forces.incrementAndGet();
+            super.force();
+        }
+    }
+
+    @Test
+    public void oneForcePerArchivePerWindow() throws Exception {
+        final int archive_count = 3;
+        List<CountingFileAccess> accesses = new ArrayList<CountingFileAccess>();
+        List<DeltaZip> archives = new ArrayList<DeltaZip>();
+        for (int i=0; i<archive_count; i++) {
+            File f = File.createTempFile("deltazip-test", ".dz");
+            f.deleteOnExit();
+            CountingFileAccess access = new CountingFileAccess(f);
+            accesses.add(access);
+            archives.add(new DeltaZip(access));
+        }
+
+        // A window long enough to take all appends of a round:
+        GroupCommitter committer = new GroupCommitter(1000, 500, TimeUnit.MILLISECONDS);
+        for (int round=1; round<=2; round++) {
+            List<Future<Void>> futures = new ArrayList<Future<Void>>();
+            for (DeltaZip dz : archives) futures.add(committer.submit(dz, dz.add(version(round))));
+            for (Future<Void> future : futures) future.get(10, TimeUnit.SECONDS);
+            for (CountingFileAccess access : accesses) assertEquals(round, access.forces.get());
+        }
+        committer.close();
+
+        for (int i=0; i<archive_count; i++) {
+            DeltaZip.VersionIterator iter = new DeltaZip(accesses.get(i)).backwardsIterator();
+            assertEquals(version(2), iter.next());
+            assertEquals(version(1), iter.next());
+            assertFalse(iter.hasNext());
+            accesses.get(i).close();
+        }
+    }
+
+    @Test
+    public void versionsOfAnArchiveShareOneForce() throws Exception {
+        File f = File.createTempFile("deltazip-test", ".dz");
+        f.deleteOnExit();
+        CountingFileAccess access = new CountingFileAccess(f);
+        DeltaZip dz = new DeltaZip(access);
+
+        GroupCommitter committer = new GroupCommitter(1000, 500, TimeUnit.MILLISECONDS);
+        List<Future<Void>> futures = new ArrayList<Future<Void>>();
+        for (int nr=1; nr<=5; nr++) futures.add(committer.submit(dz, version(nr)));
+        for (Future<Void> future : futures) future.get(10, TimeUnit.SECONDS);
+        assertEquals(1, access.forces.get());
+        committer.close();
+
+        DeltaZip.VersionIterator iter = new DeltaZip(access).backwardsIterator();
+        for (int nr=5; nr>=1; nr--) assertEquals(version(nr), iter.next());
+        assertFalse(iter.hasNext());
+        access.close();
+    }
+
+    @Test
+    public void archivesAreForcedInParallel() throws Exception {
+        final int archive_count = 3;
+        // Each force waits until all archives are being forced:
+        final CyclicBarrier all_forcing = new CyclicBarrier(archive_count);
+        List<DZUtil.FileAccess> accesses = new ArrayList<DZUtil.FileAccess>();
+        GroupCommitter committer = new GroupCommitter(1000, 500, TimeUnit.MILLISECONDS, archive_count);
+        List<Future<Void>> futures = new ArrayList<Future<Void>>();
+        for (int i=0; i<archive_count; i++) {
+            File f = File.createTempFile("deltazip-test", ".dz");
+            f.deleteOnExit();
+            DZUtil.FileAccess access = new DZUtil.FileAccess(f, true) {
+                @Override
+                public void force() throws IOException {
+                    try {
+                        all_forcing.await(10, TimeUnit.SECONDS);
+                    } catch (InterruptedException e) {
+                        throw new IOException(e);
+                    } catch (BrokenBarrierException e) {
+                        throw new IOException(e);
+                    } catch (TimeoutException e) {
+                        throw new IOException("Archives were forced one at a time");
+                    }
+                    super.force();
+                }
+            };
+            accesses.add(access);
+            futures.add(committer.submit(new DeltaZip(access), version(i)));
+        }
+        for (Future<Void> future : futures) future.get(20, TimeUnit.SECONDS);
+        committer.close();
+        for (DZUtil.FileAccess access : accesses) access.close();
+    }
+
+    @Test
+    public void errorsFailTheirAppendsOnly() throws Exception {
+        File f = File.createTempFile("deltazip-test", ".dz");
+        f.deleteOnExit();
+        final AtomicInteger forces = new AtomicInteger();
+        DZUtil.FileAccess access = new DZUtil.FileAccess(f, true) {
+            @Override
+            public void force() throws IOException {
+                if (forces.incrementAndGet() == 1) throw new AssertionError("Simulated error");
+                super.force();
+            }
+        };
+        DeltaZip dz = new DeltaZip(access);
+
+        GroupCommitter committer = new GroupCommitter(1000, 0, TimeUnit.MILLISECONDS);
+        try {
+            committer.submit(dz, version(1)).get(10, TimeUnit.SECONDS);
+            fail("Failed force was not reported");
+        } catch (ExecutionException ee) {
+            assertTrue(ee.getCause() instanceof AssertionError);
+        }
+        // The committer is still alive:
+        committer.submit(dz, version(2)).get(10, TimeUnit.SECONDS);
+        committer.close();
+        assertEquals(version(2), new DeltaZip(access).latestVersion());
+        access.close();
+    }
+
+    @Test
+    public void failedAppendsDoNotAffectOthers() throws Exception {
+        File f = File.createTempFile("deltazip-test", ".dz");
+        f.deleteOnExit();
+        CountingFileAccess access = new CountingFileAccess(f);
+        DeltaZip dz = new DeltaZip(access);
+
+        GroupCommitter committer = new GroupCommitter(1000, 200, TimeUnit.MILLISECONDS);
+        Future<Void> first = committer.submit(dz, dz.add(version(1)));
+        Future<Void> stale = committer.submit(dz, dz.add(version(2))); // Computed for the same, empty archive.
+        first.get(10, TimeUnit.SECONDS);
+        try {
+            stale.get(10, TimeUnit.SECONDS);
+            fail("Stale append was applied");
+        } catch (ExecutionException ee) {
+            assertTrue(ee.getCause() instanceof ConcurrentModificationException);
+        }
+        assertEquals(1, access.forces.get());
+        committer.close();
+
+        assertEquals(version(1), new DeltaZip(access).latestVersion());
+        access.close();
+    }
+
+    @Test
+    public void closeCommitsPendingAppends() throws Exception {
+        File f = File.createTempFile("deltazip-test", ".dz");
+        f.deleteOnExit();
+        CountingFileAccess access = new CountingFileAccess(f);
+        DeltaZip dz = new DeltaZip(access);
+
+        GroupCommitter committer = new GroupCommitter(1000, 60, TimeUnit.SECONDS);
+        Future<Void> future = committer.submit(dz, dz.add(version(1)));
+        committer.close();
+        assertTrue(future.isDone());
+        future.get();
+        try {
+            committer.submit(dz, dz.add(version(2)));
+            fail("Submit after close");
+        } catch (IllegalStateException expected) {}
+        access.close();
+    }
+
+    private static Version version(int nr) throws IOException {
+        return new Version(("Version number "+nr+" of some document").getBytes("UTF-8"));
+    }
+}
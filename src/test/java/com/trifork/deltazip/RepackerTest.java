@@ -0,0 +1,242 @@
+package com.trifork.deltazip;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Future;
+
+public class RepackerTest {
+    private File dir;
+
+    @Before
+    public void createDir() throws IOException {
+        dir = File.createTempFile("deltazip-repack", "");
+        assertTrue(dir.delete() && dir.mkdir());
+    }
+
+    @After
+    public void deleteDir() {
+        for (File file : dir.listFiles()) file.delete();
+        dir.delete();
+    }
+
+    @Test
+    public void repackKeepsHistoryAndKeyframes() throws Exception {
+        File[] archives = new File[3];
+        List<List<Version>> histories = new ArrayList<List<Version>>();
+        for (int a=0; a<archives.length; a++) {
+            archives[a] = new File(dir, "archive"+a+".dz");
+            histories.add(write_poorly(archives[a], a));
+        }
+        DZUtil.FileAccess access = new DZUtil.FileAccess(archives[0]);
+        DeltaZipIndex.rebuild(new DeltaZip(access), DeltaZipIndex.indexFileFor(archives[0])).close();
+        access.close();
+        List<Integer> methods_before = methods(archives[0]);
+
+        Repacker repacker = new Repacker(2, 0);
+        List<File> files = new ArrayList<File>();
+        for (File archive : archives) files.add(archive);
+        List<Future<Repacker.Result>> results = repacker.submitAll(files);
+        for (int a=0; a<archives.length; a++) {
+            Repacker.Result result = results.get(a).get();
+            assertTrue(result.isReplaced());
+            assertTrue(result.getNewSize() < result.getOldSize());
+            assertEquals(archives[a].length(), result.getNewSize());
+            assertEquals(histories.get(a).size(), result.getVersionCount());
+            assertEquals(histories.get(a), read_history(archives[a]));
+            assertFalse(new File(archives[a].getPath() + Repacker.TEMP_SUFFIX).exists());
+        }
+        repacker.close();
+
+        // Keyframes stay keyframes:
+        List<Integer> methods_after = methods(archives[0]);
+        for (int i=0; i<methods_before.size(); i++) {
+            assertEquals(DeltaZip.is_snapshot_method(methods_before.get(i)),
+                         DeltaZip.is_snapshot_method(methods_after.get(i)));
+        }
+
+        // The index has been rewritten:
+        access = new DZUtil.FileAccess(archives[0]);
+        DeltaZipIndex index = DeltaZipIndex.open(DeltaZipIndex.indexFileFor(archives[0]));
+        assertTrue(index.isConsistentWith(access));
+        List<EnvelopeInfo> envelopes = new ArrayList<EnvelopeInfo>();
+        for (EnvelopeInfo envelope : new DeltaZip(access).envelopeIterable()) envelopes.add(0, envelope);
+        assertEquals(envelopes.size(), index.size());
+        for (int i=0; i<envelopes.size(); i++) {
+            assertEquals(envelopes.get(i).getPosition(), index.getEntries().get(i).getPosition());
+            assertEquals(envelopes.get(i).getChecksum(), index.getEntries().get(i).getChecksum());
+        }
+        index.close();
+        access.close();
+    }
+
+    @Test
+    public void compactArchiveIsKept() throws IOException {
+        File archive = new File(dir, "compact.dz");
+        DZUtil.FileAccess access = new DZUtil.FileAccess(archive, true);
+        DeltaZip dz = new DeltaZip(access);
+        for (int i=0; i<5; i++) dz.applyAppendSpec(dz.add(new Version(("version "+i).getBytes())));
+        access.close();
+        long size = archive.length();
+
+        Repacker repacker = new Repacker(1, 1 << 20);
+        Repacker.Result result = repacker.repack(archive);
+        repacker.close();
+        assertFalse(result.isReplaced());
+        assertEquals(size, archive.length());
+        assertEquals(5, read_history(archive).size());
+
+        // Unless another format is asked for:
+        repacker = new Repacker(1, 1 << 20);
+        repacker.setTargetFormat(FormatVersion.VERSION_13);
+        result = repacker.repack(archive);
+        repacker.close();
+        assertTrue(result.isReplaced());
+        assertEquals(5, read_history(archive).size());
+        access = new DZUtil.FileAccess(archive);
+        assertEquals(DeltaZip.VERSION_13, new DeltaZip(access).getFormatVersion().versionNumber());
+        access.close();
+    }
+
+    @Test
+    public void pruneKeepsNewest() throws IOException {
+        File archive = new File(dir, "prune.dz");
+        List<Version> history = write_poorly(archive, 7);
+        List<EnvelopeInfo> before = envelopes(archive);
+
+        Repacker repacker = new Repacker();
+        Repacker.Result result = repacker.prune(archive, RetentionPolicy.keepNewest(6));
+        repacker.close();
+        assertTrue(result.isReplaced());
+        assertEquals(6, result.getVersionCount());
+        assertEquals(history.subList(0, 6), read_history(archive));
+
+        // The survivors are copied as they are:
+        List<EnvelopeInfo> after = envelopes(archive);
+        for (int i=0; i<6; i++) {
+            assertEquals(before.get(i).getMethod(), after.get(i).getMethod());
+            assertEquals(before.get(i).getCompSize(), after.get(i).getCompSize());
+        }
+    }
+
+    @Test
+    public void pruneReencodesBrokenReferences() throws IOException {
+        File archive = new File(dir, "thin.dz");
+        DZUtil.FileAccess access = new DZUtil.FileAccess(archive, true);
+        DeltaZip dz = new DeltaZip(access);
+        long now = 1700000000000L;
+        List<Version> history = new ArrayList<Version>();
+        for (int i=0; i<48; i++) { // Every half hour, for a day.
+            Date time = new Date(now - (47-i) * 30 * 60 * 1000L);
+            Version version = new Version(("version "+i+" of the document").getBytes(),
+                                          Metadata.items(new Metadata.Timestamp(time)));
+            dz.applyAppendSpec(dz.add(version));
+            history.add(0, version);
+        }
+        access.close();
+        DZUtil.FileAccess index_access = new DZUtil.FileAccess(archive);
+        DeltaZipIndex.rebuild(new DeltaZip(index_access), DeltaZipIndex.indexFileFor(archive)).close();
+        index_access.close();
+
+        Repacker repacker = new Repacker();
+        Repacker.Result result = repacker.prune(archive, RetentionPolicy.thinned(new Date(now)));
+        repacker.close();
+        assertTrue(result.isReplaced());
+        List<Version> expected = new ArrayList<Version>();
+        for (int i=0; i<history.size(); i+=2) expected.add(history.get(i));
+        assertEquals(expected, read_history(archive));
+
+        access = new DZUtil.FileAccess(archive);
+        DeltaZipIndex index = DeltaZipIndex.open(DeltaZipIndex.indexFileFor(archive));
+        assertTrue(index.isConsistentWith(access));
+        assertEquals(expected.size(), index.size());
+        index.close();
+        access.close();
+    }
+
+    @Test
+    public void retentionPolicies() {
+        long now = 1700000000000L;
+        List<EnvelopeInfo> envelopes = new ArrayList<EnvelopeInfo>();
+        long[] ages_in_hours = {0, 0, 1, 5, 5, 30, 40, 60};
+        for (long age : ages_in_hours) {
+            Date time = new Date(now - age * RetentionPolicy.HOUR - 1000);
+            envelopes.add(new EnvelopeInfo(0, DeltaZip.METHOD_DEFLATED, 0, -1, 0,
+                                           Metadata.items(new Metadata.Timestamp(time))));
+        }
+        envelopes.add(new EnvelopeInfo(0, DeltaZip.METHOD_DEFLATED, 0, -1, 0, new ArrayList<Metadata.Item>()));
+
+        assertEquals(Arrays.toString(new boolean[] {true, true, true, false, false, false, false, false, false}),
+                          Arrays.toString(RetentionPolicy.keepNewest(3).select(envelopes)));
+        assertEquals(Arrays.toString(new boolean[] {true, true, true, true, true, false, false, false, true}),
+                          Arrays.toString(RetentionPolicy.newerThan(new Date(now - 10 * RetentionPolicy.HOUR)).select(envelopes)));
+        assertEquals(Arrays.toString(new boolean[] {true, false, true, true, false, true, false, true, true}),
+                          Arrays.toString(RetentionPolicy.thinned(new Date(now)).select(envelopes)));
+    }
+
+    //====================
+
+    /** Write an archive with uncompressed snapshots and plain chunked deltas. */
+    private static List<Version> write_poorly(File file, int seed) throws IOException {
+        DZUtil.FileAccess access = new DZUtil.FileAccess(file, true);
+        DeltaZip dz = new DeltaZip(access) {
+            @Override
+            protected EnvelopeInfo pack_snapshot(Version version, ExtByteArrayOutputStream dst) {
+                return pack_entry(version, null, new CompressionMethod[] {UNCOMPRESSED_INSTANCE}, dst);
+            }
+            @Override
+            protected EnvelopeInfo pack_delta(Version version, ByteBuffer ref_version, ExtByteArrayOutputStream dst) {
+                return pack_entry(version, ref_version, new CompressionMethod[] {CHUNKED_INSTANCE}, dst);
+            }
+        };
+        dz.setKeyframePolicy(KeyframePolicy.every(4));
+        Random rnd = new Random(seed);
+        byte[] text = new byte[20000];
+        for (int i=0; i<text.length; i++) text[i] = (byte)('a' + rnd.nextInt(8));
+
+        List<Version> history = new ArrayList<Version>();
+        for (int i=0; i<10; i++) {
+            for (int j=0; j<20; j++) text[rnd.nextInt(text.length)] = (byte)('a' + rnd.nextInt(8));
+            Version version = new Version(text.clone());
+            dz.applyAppendSpec(dz.add(version));
+            history.add(0, version);
+        }
+        access.close();
+        return history;
+    }
+
+    private static List<Version> read_history(File file) throws IOException {
+        DZUtil.FileAccess access = new DZUtil.FileAccess(file);
+        List<Version> history = new ArrayList<Version>();
+        DeltaZip.VersionIterator iter = new DeltaZip(access).backwardsIterator();
+        while (iter.hasNext()) history.add(iter.next());
+        access.close();
+        return history;
+    }
+
+    private static List<EnvelopeInfo> envelopes(File file) throws IOException {
+        DZUtil.FileAccess access = new DZUtil.FileAccess(file);
+        List<EnvelopeInfo> envelopes = new ArrayList<EnvelopeInfo>();
+        for (EnvelopeInfo envelope : new DeltaZip(access).envelopeIterable()) envelopes.add(envelope);
+        access.close();
+        return envelopes;
+    }
+
+    private static List<Integer> methods(File file) throws IOException {
+        DZUtil.FileAccess access = new DZUtil.FileAccess(file);
+        List<Integer> methods = new ArrayList<Integer>();
+        for (EnvelopeInfo envelope : new DeltaZip(access).envelopeIterable()) methods.add(envelope.getMethod());
+        access.close();
+        return methods;
+    }
+}
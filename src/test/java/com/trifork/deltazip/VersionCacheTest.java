@@ -0,0 +1,58 @@
+package com.trifork.deltazip;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+import java.util.Collections;
+import java.util.List;
+
+public class VersionCacheTest {
+    private static final List<Metadata.Item> NO_METADATA = Collections.emptyList();
+    private static final Object ARCHIVE = "archive";
+
+    @Test
+    public void keyedByArchivePositionAndChecksum() {
+        VersionCache cache = new VersionCache(1000);
+        byte[] data = new byte[10];
+        cache.put(ARCHIVE, 100, 42, data, NO_METADATA, 2);
+        assertSame(data, cache.get(ARCHIVE, 100, 42).contents);
+        assertEquals(2, cache.get(ARCHIVE, 100, 42).depth);
+        assertNull(cache.get(ARCHIVE, 100, 43));
+        assertNull(cache.get(ARCHIVE, 101, 42));
+        assertNull(cache.get("other archive", 100, 42));
+        assertEquals(10, cache.size());
+    }
+
+    @Test
+    public void staysWithinCapacity() {
+        VersionCache cache = new VersionCache(100);
+        for (int i=0; i<50; i++) {
+            cache.put(ARCHIVE, i, 0, new byte[30], NO_METADATA, 2);
+            assertTrue(cache.size() <= 100);
+        }
+        assertEquals(3, cache.count());
+        cache.put(ARCHIVE, 1000, 0, new byte[101], NO_METADATA, 2);
+        assertNull(cache.get(ARCHIVE, 1000, 0));
+    }
+
+    @Test
+    public void shallowVersionsAreEvictedFirst() {
+        VersionCache cache = new VersionCache(100);
+        cache.put(ARCHIVE, 1, 0, new byte[40], NO_METADATA, 10);
+        cache.put(ARCHIVE, 2, 0, new byte[40], NO_METADATA, 2);
+        cache.put(ARCHIVE, 3, 0, new byte[40], NO_METADATA, 2);
+        assertNotNull(cache.get(ARCHIVE, 1, 0)); // Older, but deeper.
+        assertNull(cache.get(ARCHIVE, 2, 0));
+        assertNotNull(cache.get(ARCHIVE, 3, 0));
+    }
+
+    @Test
+    public void unusedVersionsAgeOut() {
+        VersionCache cache = new VersionCache(100);
+        cache.put(ARCHIVE, 1, 0, new byte[40], NO_METADATA, 3);
+        // Each eviction raises the priority of later entries:
+        for (int i=2; i<10; i++) cache.put(ARCHIVE, i, 0, new byte[40], NO_METADATA, 2);
+        assertNull(cache.get(ARCHIVE, 1, 0));
+        assertNotNull(cache.get(ARCHIVE, 9, 0));
+    }
+}